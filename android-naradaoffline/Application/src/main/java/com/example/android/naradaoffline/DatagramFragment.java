@@ -49,18 +49,36 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
-
+import com.example.android.common.blob.BlobStore;
+import com.example.android.common.bluetooth.BluetoothDatagramService;
+import com.example.android.common.bluetooth.Constants;
+import com.example.android.common.datagram.Datagram;
+import com.example.android.common.datagram.DatagramCodec;
+import com.example.android.common.datagram.DatagramDecoder;
+import com.example.android.common.datagram.DatagramRequest;
+import com.example.android.common.datagram.DatagramRequestType;
+import com.example.android.common.datagram.DatagramResponse;
+import com.example.android.common.datagram.DatagramResponseType;
+import com.example.android.common.delta.Delta;
+import com.example.android.common.delta.Signature;
+import com.example.android.common.dtn.BundleAgent;
+import com.example.android.common.dtn.BundleStore;
+import com.example.android.common.link.TransferPlanner;
 import com.example.android.common.logger.Log;
+import com.example.android.common.transport.PeerCache;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
 public class DatagramFragment extends Fragment {
 
     private static final String TAG = "DatagramFragment";
-    private final Gson gson = new Gson();
 
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
@@ -81,64 +99,6 @@ public class DatagramFragment extends Fragment {
     public Context cont;
 
 
-    //Datagram Enums
-    public enum DatagramRequestType {GET_NEWSPAPER, GET_NEW_EMAILS, SEND_WHATSAPP_MSG, SEND_EMAIL, GET_ALERTS}
-
-    public enum DatagramResponseType {GET_NEWSPAPER, GET_NEW_EMAILS, SEND_WHATSAPP_MSG, SEND_EMAIL, GET_ALERTS}
-
-    public enum DatagramError {BAD_REQUEST, RECIPIENT_NO_EXIST, SENDER_REFUSED}
-
-    private class DatagramResponse {
-        DatagramResponseType type;
-        String mDeviceName;
-        String mRequest;
-        //newspaper data
-        String mNewspaperHtml;
-
-        public DatagramResponse(DatagramResponseType type, String newspaperHtml, String deviceName) {
-            this.type = type;
-            mDeviceName = deviceName;
-            mNewspaperHtml = Base64.encodeToString(newspaperHtml.getBytes(), Base64.NO_WRAP);
-        }
-
-        //EMAIL TYPE DATAGRAM
-//        public DatagramResponse(DatagramRequestType type, String deviceName, String from, String to, String body) {
-//            this.type = type;
-//            this.mDeviceName = deviceName;
-//            mEmailFrom = from;
-//            mEmailTo = to;
-//            mEmailBody = body;
-//        }
-
-        public String readNewspaperHtml() {
-            return new String(Base64.decode(mNewspaperHtml, Base64.NO_WRAP));
-        }
-    }
-
-    private class DatagramRequest {
-        DatagramRequestType type;
-        String mDeviceName;
-        String mRequest;
-        //email data
-        String mEmailFrom;
-        String mEmailTo;
-        String mEmailBody;
-
-        public DatagramRequest(DatagramRequestType type, String deviceName) {
-            this.type = type;
-            mDeviceName = deviceName;
-        }
-
-        //EMAIL TYPE DATAGRAM
-        public DatagramRequest(DatagramRequestType type, String deviceName, String from, String to, String body) {
-            this.type = type;
-            this.mDeviceName = deviceName;
-            mEmailFrom = from;
-            mEmailTo = to;
-            mEmailBody = body;
-        }
-    }
-
     /**
      * Name of the connected device
      */
@@ -146,6 +106,21 @@ public class DatagramFragment extends Fragment {
 
     private ArrayList<DatagramRequest> mDatagramRequests = new ArrayList<DatagramRequest>();
 
+    /**
+     * The last newspaper edition received, for asking for deltas against it
+     */
+    private NewspaperStore mNewspapers;
+
+    /**
+     * Payloads by content hash, shared with the courier so nothing is sent twice
+     */
+    private BlobStore mBlobs;
+
+    /**
+     * Hash of a newspaper edition the courier told us about but hasn't sent yet
+     */
+    private String mPendingNewspaperBlob;
+
     /**
      * Array adapter for the conversation thread
      */
@@ -166,6 +141,17 @@ public class DatagramFragment extends Fragment {
      */
     private BluetoothDatagramService mChatService = null;
 
+    /**
+     * Decodes incoming datagrams, so the UI thread only ever sees them typed
+     */
+    private DatagramDecoder mDecoder = null;
+
+    /**
+     * Signs, rebuilds and stores newspaper editions off the UI thread. The newspaper store is
+     * only ever used from here.
+     */
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -202,6 +188,10 @@ public class DatagramFragment extends Fragment {
         if (mChatService != null) {
             mChatService.stop();
         }
+        if (mDecoder != null) {
+            mDecoder.close();
+        }
+        mWorker.shutdownNow();
     }
 
     @Override
@@ -290,8 +280,7 @@ public class DatagramFragment extends Fragment {
                 if (null != view) {
 
 //                    TextView textView = (TextView) view.findViewById(R.id.edit_text_out);
-                    DatagramRequest d = new DatagramRequest(DatagramRequestType.GET_NEWSPAPER, mConnectedDeviceName);
-                    sendDatagramRequest(d);
+                    requestNewspaper();
                 }
             }
         });
@@ -352,8 +341,33 @@ public class DatagramFragment extends Fragment {
 
 
 
+        mBlobs = new BlobStore(new File(getActivity().getFilesDir(), "blobs"));
+        mNewspapers = new NewspaperStore(getActivity(), mBlobs);
+
         // Initialize the BluetoothDatagramService to perform bluetooth connections
         mChatService = new BluetoothDatagramService(getActivity(), mHandler);
+        mChatService.setBlobStore(mBlobs);
+        mDecoder = new DatagramDecoder(new DatagramDecoder.Listener() {
+            @Override
+            public void onDatagram(Datagram datagram, int length) {
+                mHandler.obtainMessage(Constants.MESSAGE_DATAGRAM, length, datagram.mSessionId,
+                        datagram).sendToTarget();
+            }
+        });
+        try {
+            // Runs on one of the service's threads from now until onDestroy()
+            mChatService.setDatagramDecoder(mDecoder);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't start the datagram decoder", e);
+        }
+        mChatService.setPeerCache(new PeerCache(new File(getActivity().getFilesDir(), "peers")));
+        try {
+            // Requests made while no courier is around wait here for one
+            mChatService.setBundleAgent(new BundleAgent(
+                    new BundleStore(new File(getActivity().getFilesDir(), "bundles")), false));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the bundle store", e);
+        }
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -382,15 +396,24 @@ public class DatagramFragment extends Fragment {
      *
      */
     private void sendDatagramRequest(DatagramRequest request) {
-        // Check that we're actually connected before trying anything
+        byte[] send = DatagramCodec.encode(request);
+
+        // Not connected: leave it with whichever courier comes by next, to carry to a gateway
         if (mChatService.getState() != BluetoothDatagramService.STATE_CONNECTED) {
-            Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+            if (mChatService.sendBundle(BundleAgent.GATEWAY, send, priorityFor(request.type))) {
+                Toast.makeText(getActivity(), R.string.sent_as_bundle, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+            }
             return;
         }
 
         Log.i(TAG, "sending datagram");
-        byte[] send = gson.toJson(request).getBytes();
-        mChatService.write(send);
+        int lane = request.type == DatagramRequestType.GET_ALERTS
+                ? BluetoothDatagramService.LANE_ALERTS : BluetoothDatagramService.LANE_REQUESTS;
+        if (!mChatService.write(send, lane)) {
+            Toast.makeText(getActivity(), R.string.write_queue_full, Toast.LENGTH_SHORT).show();
+        }
 
         // Check that there's actually something to send
 //        if (message.length() > 0) {
@@ -404,6 +427,176 @@ public class DatagramFragment extends Fragment {
 //        }
     }
 
+    /**
+     * Alerts go first when a courier passes by; a newspaper only if there's time left over.
+     */
+    private static int priorityFor(DatagramRequestType type) {
+        switch (type) {
+            case GET_ALERTS:
+                return TransferPlanner.PRIORITY_EXPEDITED;
+            case GET_NEWSPAPER:
+                return TransferPlanner.PRIORITY_BULK;
+            default:
+                return TransferPlanner.PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * Sends a newspaper request once the worker has built it.
+     */
+    private void requestNewspaper() {
+        final String deviceName = mConnectedDeviceName;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DatagramRequest request = newspaperRequest(deviceName);
+                onUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendDatagramRequest(request);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Builds a newspaper request. If we already hold an edition, its signature goes along so the
+     * courier can send only what changed. Runs on the worker.
+     */
+    private DatagramRequest newspaperRequest(String deviceName) {
+        DatagramRequest request = new DatagramRequest(DatagramRequestType.GET_NEWSPAPER, deviceName);
+        byte[] held = mNewspapers.read();
+        if (held != null) {
+            request.mNewspaperSignature = Base64.encodeToString(Signature.of(held).toBytes(), Base64.NO_WRAP);
+        }
+        return request;
+    }
+
+    /**
+     * Rebuilds and stores a newspaper edition the courier sent us, on the worker. If a delta
+     * can't be applied, asks again for the whole edition.
+     */
+    private void receiveNewspaper(final DatagramResponse response) {
+        if (response.mNewspaperBlob != null) {
+            if (mBlobs.contains(response.mNewspaperBlob)) {
+                storeNewspaperBlob(response.mNewspaperBlob);
+            } else {
+                // Still on its way; finish once MESSAGE_BLOB brings it
+                mPendingNewspaperBlob = response.mNewspaperBlob;
+            }
+            return;
+        }
+        final String deviceName = mConnectedDeviceName;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] edition = rebuildNewspaper(response);
+                if (edition == null) {
+                    onUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendDatagramRequest(new DatagramRequest(DatagramRequestType.GET_NEWSPAPER, deviceName));
+                        }
+                    });
+                    return;
+                }
+                mNewspapers.write(edition);
+                showNewspaper(edition.length);
+            }
+        });
+    }
+
+    /**
+     * Returns the edition a response carries, inline or as a delta against the one we hold, or
+     * null if it can't be rebuilt. Runs on the worker.
+     */
+    private byte[] rebuildNewspaper(DatagramResponse response) {
+        try {
+            if (response.mNewspaperDelta != null) {
+                byte[] held = mNewspapers.read();
+                if (held == null) {
+                    throw new ProtocolException("No edition to apply the delta to");
+                }
+                return Delta.apply(held, Base64.decode(response.mNewspaperDelta, Base64.NO_WRAP));
+            }
+            return Base64.decode(response.mNewspaperHtml, Base64.NO_WRAP);
+        } catch (ProtocolException | IllegalArgumentException e) {
+            // A bad delta or bad Base64; either way, start over from the full edition
+            Log.w(TAG, "Couldn't rebuild the newspaper, asking for the whole edition", e);
+            return null;
+        }
+    }
+
+    /**
+     * Finishes a newspaper delivery whose blob has just arrived.
+     */
+    private void receiveNewspaperBlob(String hash) {
+        if (!hash.equals(mPendingNewspaperBlob)) {
+            return;
+        }
+        mPendingNewspaperBlob = null;
+        storeNewspaperBlob(hash);
+    }
+
+    /**
+     * Acts on a datagram from the courier, whether it came directly or as a bundle.
+     */
+    private void receiveDatagram(Datagram datagram) {
+        Log.i(TAG, "Datagram is: " + datagram.getTypeName());
+        if (datagram instanceof DatagramResponse) {
+            DatagramResponse resp = (DatagramResponse) datagram;
+            if (resp.type == DatagramResponseType.GET_NEWSPAPER && resp.hasNewspaper()) {
+                receiveNewspaper(resp);
+                return;
+            }
+        } else {
+            DatagramRequest req = (DatagramRequest) datagram;
+            if(req.type == DatagramRequestType.SEND_EMAIL) sendEmail(req);
+        }
+        mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + datagram.getTypeName());
+    }
+
+    /**
+     * Makes an edition that arrived as a blob current, on the worker. It stays on disk; nothing
+     * here reads it.
+     */
+    private void storeNewspaperBlob(final String hash) {
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                mNewspapers.makeCurrent(hash);
+                showNewspaper(mBlobs.length(hash));
+            }
+        });
+    }
+
+    /**
+     * Lists a newly stored edition, from the worker.
+     */
+    private void showNewspaper(final long length) {
+        onUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mConversationArrayAdapter.add(mConnectedDeviceName + ":  newspaper, " + length + " bytes");
+            }
+        });
+    }
+
+    /**
+     * Runs a task from the worker on the UI thread, unless the fragment is destroyed by then.
+     */
+    private void onUiThread(final Runnable task) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mWorker.isShutdown()) {
+                    task.run();
+                }
+            }
+        });
+    }
+
     /**
      * Updates the status on the action bar.
      *
@@ -463,20 +656,23 @@ public class DatagramFragment extends Fragment {
                     break;
                 case Constants.MESSAGE_WRITE:
                     byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
+                    // Only our own small requests come back here, so decoding is cheap
+                    String writeMessage;
+                    try {
+                        writeMessage = DatagramCodec.decode(writeBuf, 0, writeBuf.length)
+                                .getTypeName();
+                    } catch (ProtocolException e) {
+                        writeMessage = writeBuf.length + " bytes";
+                    }
                     mConversationArrayAdapter.add("Me:  " + writeMessage);
                     break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-
-                    Log.i(TAG, "Message is: " + readMessage.length());
-                    DatagramRequest req = gson.fromJson(readMessage, DatagramRequest.class);
-
-                    if(req.type == DatagramRequestType.SEND_EMAIL) sendEmail(req);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                case Constants.MESSAGE_DATAGRAM:
+                    // Already decoded, whether it came directly or was relayed back to us as
+                    // the answer to a request we sent as a bundle
+                    receiveDatagram((Datagram) msg.obj);
+                    break;
+                case Constants.MESSAGE_BLOB:
+                    receiveNewspaperBlob((String) msg.obj);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
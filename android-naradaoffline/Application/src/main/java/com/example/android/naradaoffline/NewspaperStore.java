@@ -0,0 +1,125 @@
+package com.example.android.naradaoffline;
+
+import android.content.Context;
+
+import com.example.android.common.blob.BlobStore;
+import com.example.android.common.logger.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Keeps the last newspaper edition we received, so the next request can ask for just the
+ * changes against it. The edition itself lives in the {@link BlobStore}; this only remembers
+ * which blob is current.
+ */
+public class NewspaperStore {
+
+    private static final String TAG = "NewspaperStore";
+
+    private static final String FILE_NAME = "newspaper.current";
+
+    private final BlobStore mBlobs;
+    private final File mFile;
+
+    public NewspaperStore(Context context, BlobStore blobs) {
+        mBlobs = blobs;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns the hash of the edition we hold, or null if we have none.
+     */
+    public String getCurrentHash() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            String hash = out.toString("US-ASCII");
+            return BlobStore.isHash(hash) ? hash : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read the current edition", e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Returns the edition we hold, or null if we have none.
+     */
+    public byte[] read() {
+        String hash = getCurrentHash();
+        if (hash == null) {
+            return null;
+        }
+        try {
+            return mBlobs.get(hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read the stored edition", e);
+            return null;
+        }
+    }
+
+    /**
+     * Makes an edition current, storing it first. The previous edition is dropped.
+     */
+    public void write(byte[] edition) {
+        try {
+            makeCurrent(mBlobs.put(edition));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store the edition", e);
+        }
+    }
+
+    /**
+     * Makes an edition already in the blob store current, without reading it. The previous
+     * edition is dropped.
+     */
+    public void makeCurrent(String hash) {
+        String previous = getCurrentHash();
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(hash.getBytes("US-ASCII"));
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + temp);
+            }
+            if (previous != null && !previous.equals(hash)) {
+                mBlobs.remove(previous);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store the edition", e);
+            temp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+}
@@ -46,17 +46,36 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
-
+import com.example.android.common.blob.BlobStore;
+import com.example.android.common.bluetooth.BluetoothDatagramService;
+import com.example.android.common.bluetooth.Constants;
+import com.example.android.common.datagram.Datagram;
+import com.example.android.common.datagram.DatagramCodec;
+import com.example.android.common.datagram.DatagramDecoder;
+import com.example.android.common.datagram.DatagramRequest;
+import com.example.android.common.datagram.DatagramRequestType;
+import com.example.android.common.datagram.DatagramResponse;
+import com.example.android.common.datagram.DatagramResponseType;
+import com.example.android.common.delta.Delta;
+import com.example.android.common.delta.Signature;
+import com.example.android.common.dtn.BundleAgent;
+import com.example.android.common.dtn.BundleStore;
+import com.example.android.common.link.TransferPlanner;
 import com.example.android.common.logger.Log;
+import com.example.android.common.transport.PeerCache;
 
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This fragment controls Bluetooth to communicate with other devices.
@@ -64,12 +83,14 @@ import java.util.ArrayList;
 public class DatagramFragment extends Fragment {
 
     private static final String TAG = "DatagramFragment";
-    private final Gson gson = new Gson();
 
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
+
+    // A courier serves everyone around it at once; a piconet has at most seven active peers
+    private static final int MAX_SESSIONS = 7;
     private String m_Text = "";
 
     // Layout Views
@@ -80,64 +101,6 @@ public class DatagramFragment extends Fragment {
     public Context cont;
 
 
-    //Datagram Enums
-    public enum DatagramRequestType {GET_NEWSPAPER, GET_NEW_EMAILS, SEND_WHATSAPP_MSG, SEND_EMAIL, GET_ALERTS}
-
-    public enum DatagramResponseType {GET_NEWSPAPER, GET_NEW_EMAILS, SEND_WHATSAPP_MSG, SEND_EMAIL, GET_ALERTS}
-
-    public enum DatagramError {BAD_REQUEST, RECIPIENT_NO_EXIST, SENDER_REFUSED}
-
-    private class DatagramRequest {
-        DatagramRequestType type;
-        String mDeviceName;
-        String mRequest;
-        //email data
-        String mEmailFrom;
-        String mEmailTo;
-        String mEmailBody;
-
-        public DatagramRequest(DatagramRequestType type, String deviceName) {
-            this.type = type;
-            mDeviceName = deviceName;
-        }
-
-        //EMAIL TYPE DATAGRAM
-        public DatagramRequest(DatagramRequestType type, String deviceName, String from, String to, String body) {
-            this.type = type;
-            this.mDeviceName = deviceName;
-            mEmailFrom = from;
-            mEmailTo = to;
-            mEmailBody = body;
-        }
-    }
-
-    private class DatagramResponse {
-        DatagramResponseType type;
-        String mDeviceName;
-        String mRequest;
-        //newspaper data
-        String mNewspaperHtml;
-
-        public DatagramResponse(DatagramResponseType type, String newspaperHtml, String deviceName) {
-            this.type = type;
-            mDeviceName = deviceName;
-            mNewspaperHtml = Base64.encodeToString(newspaperHtml.getBytes(), Base64.NO_WRAP);
-        }
-
-        //EMAIL TYPE DATAGRAM
-//        public DatagramResponse(DatagramRequestType type, String deviceName, String from, String to, String body) {
-//            this.type = type;
-//            this.mDeviceName = deviceName;
-//            mEmailFrom = from;
-//            mEmailTo = to;
-//            mEmailBody = body;
-//        }
-
-        public String readNewspaperHtml() {
-            return new String(Base64.decode(mNewspaperHtml, Base64.NO_WRAP));
-        }
-    }
-
     private class DatagramListAdapter extends ArrayAdapter<DatagramRequest> {
         private int layoutResourceId;
         private Context context;
@@ -176,30 +139,9 @@ public class DatagramFragment extends Fragment {
                                 break;
                             }
                             case GET_NEWSPAPER: {
-                                DatagramResponse r;
-                                try {
-//                                    String html = IOUtils.toString(getContext().getResources().openRawResource(R.raw.html), StandardCharsets.UTF_8);
-//                                    r = new DatagramResponse(
-//                                            DatagramResponseType.GET_NEWSPAPER,
-//                                            html,
-//                                            mConnectedDeviceName);
-//                                    sendDatagramResponse(r);
-//                                    Log.i(TAG, html);
-                                    Intent intent = new Intent();
-                                    intent.setAction(Intent.ACTION_SEND);
-                                    intent.setType("text/html");
-
-
-
-                                    String path = Environment.getExternalStorageDirectory() + "/index.html";
-                                    Log.i(TAG, path);
-                                    intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(new File(path)));
-                                    startActivity(intent);
-                                }
-                                catch (Exception e) {
-                                    Log.e(TAG, "fuck", e);
-                                }
-
+                                File path = new File(Environment.getExternalStorageDirectory(), "index.html");
+                                Log.i(TAG, path.getPath());
+                                deliverNewspaper(d, path);
                                 break;
                             }
                             default: {
@@ -264,6 +206,21 @@ public class DatagramFragment extends Fragment {
      */
     private BluetoothDatagramService mChatService = null;
 
+    /**
+     * Decodes incoming requests, so the UI thread only ever sees them typed
+     */
+    private DatagramDecoder mDecoder = null;
+
+    /**
+     * Payloads by content hash, so an edition many villagers ask for is kept and sent once each
+     */
+    private BlobStore mBlobs;
+
+    /**
+     * Builds responses that mean reading, diffing or encoding a whole edition, off the UI thread
+     */
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -300,6 +257,10 @@ public class DatagramFragment extends Fragment {
         if (mChatService != null) {
             mChatService.stop();
         }
+        if (mDecoder != null) {
+            mDecoder.close();
+        }
+        mWorker.shutdownNow();
     }
 
     @Override
@@ -375,7 +336,31 @@ public class DatagramFragment extends Fragment {
 
 
         // Initialize the BluetoothDatagramService to perform bluetooth connections
+        mBlobs = new BlobStore(new File(getActivity().getFilesDir(), "blobs"));
         mChatService = new BluetoothDatagramService(getActivity(), mHandler);
+        mChatService.setMaxSessions(MAX_SESSIONS);
+        mChatService.setBlobStore(mBlobs);
+        mDecoder = new DatagramDecoder(new DatagramDecoder.Listener() {
+            @Override
+            public void onDatagram(Datagram datagram, int length) {
+                mHandler.obtainMessage(Constants.MESSAGE_DATAGRAM, length, datagram.mSessionId,
+                        datagram).sendToTarget();
+            }
+        });
+        try {
+            // Runs on one of the service's threads from now until onDestroy()
+            mChatService.setDatagramDecoder(mDecoder);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't start the datagram decoder", e);
+        }
+        mChatService.setPeerCache(new PeerCache(new File(getActivity().getFilesDir(), "peers")));
+        try {
+            // We are online, so we answer the requests villagers send to the gateway
+            mChatService.setBundleAgent(new BundleAgent(
+                    new BundleStore(new File(getActivity().getFilesDir(), "bundles")), true));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the bundle store", e);
+        }
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -437,8 +422,10 @@ public class DatagramFragment extends Fragment {
         }
 
         Log.i(TAG, "sending datagram");
-        byte[] send = gson.toJson(request).getBytes();
-        mChatService.write(send);
+        byte[] send = DatagramCodec.encode(request);
+        if (!mChatService.write(send)) {
+            Toast.makeText(getActivity(), R.string.write_queue_full, Toast.LENGTH_SHORT).show();
+        }
 
         // Check that there's actually something to send
 //        if (message.length() > 0) {
@@ -452,7 +439,133 @@ public class DatagramFragment extends Fragment {
 //        }
     }
 
-    private void sendDatagramResponse(DatagramResponse response) {
+    /**
+     * Answers a newspaper request with the given edition. The response is built and encoded on
+     * the worker, and only sent from the UI thread once it is ready.
+     */
+    private void deliverNewspaper(final DatagramRequest request, final File edition) {
+        final String deviceName = mConnectedDeviceName;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DatagramResponse response;
+                try {
+                    response = newspaperResponse(request, edition, deviceName);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't read the newspaper", e);
+                    return;
+                }
+                final byte[] encoded = DatagramCodec.encode(response);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mWorker.isShutdown()) {
+                            // Destroyed while the response was being built
+                            return;
+                        }
+                        sendDatagramResponse(response, encoded, request);
+                        if (response.mNewspaperBlob != null) {
+                            mChatService.writeBlob(request.mSessionId, response.mNewspaperBlob);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Builds the response to a newspaper request. When the requester told us which edition it
+     * holds, sends only the delta against it, unless that would not be any smaller. Otherwise
+     * the edition is referred to by its blob hash, so a requester that already has it gets
+     * nothing more. Blobs don't travel in bundles, so a request that came as one gets the
+     * edition inline.
+     *
+     * <p>Only a delta or an inline edition needs the edition in memory; a blob is streamed from
+     * the file into the blob store, and from there to the requester.</p>
+     *
+     * <p>Runs on the worker.</p>
+     */
+    private DatagramResponse newspaperResponse(DatagramRequest request, File edition,
+            String deviceName) throws IOException {
+        DatagramResponse response = new DatagramResponse(DatagramResponseType.GET_NEWSPAPER, deviceName);
+        if (request.mNewspaperSignature != null) {
+            byte[] html = readEdition(edition);
+            try {
+                Signature held = Signature.fromBytes(Base64.decode(request.mNewspaperSignature, Base64.NO_WRAP));
+                byte[] delta = Delta.create(held, html);
+                Log.i(TAG, "newspaper delta is " + delta.length + " of " + html.length + " bytes");
+                if (delta.length < html.length) {
+                    response.mNewspaperDelta = Base64.encodeToString(delta, Base64.NO_WRAP);
+                    return response;
+                }
+            } catch (ProtocolException | IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring a bad newspaper signature", e);
+            }
+        }
+        if (request.mBundleSource != null) {
+            response.mNewspaperHtml = Base64.encodeToString(readEdition(edition), Base64.NO_WRAP);
+            return response;
+        }
+        InputStream in = new FileInputStream(edition);
+        try {
+            response.mNewspaperBlob = mBlobs.put(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store the newspaper, sending it inline", e);
+            response.mNewspaperHtml = Base64.encodeToString(readEdition(edition), Base64.NO_WRAP);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return response;
+    }
+
+    private static byte[] readEdition(File edition) throws IOException {
+        InputStream in = new FileInputStream(edition);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Alerts overtake everything else on the link; newspapers can wait.
+     */
+    private static int laneFor(DatagramResponseType type) {
+        switch (type) {
+            case GET_ALERTS:
+                return BluetoothDatagramService.LANE_ALERTS;
+            case GET_NEWSPAPER:
+                return BluetoothDatagramService.LANE_BULK;
+            default:
+                return BluetoothDatagramService.LANE_REQUESTS;
+        }
+    }
+
+    /**
+     * The same order for responses relayed back as bundles.
+     */
+    private static int priorityFor(DatagramResponseType type) {
+        switch (type) {
+            case GET_ALERTS:
+                return TransferPlanner.PRIORITY_EXPEDITED;
+            case GET_NEWSPAPER:
+                return TransferPlanner.PRIORITY_BULK;
+            default:
+                return TransferPlanner.PRIORITY_NORMAL;
+        }
+    }
+
+    private void sendDatagramResponse(DatagramResponse response, byte[] send,
+            DatagramRequest request) {
+        // A request that came as a bundle is answered with one, relayed back however it can be
+        if (request.mBundleSource != null) {
+            Log.i(TAG, "sending datagram response as a bundle");
+            if (!mChatService.sendBundle(request.mBundleSource, send, priorityFor(response.type))) {
+                Log.e(TAG, "Couldn't send a response bundle");
+            }
+            return;
+        }
+
         // Check that we're actually connected before trying anything
         if (mChatService.getState() != BluetoothDatagramService.STATE_CONNECTED) {
             Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
@@ -460,8 +573,9 @@ public class DatagramFragment extends Fragment {
         }
 
         Log.i(TAG, "sending datagram response");
-        byte[] send = gson.toJson(response).getBytes();
-        mChatService.write(send);
+        if (!mChatService.write(request.mSessionId, send, laneFor(response.type))) {
+            Toast.makeText(getActivity(), R.string.write_queue_full, Toast.LENGTH_SHORT).show();
+        }
 
         // Check that there's actually something to send
 //        if (message.length() > 0) {
@@ -553,13 +667,19 @@ public class DatagramFragment extends Fragment {
                     //String writeMessage = new String(writeBuf);
                     //mConversationArrayAdapter.add("Me:  " + writeMessage);
                     break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    DatagramRequest req = gson.fromJson(readMessage, DatagramRequest.class);
-                    Log.i(TAG, "Message is: " + readMessage);
-                    mConversationArrayAdapter.add(req);
+                case Constants.MESSAGE_DATAGRAM:
+                    // Already decoded, whether it came directly or was relayed to us as a
+                    // bundle from a device we may never meet
+                    Datagram datagram = (Datagram) msg.obj;
+                    if (!(datagram instanceof DatagramRequest)) {
+                        Log.w(TAG, "Ignoring a " + datagram.getTypeName() + " response");
+                        break;
+                    }
+                    if (datagram.mBundleSource != null) {
+                        Log.i(TAG, "Bundle from " + datagram.mBundleSource);
+                    }
+                    Log.i(TAG, "Request is: " + datagram.getTypeName());
+                    mConversationArrayAdapter.add((DatagramRequest) datagram);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
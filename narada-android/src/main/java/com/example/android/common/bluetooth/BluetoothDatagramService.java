@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import com.example.android.common.dtn.DtnBundle;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.session.DatagramService;
+import com.example.android.common.transport.DatagramTransport;
+import com.example.android.common.transport.RfcommTransport;
+
+/**
+ * A {@link DatagramService} over Bluetooth RFCOMM that posts what happens on
+ * its connections to a Handler on the UI thread, as the messages in
+ * {@link Constants}.
+ */
+public class BluetoothDatagramService extends DatagramService {
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     *
+     * @param context The UI Activity Context
+     * @param handler A Handler to send messages back to the UI Activity
+     */
+    public BluetoothDatagramService(Context context, Handler handler) {
+        this(context, handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session over the given transport.
+     *
+     * @param context   The UI Activity Context
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport The transport to listen and connect on
+     */
+    public BluetoothDatagramService(Context context, Handler handler, DatagramTransport transport) {
+        super(transport, new HandlerListener(handler));
+    }
+
+    /**
+     * Start connecting to a remote device.
+     *
+     * @param device The BluetoothDevice to connect
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Turns what the service tells its listener into messages for the UI Activity.
+     */
+    private static class HandlerListener implements DatagramService.Listener {
+        private final Handler mmHandler;
+
+        HandlerListener(Handler handler) {
+            mmHandler = handler;
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+            // Give the new state to the Handler so the UI Activity can update
+            mmHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        }
+
+        @Override
+        public void onConnected(int sessionId, String deviceName) {
+            // Send the name of the connected device back to the UI Activity
+            Message msg = mmHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, sessionId, -1);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, deviceName);
+            msg.setData(bundle);
+            mmHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onConnectFailed() {
+            // Send a failure message back to the Activity
+            Message msg = mmHandler.obtainMessage(Constants.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.TOAST, "Unable to connect device");
+            msg.setData(bundle);
+            mmHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onConnectionLost(int sessionId) {
+            // Send a failure message back to the Activity
+            Message msg = mmHandler.obtainMessage(Constants.MESSAGE_TOAST, sessionId, -1);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.TOAST, "Device connection was lost");
+            msg.setData(bundle);
+            mmHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onDatagram(int sessionId, Frame frame) {
+            mmHandler.obtainMessage(Constants.MESSAGE_READ, frame.getLength(), sessionId, frame)
+                    .sendToTarget();
+        }
+
+        @Override
+        public void onDatagramWritten(int sessionId, byte[] datagram) {
+            mmHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, sessionId, datagram)
+                    .sendToTarget();
+        }
+
+        @Override
+        public void onBlob(int sessionId, String hash) {
+            mmHandler.obtainMessage(Constants.MESSAGE_BLOB, -1, sessionId, hash).sendToTarget();
+        }
+
+        @Override
+        public void onBundle(int sessionId, DtnBundle bundle) {
+            mmHandler.obtainMessage(Constants.MESSAGE_BUNDLE, bundle.getPayload().length,
+                    sessionId, bundle).sendToTarget();
+        }
+    }
+}
@@ -14,19 +14,30 @@
  * limitations under the License.
  */
 
-package com.example.android.naradaoffline;
+package com.example.android.common.bluetooth;
 
 /**
  * Defines several constants used between {@link BluetoothDatagramService} and the UI.
  */
 public interface Constants {
 
-    // Message types sent from the BluetoothDatagramService Handler
+    // Message types sent from the BluetoothDatagramService Handler. MESSAGE_READ
+    // and MESSAGE_WRITE carry the session id in arg2, MESSAGE_DEVICE_NAME in arg1.
+    // MESSAGE_READ hands over a pooled Frame that the receiver must release().
+    // MESSAGE_BLOB carries the session id in arg2 and the new blob's hash in obj.
+    // MESSAGE_BUNDLE carries the payload length in arg1, the session id it came
+    // over in arg2 and the DtnBundle in obj.
+    // MESSAGE_DATAGRAM is posted for what a DatagramDecoder decodes, in place of
+    // both of them; it carries the length in arg1, the session id in arg2 and the
+    // Datagram in obj.
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_BLOB = 6;
+    public static final int MESSAGE_BUNDLE = 7;
+    public static final int MESSAGE_DATAGRAM = 8;
 
     // Key names received from the BluetoothDatagramService Handler
     public static final String DEVICE_NAME = "device_name";
@@ -0,0 +1,151 @@
+package com.example.android.common.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * {@link DatagramTransport} over Bluetooth RFCOMM, the transport used on real devices.
+ *
+ * <p>Connecting to a known channel uses the hidden {@code BluetoothDevice.createRfcommSocket}
+ * methods to skip the SDP lookup, and a socket's channel is read from its hidden {@code mPort}
+ * field. Both are looked up reflectively; where they are missing those calls fail or report no
+ * channel, and callers fall back to the public API.</p>
+ */
+public class RfcommTransport implements DatagramTransport {
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new RfcommServerSocket(serverSocket);
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (secure) {
+            socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+        return new RfcommSocket(socket);
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure, int channel)
+            throws IOException {
+        if (channel <= 0) {
+            return createSocket(address, secure);
+        }
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        try {
+            Method create = BluetoothDevice.class.getMethod(
+                    secure ? "createRfcommSocket" : "createInsecureRfcommSocket", int.class);
+            return new RfcommSocket((BluetoothSocket) create.invoke(device, channel));
+        } catch (Exception e) {
+            throw new IOException("Can't create a socket on channel " + channel, e);
+        }
+    }
+
+    private class RfcommServerSocket implements TransportServerSocket {
+        private final BluetoothServerSocket mServerSocket;
+
+        RfcommServerSocket(BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            return new RfcommSocket(mServerSocket.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private class RfcommSocket implements TransportSocket {
+        private final BluetoothSocket mSocket;
+
+        RfcommSocket(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public int getChannel() {
+            try {
+                Field port = BluetoothSocket.class.getDeclaredField("mPort");
+                port.setAccessible(true);
+                int channel = port.getInt(mSocket);
+                return channel > 0 ? channel : -1;
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
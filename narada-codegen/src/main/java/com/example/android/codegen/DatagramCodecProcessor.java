@@ -0,0 +1,483 @@
+package com.example.android.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code <Name>Codec} class for every {@link WireMessage} class, in the same
+ * package. Each codec spells out, field by field, what reflection would otherwise work out on
+ * every message:
+ *
+ * <pre>
+ *   static final int KIND
+ *   static final String[] JSON_NAMES
+ *   static void writeBinary(Name value, ByteArrayOutputStream out)
+ *   static Name readBinary(byte[] data, int offset, int end) throws ProtocolException
+ *   static void writeJson(Name value, JsonWriter out) throws IOException
+ *   static Name fromJson(Map&lt;String, String&gt; fields) throws ProtocolException
+ * </pre>
+ *
+ * <p>The binary form is the kind and the type ordinal as varints, then each non-null field as
+ * its tag (number &lt;&lt; 3 | 2), a varint length and the bytes. Fields a reader doesn't know
+ * are skipped. The JSON form is what Gson makes of the same object: the type first, then
+ * superclass fields, then the class's own.</p>
+ *
+ * <p>Mistakes, such as a field number used twice or a field the codec can't reach, are compile
+ * errors on the offending element.</p>
+ */
+public class DatagramCodecProcessor extends AbstractProcessor {
+
+    private static final String STRING = "java.lang.String";
+
+    /**
+     * A field of a message, as the generated code sees it.
+     */
+    private static class Field {
+        final String mName;
+        final int mNumber;
+        final boolean mBase64;
+
+        Field(String name, int number, boolean base64) {
+            mName = name;
+            mNumber = number;
+            mBase64 = base64;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new HashSet<String>();
+        types.add(WireMessage.class.getCanonicalName());
+        types.add(WireField.class.getCanonicalName());
+        types.add(WireType.class.getCanonicalName());
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        Set<Integer> kinds = new HashSet<Integer>();
+        for (Element element : round.getElementsAnnotatedWith(WireMessage.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@WireMessage only goes on classes");
+                continue;
+            }
+            TypeElement message = (TypeElement) element;
+            int kind = message.getAnnotation(WireMessage.class).kind();
+            if (!kinds.add(kind)) {
+                error(message, "Another @WireMessage already has kind " + kind);
+                continue;
+            }
+            generate(message, kind);
+        }
+        return true;
+    }
+
+    private void generate(TypeElement message, int kind) {
+        if (message.getNestingKind() != NestingKind.TOP_LEVEL) {
+            error(message, "A @WireMessage must be a top-level class");
+            return;
+        }
+        if (message.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(message, "A @WireMessage can't be abstract");
+            return;
+        }
+        if (!hasNoArgConstructor(message)) {
+            error(message, "A @WireMessage needs a non-private constructor without arguments");
+            return;
+        }
+        VariableElement type = null;
+        List<Field> fields = new ArrayList<Field>();
+        Set<Integer> numbers = new HashSet<Integer>();
+        // Superclass fields first, as Gson writes them after the type
+        List<TypeElement> chain = new ArrayList<TypeElement>();
+        for (TypeElement t = message; t != null; t = superclassOf(t)) {
+            chain.add(t);
+        }
+        Collections.reverse(chain);
+        boolean ok = true;
+        for (TypeElement t : chain) {
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                WireField wire = field.getAnnotation(WireField.class);
+                boolean isType = field.getAnnotation(WireType.class) != null;
+                if (wire == null && !isType) {
+                    continue;
+                }
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                        || modifiers.contains(Modifier.FINAL)) {
+                    error(field, "A wire field can't be private, static or final");
+                    ok = false;
+                    continue;
+                }
+                if (isType) {
+                    if (wire != null || type != null || !isEnum(field.asType())) {
+                        error(field, "A message has exactly one @WireType, an enum field");
+                        ok = false;
+                        continue;
+                    }
+                    type = field;
+                    continue;
+                }
+                if (!field.asType().toString().equals(STRING)) {
+                    error(field, "@WireField only goes on String fields");
+                    ok = false;
+                } else if (wire.number() < 1 || wire.number() >= 1 << 28) {
+                    error(field, "Field numbers go from 1 to 2^28 - 1");
+                    ok = false;
+                } else if (!numbers.add(wire.number())) {
+                    error(field, "Field number " + wire.number() + " is already taken");
+                    ok = false;
+                } else {
+                    fields.add(new Field(field.getSimpleName().toString(), wire.number(),
+                            wire.base64()));
+                }
+            }
+        }
+        if (type == null) {
+            error(message, "A @WireMessage needs a @WireType field");
+            ok = false;
+        }
+        if (!ok) {
+            return;
+        }
+        try {
+            write(message, kind, type, fields);
+        } catch (IOException e) {
+            error(message, "Couldn't write its codec: " + e.getMessage());
+        }
+    }
+
+    private void write(TypeElement message, int kind, VariableElement type, List<Field> fields)
+            throws IOException {
+        String packageName = packageOf(message).getQualifiedName().toString();
+        String name = message.getSimpleName().toString();
+        String codec = name + "Codec";
+        String typeName = type.getSimpleName().toString();
+        String typeClass = type.asType().toString();
+        if (typeClass.startsWith(packageName + ".")
+                && typeClass.indexOf('.', packageName.length() + 1) < 0) {
+            typeClass = typeClass.substring(packageName.length() + 1);
+        }
+        boolean base64 = false;
+        for (Field field : fields) {
+            base64 |= field.mBase64;
+        }
+
+        Writer file = processingEnv.getFiler()
+                .createSourceFile(packageName + "." + codec, message)
+                .openWriter();
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("// Generated by DatagramCodecProcessor from " + name + "; don't edit.");
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("import com.google.gson.stream.JsonWriter;");
+            out.println();
+            out.println("import java.io.ByteArrayOutputStream;");
+            out.println("import java.io.IOException;");
+            out.println("import java.io.UnsupportedEncodingException;");
+            out.println("import java.net.ProtocolException;");
+            out.println("import java.util.Map;");
+            out.println();
+            out.println("final class " + codec + " {");
+            out.println();
+            out.println("    static final int KIND = " + kind + ";");
+            out.println();
+            out.print("    static final String[] JSON_NAMES = {\"" + typeName + "\"");
+            for (Field field : fields) {
+                out.print(", \"" + field.mName + "\"");
+            }
+            out.println("};");
+            out.println();
+            out.println("    private static final String CHARSET = \"UTF-8\";");
+            out.println();
+            if (base64) {
+                out.println("    private static final String BASE64 =");
+                out.println("            \"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+                        + "0123456789+/\";");
+                out.println();
+            }
+            out.println("    private " + codec + "() {");
+            out.println("    }");
+            out.println();
+
+            out.println("    static void writeBinary(" + name + " value,"
+                    + " ByteArrayOutputStream out) {");
+            out.println("        writeVarint(out, KIND);");
+            out.println("        writeVarint(out, value." + typeName + ".ordinal());");
+            for (Field field : fields) {
+                out.println("        if (value." + field.mName + " != null) {");
+                out.println("            writeBytes(out, " + field.mNumber + ", "
+                        + (field.mBase64
+                        ? "fromBase64(value." + field.mName + ")"
+                        : "utf8(value." + field.mName + ")") + ");");
+                out.println("        }");
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    static " + name + " readBinary(byte[] data, int offset, int end)");
+            out.println("            throws ProtocolException {");
+            out.println("        int[] pos = {offset};");
+            out.println("        " + name + " value = new " + name + "();");
+            out.println("        int ordinal = readVarint(data, pos, end);");
+            out.println("        " + typeClass + "[] types = " + typeClass + ".values();");
+            out.println("        if (ordinal >= types.length) {");
+            out.println("            throw new ProtocolException(\"Unknown " + name
+                    + " type \" + ordinal);");
+            out.println("        }");
+            out.println("        value." + typeName + " = types[ordinal];");
+            out.println("        while (pos[0] < end) {");
+            out.println("            int tag = readVarint(data, pos, end);");
+            out.println("            if ((tag & 7) == 0) {");
+            out.println("                // A newer peer's varint field");
+            out.println("                readVarint(data, pos, end);");
+            out.println("                continue;");
+            out.println("            }");
+            out.println("            if ((tag & 7) != 2) {");
+            out.println("                throw new ProtocolException(\"Unknown wire type \""
+                    + " + (tag & 7));");
+            out.println("            }");
+            out.println("            int length = readVarint(data, pos, end);");
+            out.println("            if (length > end - pos[0]) {");
+            out.println("                throw new ProtocolException(\"Field too long\");");
+            out.println("            }");
+            out.println("            int start = pos[0];");
+            out.println("            pos[0] += length;");
+            out.println("            switch (tag >>> 3) {");
+            for (Field field : fields) {
+                out.println("                case " + field.mNumber + ":");
+                out.println("                    value." + field.mName + " = "
+                        + (field.mBase64 ? "base64" : "string") + "(data, start, length);");
+                out.println("                    break;");
+            }
+            out.println("                default:");
+            out.println("                    // A newer peer's field");
+            out.println("                    break;");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return value;");
+            out.println("    }");
+            out.println();
+
+            out.println("    static void writeJson(" + name + " value, JsonWriter out)"
+                    + " throws IOException {");
+            out.println("        out.beginObject();");
+            out.println("        out.name(\"" + typeName + "\").value(value." + typeName
+                    + ".name());");
+            for (Field field : fields) {
+                out.println("        if (value." + field.mName + " != null) {");
+                out.println("            out.name(\"" + field.mName + "\").value(value."
+                        + field.mName + ");");
+                out.println("        }");
+            }
+            out.println("        out.endObject();");
+            out.println("    }");
+            out.println();
+
+            out.println("    static " + name + " fromJson(Map<String, String> fields)"
+                    + " throws ProtocolException {");
+            out.println("        String type = fields.get(\"" + typeName + "\");");
+            out.println("        if (type == null) {");
+            out.println("            throw new ProtocolException(\"" + name
+                    + " without a type\");");
+            out.println("        }");
+            out.println("        " + name + " value = new " + name + "();");
+            out.println("        try {");
+            out.println("            value." + typeName + " = " + typeClass + ".valueOf(type);");
+            out.println("        } catch (IllegalArgumentException e) {");
+            out.println("            throw new ProtocolException(\"Unknown " + name
+                    + " type \" + type);");
+            out.println("        }");
+            for (Field field : fields) {
+                out.println("        value." + field.mName + " = fields.get(\"" + field.mName
+                        + "\");");
+            }
+            out.println("        return value;");
+            out.println("    }");
+            out.println();
+
+            writeHelpers(out, base64);
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeHelpers(PrintWriter out, boolean base64) {
+        out.println("    private static void writeBytes(ByteArrayOutputStream out, int number,"
+                + " byte[] value) {");
+        out.println("        writeVarint(out, number << 3 | 2);");
+        out.println("        writeVarint(out, value.length);");
+        out.println("        out.write(value, 0, value.length);");
+        out.println("    }");
+        out.println();
+        out.println("    private static void writeVarint(ByteArrayOutputStream out, int value) {");
+        out.println("        while ((value & ~0x7F) != 0) {");
+        out.println("            out.write((value & 0x7F) | 0x80);");
+        out.println("            value >>>= 7;");
+        out.println("        }");
+        out.println("        out.write(value);");
+        out.println("    }");
+        out.println();
+        out.println("    private static int readVarint(byte[] data, int[] pos, int end)");
+        out.println("            throws ProtocolException {");
+        out.println("        int value = 0;");
+        out.println("        for (int shift = 0; shift < 32; shift += 7) {");
+        out.println("            if (pos[0] >= end) {");
+        out.println("                throw new ProtocolException(\"Short datagram\");");
+        out.println("            }");
+        out.println("            byte b = data[pos[0]++];");
+        out.println("            value |= (b & 0x7F) << shift;");
+        out.println("            if ((b & 0x80) == 0) {");
+        out.println("                if (value < 0) {");
+        out.println("                    throw new ProtocolException(\"Varint out of range\");");
+        out.println("                }");
+        out.println("                return value;");
+        out.println("            }");
+        out.println("        }");
+        out.println("        throw new ProtocolException(\"Varint too long\");");
+        out.println("    }");
+        out.println();
+        out.println("    private static byte[] utf8(String value) {");
+        out.println("        try {");
+        out.println("            return value.getBytes(CHARSET);");
+        out.println("        } catch (UnsupportedEncodingException e) {");
+        out.println("            throw new IllegalStateException(e);");
+        out.println("        }");
+        out.println("    }");
+        out.println();
+        out.println("    private static String string(byte[] data, int start, int length) {");
+        out.println("        try {");
+        out.println("            return new String(data, start, length, CHARSET);");
+        out.println("        } catch (UnsupportedEncodingException e) {");
+        out.println("            throw new IllegalStateException(e);");
+        out.println("        }");
+        out.println("    }");
+        if (base64) {
+            out.println();
+            // Written out rather than using android.util.Base64, so that the codecs also run
+            // on a plain JVM; java.util.Base64 needs API level 26
+            out.println("    private static String base64(byte[] data, int start, int length) {");
+            out.println("        StringBuilder out = new StringBuilder((length + 2) / 3 * 4);");
+            out.println("        for (int i = 0; i < length; i += 3) {");
+            out.println("            int count = Math.min(3, length - i);");
+            out.println("            int bits = (data[start + i] & 0xFF) << 16;");
+            out.println("            if (count > 1) {");
+            out.println("                bits |= (data[start + i + 1] & 0xFF) << 8;");
+            out.println("            }");
+            out.println("            if (count > 2) {");
+            out.println("                bits |= data[start + i + 2] & 0xFF;");
+            out.println("            }");
+            out.println("            for (int j = 0; j < 4; j++) {");
+            out.println("                out.append(j <= count"
+                    + " ? BASE64.charAt(bits >> (18 - 6 * j) & 0x3F) : '=');");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return out.toString();");
+            out.println("    }");
+            out.println();
+            out.println("    private static byte[] fromBase64(String value) {");
+            out.println("        int end = value.length();");
+            out.println("        if (end > 0 && value.charAt(end - 1) == '=') {");
+            out.println("            end -= end > 1 && value.charAt(end - 2) == '=' ? 2 : 1;");
+            out.println("        }");
+            out.println("        if (end % 4 == 1) {");
+            out.println("            throw new IllegalArgumentException(\"Bad Base64 length\");");
+            out.println("        }");
+            out.println("        byte[] bytes = new byte[end * 3 / 4];");
+            out.println("        int bits = 0;");
+            out.println("        int pending = 0;");
+            out.println("        int pos = 0;");
+            out.println("        for (int i = 0; i < end; i++) {");
+            out.println("            char c = value.charAt(i);");
+            out.println("            int digit;");
+            out.println("            if (c >= 'A' && c <= 'Z') {");
+            out.println("                digit = c - 'A';");
+            out.println("            } else if (c >= 'a' && c <= 'z') {");
+            out.println("                digit = c - 'a' + 26;");
+            out.println("            } else if (c >= '0' && c <= '9') {");
+            out.println("                digit = c - '0' + 52;");
+            out.println("            } else if (c == '+') {");
+            out.println("                digit = 62;");
+            out.println("            } else if (c == '/') {");
+            out.println("                digit = 63;");
+            out.println("            } else {");
+            out.println("                throw new IllegalArgumentException(\"Bad Base64\");");
+            out.println("            }");
+            out.println("            bits = bits << 6 | digit;");
+            out.println("            pending += 6;");
+            out.println("            if (pending >= 8) {");
+            out.println("                pending -= 8;");
+            out.println("                bytes[pos++] = (byte) (bits >> pending);");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return bytes;");
+            out.println("    }");
+        }
+    }
+
+    private static boolean hasNoArgConstructor(TypeElement type) {
+        for (ExecutableElement constructor
+                : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private static boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
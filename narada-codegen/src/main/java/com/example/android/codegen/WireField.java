@@ -0,0 +1,26 @@
+package com.example.android.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@code String} field of a {@link WireMessage} class, or of one of its superclasses, as
+ * going on the wire. Fields that are null are left out.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface WireField {
+
+    /**
+     * The field's number in the binary format, from 1; never reuse one.
+     */
+    int number();
+
+    /**
+     * True if the field holds Base64, as JSON needs it to; the binary format carries the raw
+     * bytes instead.
+     */
+    boolean base64() default false;
+}
@@ -0,0 +1,24 @@
+package com.example.android.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class that goes on the wire as a datagram. {@link DatagramCodecProcessor} generates a
+ * {@code <Name>Codec} class next to it, with straight-line binary and JSON encoding and decoding
+ * of its {@link WireField}s and its {@link WireType}.
+ *
+ * <p>The class needs a constructor without arguments that the generated codec, in the same
+ * package, can call.</p>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface WireMessage {
+
+    /**
+     * Tells this class apart from the others on the wire; never reuse one.
+     */
+    int kind();
+}
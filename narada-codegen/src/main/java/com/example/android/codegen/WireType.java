@@ -0,0 +1,16 @@
+package com.example.android.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the enum field that says what a {@link WireMessage} is for. Every message has exactly
+ * one, and it is never null. The binary format carries its ordinal, so new values only ever go
+ * at the end of the enum.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface WireType {
+}
@@ -0,0 +1,78 @@
+package com.example.android.common.datagram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a typical email request and a newspaper response carrying a whole
+ * edition, in the binary format and in JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DatagramCodecBenchmark {
+
+    // DatagramCodec.FORMAT_BINARY or FORMAT_JSON
+    @Param({"0", "1"})
+    public int mFormat;
+
+    @Param({"65536"})
+    public int mEditionLength;
+
+    private DatagramRequest mEmail;
+    private DatagramResponse mNewspaper;
+    private byte[] mEncodedEmail;
+    private byte[] mEncodedNewspaper;
+
+    @Setup
+    public void setUp() {
+        mEmail = new DatagramRequest(DatagramRequestType.SEND_EMAIL, "Villager phone",
+                "villager@example.com", "family@example.com",
+                "The harvest is in. We will come to town on Saturday for the market.");
+
+        byte[] edition = new byte[mEditionLength];
+        new Random(1).nextBytes(edition);
+        mNewspaper = new DatagramResponse(DatagramResponseType.GET_NEWSPAPER, "Courier");
+        mNewspaper.mNewspaperHtml = Base64.getEncoder().encodeToString(edition);
+
+        mEncodedEmail = DatagramCodec.encode(mEmail, mFormat);
+        mEncodedNewspaper = DatagramCodec.encode(mNewspaper, mFormat);
+    }
+
+    @Benchmark
+    public byte[] encodeEmail() {
+        return DatagramCodec.encode(mEmail, mFormat);
+    }
+
+    @Benchmark
+    public Datagram decodeEmail() throws ProtocolException {
+        return DatagramCodec.decode(mEncodedEmail, 0, mEncodedEmail.length);
+    }
+
+    @Benchmark
+    public byte[] encodeNewspaper() {
+        return DatagramCodec.encode(mNewspaper, mFormat);
+    }
+
+    @Benchmark
+    public Datagram decodeNewspaper() throws ProtocolException {
+        return DatagramCodec.decode(mEncodedNewspaper, 0, mEncodedNewspaper.length);
+    }
+}
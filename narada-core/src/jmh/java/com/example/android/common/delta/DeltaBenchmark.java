@@ -0,0 +1,73 @@
+package com.example.android.common.delta;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out and applies the delta between two newspaper editions that share most of their
+ * bytes, the way a courier and a villager do for each new edition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int mEditionLength;
+
+    // Stretches of the new edition that differ from the old one
+    @Param({"16"})
+    public int mEdits;
+
+    private byte[] mOld;
+    private byte[] mNew;
+    private Signature mSignature;
+    private byte[] mDelta;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mOld = new byte[mEditionLength];
+        random.nextBytes(mOld);
+        mNew = mOld.clone();
+        for (int i = 0; i < mEdits; i++) {
+            int start = random.nextInt(mEditionLength - 256);
+            for (int j = 0; j < 256; j++) {
+                mNew[start + j] = (byte) random.nextInt();
+            }
+        }
+        mSignature = Signature.of(mOld);
+        mDelta = Delta.create(mSignature, mNew);
+    }
+
+    @Benchmark
+    public Signature signature() {
+        return Signature.of(mOld);
+    }
+
+    @Benchmark
+    public byte[] create() {
+        return Delta.create(mSignature, mNew);
+    }
+
+    @Benchmark
+    public byte[] apply() throws ProtocolException {
+        return Delta.apply(mOld, mDelta);
+    }
+}
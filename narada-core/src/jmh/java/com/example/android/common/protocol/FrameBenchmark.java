@@ -0,0 +1,87 @@
+package com.example.android.common.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads a stream of frames, with and without a {@link BufferPool}, in memory so
+ * that only the framing and checksums are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"256", "16384"})
+    public int mPayloadLength;
+
+    private byte[] mPayload;
+    private byte[] mStream;
+    private BufferPool mPool;
+    private ByteArrayOutputStream mOut;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPayload = new byte[mPayloadLength];
+        new Random(1).nextBytes(mPayload);
+        mOut = new ByteArrayOutputStream(FRAMES * (Frame.HEADER_LENGTH + mPayloadLength));
+        FrameWriter writer = new FrameWriter(mOut);
+        for (int i = 0; i < FRAMES; i++) {
+            writer.writeFrame(Frame.TYPE_DATAGRAM, mPayload);
+        }
+        mStream = mOut.toByteArray();
+        mPool = new BufferPool(mPayloadLength, 4);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        mOut.reset();
+        FrameWriter writer = new FrameWriter(mOut);
+        for (int i = 0; i < FRAMES; i++) {
+            writer.writeFrame(Frame.TYPE_DATAGRAM, mPayload);
+        }
+        return mOut.size();
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(mStream));
+        int total = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            total += reader.readFrame().getLength();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int readPooled() throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(mStream), mPool);
+        int total = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            Frame frame = reader.readFrame();
+            total += frame.getLength();
+            frame.release();
+        }
+        return total;
+    }
+}
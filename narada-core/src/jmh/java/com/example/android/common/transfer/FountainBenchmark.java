@@ -0,0 +1,279 @@
+package com.example.android.common.transfer;
+
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameReader;
+import com.example.android.common.protocol.FrameSink;
+import com.example.android.common.protocol.FrameWriter;
+import com.example.android.common.transport.MemoryPipe;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers a payload to a receiver by {@link FountainTransfers} and by plain
+ * {@link ChunkedTransfers}, over {@link MemoryPipe}s that drop frames at a set rate, in short
+ * contacts with whichever of the senders comes by next.
+ *
+ * <p>The score is deliveries per second of simulation. Goodput is reported next to it as the
+ * {@code mPayloadBytes} and {@code mAirBytes} counters: the bytes delivered, and every byte
+ * put on the air for them, acknowledgements and lost frames included. Their ratio is the share
+ * of the link the payload got. Acknowledgements are never lost, which favours chunked
+ * transfers.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FountainBenchmark {
+
+    private static final int PAYLOAD_LENGTH = 256 * 1024;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int CHUNK_WINDOW = 8;
+    // Frames a sender gets on the air before the contact ends
+    private static final int CONTACT_FRAMES = 64;
+    // Gives up on a payload that takes longer than this
+    private static final int MAX_CONTACTS = 10000;
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private static final String RECEIVER = "villager";
+
+    @Param({"0", "0.05", "0.2"})
+    public double mLoss;
+
+    @Param({"1", "3"})
+    public int mSenders;
+
+    private byte[] mPayload;
+    private Random mRandom;
+
+    /**
+     * What went over the air during an iteration.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Goodput {
+        public long mPayloadBytes;
+        public long mAirBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mPayloadBytes = 0;
+            mAirBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[PAYLOAD_LENGTH];
+        new Random(1).nextBytes(mPayload);
+        mRandom = new Random(2);
+    }
+
+    @Benchmark
+    public int chunked(Goodput goodput) throws IOException {
+        Side receiver = new Chunked();
+        Side[] senders = new Side[mSenders];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Chunked();
+        }
+        return deliver(receiver, senders, goodput);
+    }
+
+    @Benchmark
+    public int fountain(Goodput goodput) throws IOException {
+        Side receiver = new Fountain();
+        Side[] senders = new Side[mSenders];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Fountain();
+        }
+        return deliver(receiver, senders, goodput);
+    }
+
+    /**
+     * Runs contacts with random senders until the receiver has the payload.
+     *
+     * @return How many contacts it took
+     */
+    private int deliver(Side receiver, Side[] senders, Goodput goodput) throws IOException {
+        boolean[] sending = new boolean[senders.length];
+        for (int contact = 1; contact <= MAX_CONTACTS; contact++) {
+            int s = mRandom.nextInt(senders.length);
+            String sender = "courier" + s;
+            Air down = new Air(mLoss, CONTACT_FRAMES);
+            Air up = new Air(0, Integer.MAX_VALUE);
+            senders[s].attach(RECEIVER, down);
+            receiver.attach(sender, up);
+            if (!sending[s]) {
+                senders[s].send(RECEIVER, mPayload);
+                sending[s] = true;
+            }
+            boolean delivered = false;
+            boolean moved = true;
+            while (moved && !delivered) {
+                moved = false;
+                Frame frame;
+                while (!delivered && (frame = down.receive()) != null) {
+                    delivered = receiver.onFrame(sender, frame);
+                    moved = true;
+                }
+                while ((frame = up.receive()) != null) {
+                    senders[s].onFrame(RECEIVER, frame);
+                    moved = true;
+                }
+                senders[s].pump(RECEIVER);
+            }
+            senders[s].detach(RECEIVER, down);
+            receiver.detach(sender, up);
+            goodput.mAirBytes += down.mSent + up.mSent;
+            if (delivered) {
+                goodput.mPayloadBytes += mPayload.length;
+                return contact;
+            }
+        }
+        throw new IllegalStateException("Not delivered in " + MAX_CONTACTS + " contacts");
+    }
+
+    /**
+     * One direction of a contact: frames go through a pipe unless they are lost on the way.
+     * The sender is told a frame went out either way, and is turned away once the pipe is full
+     * or the contact is over.
+     */
+    private class Air implements FrameSink {
+        private final MemoryPipe mPipe = new MemoryPipe(PIPE_CAPACITY);
+        private final InputStream mIn = mPipe.getInputStream();
+        private final FrameWriter mWriter = new FrameWriter(mPipe.getOutputStream());
+        private final FrameReader mReader = new FrameReader(mIn);
+        private final double mLoss;
+        private int mFramesLeft;
+        long mSent;
+
+        Air(double loss, int frames) {
+            mLoss = loss;
+            mFramesLeft = frames;
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            int length = Frame.HEADER_LENGTH + frame.getLength();
+            try {
+                if (mFramesLeft == 0 || mIn.available() + length > PIPE_CAPACITY) {
+                    return false;
+                }
+                mFramesLeft--;
+                mSent += length;
+                if (mRandom.nextDouble() >= mLoss) {
+                    mWriter.writeFrame(frame);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+
+        Frame receive() throws IOException {
+            return mIn.available() == 0 ? null : mReader.readFrame();
+        }
+    }
+
+    /**
+     * Either kind of transfer, on either end of the link.
+     */
+    private interface Side {
+        void attach(String peer, FrameSink sink);
+
+        void detach(String peer, FrameSink sink);
+
+        void send(String peer, byte[] data);
+
+        void pump(String peer);
+
+        /**
+         * @return Whether the frame completed the payload
+         */
+        boolean onFrame(String peer, Frame frame) throws IOException;
+    }
+
+    private class Chunked implements Side {
+        private final ChunkedTransfers mTransfers = new ChunkedTransfers(BLOCK_SIZE, CHUNK_WINDOW);
+
+        @Override
+        public void attach(String peer, FrameSink sink) {
+            mTransfers.attach(peer, sink);
+        }
+
+        @Override
+        public void detach(String peer, FrameSink sink) {
+            mTransfers.detach(peer, sink);
+        }
+
+        @Override
+        public void send(String peer, byte[] data) {
+            mTransfers.send(peer, data, null);
+        }
+
+        @Override
+        public void pump(String peer) {
+            mTransfers.pump(peer);
+        }
+
+        @Override
+        public boolean onFrame(String peer, Frame frame) throws IOException {
+            if (frame.getType() == Frame.TYPE_CHUNK_ACK) {
+                mTransfers.onAck(peer, frame);
+                return false;
+            }
+            return mTransfers.onChunk(peer, frame) != null;
+        }
+    }
+
+    private class Fountain implements Side {
+        private final FountainTransfers mTransfers = new FountainTransfers(BLOCK_SIZE);
+
+        @Override
+        public void attach(String peer, FrameSink sink) {
+            mTransfers.attach(peer, sink);
+        }
+
+        @Override
+        public void detach(String peer, FrameSink sink) {
+            mTransfers.detach(peer, sink);
+        }
+
+        @Override
+        public void send(String peer, byte[] data) {
+            mTransfers.send(peer, data, null);
+        }
+
+        @Override
+        public void pump(String peer) {
+            mTransfers.pump(peer);
+        }
+
+        @Override
+        public boolean onFrame(String peer, Frame frame) throws IOException {
+            if (frame.getType() == Frame.TYPE_SYMBOL_DONE) {
+                mTransfers.onDone(peer, frame);
+                return false;
+            }
+            return mTransfers.onSymbol(peer, frame) != null;
+        }
+    }
+}
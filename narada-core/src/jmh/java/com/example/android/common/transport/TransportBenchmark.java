@@ -0,0 +1,228 @@
+package com.example.android.common.transport;
+
+import com.example.android.common.dtn.DtnBundle;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.session.DatagramService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchanges datagrams between two {@link DatagramService}s over each plain-JVM transport: the
+ * {@link InMemoryTransport} and the {@link TcpLoopbackTransport}. One service listens and the
+ * other connects to it, so every datagram goes through accept, connect, the framed read and
+ * write paths, and the acknowledgements back.
+ *
+ * <p>{@code roundTrip} echoes one datagram over a standing session. {@code session} closes the
+ * client's session, waits for the server to see it go and listen again, then reconnects and
+ * echoes one datagram. Each operation checks what arrived, and fails the run if nothing arrives
+ * in time or the bytes differ.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final int DATAGRAM_LENGTH = 256;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Param({"memory", "tcp"})
+    public String mTransport;
+
+    /**
+     * One side of the exchange, queueing what its service reports for the benchmark thread.
+     */
+    private static class Endpoint implements DatagramService.Listener {
+        final DatagramService mService;
+        final BlockingQueue<Integer> mConnected = new LinkedBlockingQueue<Integer>();
+        final BlockingQueue<Integer> mLost = new LinkedBlockingQueue<Integer>();
+        final BlockingQueue<byte[]> mDatagrams = new LinkedBlockingQueue<byte[]>();
+
+        Endpoint(DatagramTransport transport) {
+            mService = new DatagramService(transport, this);
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onConnected(int sessionId, String deviceName) {
+            mConnected.add(sessionId);
+        }
+
+        @Override
+        public void onConnectFailed() {
+            mConnected.add(-1);
+        }
+
+        @Override
+        public void onConnectionLost(int sessionId) {
+            mLost.add(sessionId);
+        }
+
+        @Override
+        public void onDatagram(int sessionId, Frame frame) {
+            try {
+                mDatagrams.add(Arrays.copyOf(frame.getPayload(), frame.getLength()));
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onDatagramWritten(int sessionId, byte[] datagram) {
+        }
+
+        @Override
+        public void onBlob(int sessionId, String hash) {
+        }
+
+        @Override
+        public void onBundle(int sessionId, DtnBundle bundle) {
+        }
+    }
+
+    private Endpoint mServer;
+    private Endpoint mClient;
+    private String mServerAddress;
+    private int mServerSession;
+    private int mClientSession;
+    private byte[] mDatagram;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        DatagramTransport serverTransport;
+        DatagramTransport clientTransport;
+        if ("memory".equals(mTransport)) {
+            InMemoryTransport.Network network = new InMemoryTransport.Network();
+            serverTransport = new InMemoryTransport(network, "server");
+            clientTransport = new InMemoryTransport(network, "client");
+            mServerAddress = "server";
+        } else {
+            int basePort = freeBasePort();
+            serverTransport = new TcpLoopbackTransport(basePort);
+            clientTransport = new TcpLoopbackTransport(freeBasePort());
+            mServerAddress = String.valueOf(basePort);
+        }
+        mServer = new Endpoint(serverTransport);
+        mClient = new Endpoint(clientTransport);
+        mDatagram = new byte[DATAGRAM_LENGTH];
+        new Random(1).nextBytes(mDatagram);
+        mServer.mService.start();
+        connect();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClient.mService.stop();
+        mServer.mService.stop();
+    }
+
+    @Benchmark
+    public int roundTrip() throws InterruptedException {
+        return echo();
+    }
+
+    @Benchmark
+    public int session() throws InterruptedException {
+        mClient.mService.stop();
+        take(mServer.mLost, "the server to see the session close");
+        // A single-peer service stopped listening when the session began, and starts again
+        // right after reporting the loss
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mServer.mService.getState() != DatagramService.STATE_LISTEN) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The server never listened again");
+            }
+            Thread.yield();
+        }
+        connect();
+        return echo();
+    }
+
+    private void connect() throws InterruptedException {
+        mClient.mService.connect(mServerAddress, false);
+        mClientSession = take(mClient.mConnected, "the client to connect");
+        if (mClientSession < 0) {
+            throw new IllegalStateException("Couldn't connect to " + mServerAddress);
+        }
+        mServerSession = take(mServer.mConnected, "the server to accept");
+    }
+
+    /**
+     * Sends the datagram to the server and back, and returns its length.
+     */
+    private int echo() throws InterruptedException {
+        write(mClient, mClientSession, mDatagram);
+        byte[] received = take(mServer.mDatagrams, "the datagram to reach the server");
+        write(mServer, mServerSession, received);
+        byte[] echoed = take(mClient.mDatagrams, "the datagram to come back");
+        if (!Arrays.equals(echoed, mDatagram)) {
+            throw new IllegalStateException("The datagram changed on the way");
+        }
+        return echoed.length;
+    }
+
+    private static void write(Endpoint endpoint, int sessionId, byte[] datagram) {
+        // The window only refuses while acknowledgements are on their way
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!endpoint.mService.write(sessionId, datagram)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Session " + sessionId + " refused a datagram");
+            }
+            Thread.yield();
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue, String what) throws InterruptedException {
+        T item = queue.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (item == null) {
+            throw new IllegalStateException("Timed out waiting for " + what);
+        }
+        return item;
+    }
+
+    /**
+     * Finds a port that is free along with the one after it, for a {@link TcpLoopbackTransport}.
+     */
+    private static int freeBasePort() throws IOException {
+        while (true) {
+            ServerSocket first = new ServerSocket(0);
+            try {
+                int port = first.getLocalPort();
+                if (port < 0xFFFF) {
+                    try {
+                        new ServerSocket(port + 1).close();
+                        return port;
+                    } catch (IOException e) {
+                        // Taken; try another
+                    }
+                }
+            } finally {
+                first.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.common.blob;
+
+import com.example.android.common.protocol.Frame;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A {@link Frame#TYPE_BLOB_HAVE} announcement: the hashes of the blobs the sender already holds,
+ * so its peer never sends one of them again.
+ *
+ * <p>The payload is a count followed by that many raw 20-byte hashes.</p>
+ */
+public class BlobInventory {
+
+    // As many hashes as fit in one frame
+    public static final int MAX_HASHES = (Frame.MAX_PAYLOAD_LENGTH - 4) / BlobStore.HASH_LENGTH;
+
+    private final List<String> mHashes;
+
+    public BlobInventory(Collection<String> hashes) {
+        mHashes = new ArrayList<String>(hashes);
+        if (mHashes.size() > MAX_HASHES) {
+            // Most callers list oldest first; the newest blobs are the likeliest to be asked for
+            mHashes.subList(0, mHashes.size() - MAX_HASHES).clear();
+        }
+    }
+
+    public List<String> getHashes() {
+        return mHashes;
+    }
+
+    public Frame toFrame() {
+        byte[] payload = new byte[4 + mHashes.size() * BlobStore.HASH_LENGTH];
+        int count = mHashes.size();
+        payload[0] = (byte) (count >>> 24);
+        payload[1] = (byte) (count >>> 16);
+        payload[2] = (byte) (count >>> 8);
+        payload[3] = (byte) count;
+        int offset = 4;
+        for (String hash : mHashes) {
+            System.arraycopy(BlobStore.fromHex(hash), 0, payload, offset, BlobStore.HASH_LENGTH);
+            offset += BlobStore.HASH_LENGTH;
+        }
+        return new Frame(Frame.TYPE_BLOB_HAVE, payload);
+    }
+
+    public static BlobInventory fromFrame(Frame frame) throws ProtocolException {
+        byte[] payload = frame.getPayload();
+        int length = frame.getLength();
+        if (length < 4) {
+            throw new ProtocolException("Short blob inventory");
+        }
+        int count = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16)
+                | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        if (count < 0 || count > (length - 4) / BlobStore.HASH_LENGTH) {
+            throw new ProtocolException("Bad blob inventory count " + count);
+        }
+        List<String> hashes = new ArrayList<String>(count);
+        byte[] hash = new byte[BlobStore.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(payload, 4 + i * BlobStore.HASH_LENGTH, hash, 0, hash.length);
+            hashes.add(BlobStore.toHex(hash));
+        }
+        return new BlobInventory(hashes);
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.android.common.blob;
+
+import com.example.android.common.compress.CompressionCodec;
+import com.example.android.common.compress.CompressionCodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payloads kept on disk under the hex SHA-1 of their content. Storing the same bytes twice
+ * costs nothing, so anything that may be requested by many peers, a newspaper edition above
+ * all, is held once and referred to by its hash.
+ *
+ * <p>Blobs can be stored from and read as streams, through a fixed-size buffer, so how large an
+ * edition is makes no difference to how much memory handling it takes. A blob can also be kept
+ * encoded for sending, alongside the blob itself, under its hash and the codec id.</p>
+ */
+public class BlobStore {
+
+    public static final int HASH_LENGTH = 20;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDir;
+
+    /**
+     * @param dir Directory to keep blobs in; created if missing
+     */
+    public BlobStore(File dir) {
+        mDir = dir;
+        mDir.mkdirs();
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Returns the hash a blob is stored under.
+     */
+    public static String hash(byte[] data) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Stores a blob unless an identical one is already here.
+     *
+     * @return The blob's hash
+     */
+    public synchronized String put(byte[] data) throws IOException {
+        String hash = hash(data);
+        File file = file(hash);
+        if (file.exists()) {
+            return hash;
+        }
+        // Write aside and rename, so a reader never sees half a blob
+        File temp = new File(mDir, hash + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't store blob " + hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Stores a blob read from {@code in} unless an identical one is already here. The stream is
+     * read to its end but not closed.
+     *
+     * @return The blob's hash
+     */
+    public String put(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        // The hash is only known at the end, so write under a name of our own first
+        File temp = File.createTempFile("blob", ".tmp", mDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                copy(new DigestInputStream(in, digest), out);
+            } finally {
+                out.close();
+            }
+            String hash = toHex(digest.digest());
+            synchronized (this) {
+                File file = file(hash);
+                if (!file.exists() && !temp.renameTo(file)) {
+                    throw new IOException("Couldn't store blob " + hash);
+                }
+            }
+            return hash;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns a stream of a blob's content, or null if we don't have it.
+     */
+    public synchronized InputStream open(String hash) throws IOException {
+        if (!isHash(hash)) {
+            return null;
+        }
+        File file = file(hash);
+        return file.exists() ? new FileInputStream(file) : null;
+    }
+
+    /**
+     * Returns a blob's length in bytes, or -1 if we don't have it.
+     */
+    public synchronized long length(String hash) {
+        if (!isHash(hash)) {
+            return -1;
+        }
+        File file = file(hash);
+        return file.exists() ? file.length() : -1;
+    }
+
+    /**
+     * Returns a file holding a blob encoded with {@code codec}, as
+     * {@link CompressionCodecs#encode} would encode it, or null if we don't have the blob. The
+     * encoding is made on first use and kept until the blob is removed.
+     */
+    public synchronized File encoded(String hash, CompressionCodec codec) throws IOException {
+        if (!isHash(hash) || !file(hash).exists()) {
+            return null;
+        }
+        File file = new File(mDir, hash + "." + codec.getId());
+        if (file.exists()) {
+            return file;
+        }
+        File temp = new File(mDir, hash + "." + codec.getId() + ".tmp");
+        InputStream in = new FileInputStream(file(hash));
+        try {
+            OutputStream out = CompressionCodecs.encoding(codec, new FileOutputStream(temp));
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't store encoded blob " + hash);
+        }
+        return file;
+    }
+
+    /**
+     * Returns a blob's content, or null if we don't have it.
+     */
+    public synchronized byte[] get(String hash) throws IOException {
+        if (!isHash(hash)) {
+            return null;
+        }
+        File file = file(hash);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized boolean contains(String hash) {
+        return isHash(hash) && file(hash).exists();
+    }
+
+    public synchronized boolean remove(String hash) {
+        if (!isHash(hash)) {
+            return false;
+        }
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(hash + ".")) {
+                    new File(mDir, name).delete();
+                }
+            }
+        }
+        return file(hash).delete();
+    }
+
+    /**
+     * Returns the hashes of every stored blob.
+     */
+    public synchronized List<String> list() {
+        List<String> hashes = new ArrayList<String>();
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (isHash(name)) {
+                    hashes.add(name);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    private File file(String hash) {
+        return new File(mDir, hash);
+    }
+
+    /**
+     * Returns true if {@code s} looks like a hash this store produces. Guards against names
+     * from a peer reaching outside the store's directory.
+     */
+    public static boolean isHash(String s) {
+        if (s == null || s.length() != HASH_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
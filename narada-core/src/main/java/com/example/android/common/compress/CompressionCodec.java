@@ -0,0 +1,28 @@
+package com.example.android.common.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format for datagram payloads. Codecs work on streams, so payloads can be
+ * compressed while they are being produced and inflated while they are being consumed.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the id that identifies this codec on the wire, 0-255. Peers prefer higher ids.
+     */
+    public int getId();
+
+    /**
+     * Wraps {@code out} so that bytes written to the result reach {@code out} compressed.
+     * Closing the result finishes the compressed data and closes {@code out}.
+     */
+    public OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps {@code in} so that reading the result yields the decompressed bytes.
+     */
+    public InputStream decompress(InputStream in) throws IOException;
+}
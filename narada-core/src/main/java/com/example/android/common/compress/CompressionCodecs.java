@@ -0,0 +1,192 @@
+package com.example.android.common.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * The codecs this build understands, and helpers to negotiate and apply them.
+ *
+ * <p>Each peer announces the ids it supports; the session then uses the highest id both sides
+ * know. An encoded payload starts with the id of the codec that produced it, so a receiver never
+ * has to guess, even for datagrams sent before negotiation finished.</p>
+ */
+public final class CompressionCodecs {
+
+    public static final CompressionCodec IDENTITY = new CompressionCodec() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    public static final CompressionCodec DEFLATE = new DeflateCodec(1, null);
+
+    public static final CompressionCodec DEFLATE_PRESET =
+            new DeflateCodec(2, PresetDictionary.get());
+
+    // Trained on src/tools/corpus; peers that know it prefer it to DEFLATE_PRESET
+    public static final CompressionCodec DEFLATE_TRAINED =
+            new DeflateCodec(3, TrainedDictionary3.get());
+
+    private static final CompressionCodec[] ALL =
+            {IDENTITY, DEFLATE, DEFLATE_PRESET, DEFLATE_TRAINED};
+
+    private static final int BUFFER_SIZE = 4096;
+
+    // Refuse to inflate past this, so a tiny hostile payload can't exhaust the heap
+    private static final int MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * Returns the ids of every supported codec, for announcing to a peer.
+     */
+    public static int[] supportedIds() {
+        int[] ids = new int[ALL.length];
+        for (int i = 0; i < ALL.length; i++) {
+            ids[i] = ALL[i].getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the codec with the given id, or null if this build doesn't know it.
+     */
+    public static CompressionCodec forId(int id) {
+        for (CompressionCodec codec : ALL) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the codec to use with a peer that supports {@code peerIds}: the highest id both
+     * sides know. Both peers reach the same answer independently.
+     */
+    public static CompressionCodec negotiate(int[] peerIds) {
+        CompressionCodec best = IDENTITY;
+        for (int id : peerIds) {
+            CompressionCodec codec = forId(id);
+            if (codec != null && codec.getId() > best.getId()) {
+                best = codec;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Encodes {@code data} as the codec id followed by the compressed bytes.
+     */
+    public static byte[] encode(CompressionCodec codec, byte[] data) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 16);
+        buffer.write(codec.getId());
+        try {
+            OutputStream out = codec.compress(buffer);
+            out.write(data);
+            out.close();
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Wraps {@code out} so that bytes written to the result reach it encoded as by
+     * {@link #encode}, without the whole payload ever being in memory. Closing the result
+     * finishes the encoding and closes {@code out}.
+     */
+    public static OutputStream encoding(CompressionCodec codec, OutputStream out)
+            throws IOException {
+        out.write(codec.getId());
+        return codec.compress(out);
+    }
+
+    /**
+     * Wraps {@code in}, which holds bytes produced by {@link #encode}, so that reading the result
+     * yields the decoded payload. Reading fails with a {@link ProtocolException} once the payload
+     * runs past the longest we accept.
+     *
+     * @throws ProtocolException If the codec is unknown
+     */
+    public static InputStream decoding(InputStream in) throws IOException {
+        int id = in.read();
+        if (id == -1) {
+            throw new ProtocolException("Empty encoded payload");
+        }
+        CompressionCodec codec = forId(id);
+        if (codec == null) {
+            throw new ProtocolException("Unknown codec " + id);
+        }
+        return new FilterInputStream(codec.decompress(in)) {
+            private long mRead;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0 && (mRead += n) > MAX_DECODED_LENGTH) {
+                    throw new ProtocolException("Compressed payload expands too far");
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Decodes bytes produced by {@link #encode}.
+     *
+     * @throws ProtocolException If the codec is unknown or the data is corrupt
+     */
+    public static byte[] decode(byte[] encoded, int offset, int length) throws ProtocolException {
+        if (length < 1) {
+            throw new ProtocolException("Empty encoded payload");
+        }
+        CompressionCodec codec = forId(encoded[offset] & 0xFF);
+        if (codec == null) {
+            throw new ProtocolException("Unknown codec " + (encoded[offset] & 0xFF));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream in = codec.decompress(
+                    new ByteArrayInputStream(encoded, offset + 1, length - 1));
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (out.size() + n > MAX_DECODED_LENGTH) {
+                    throw new ProtocolException("Compressed payload expands too far");
+                }
+                out.write(buffer, 0, n);
+            }
+            in.close();
+        } catch (IOException e) {
+            ProtocolException pe = new ProtocolException("Corrupt compressed payload");
+            pe.initCause(e);
+            throw pe;
+        }
+        return out.toByteArray();
+    }
+}
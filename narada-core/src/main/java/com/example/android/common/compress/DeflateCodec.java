@@ -0,0 +1,77 @@
+package com.example.android.common.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw DEFLATE, optionally primed with a preset dictionary. With a dictionary even a datagram
+ * of a few dozen bytes compresses well, because its field names and boilerplate are already in
+ * the window before the first byte is coded.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final int mId;
+    private final byte[] mDictionary;
+
+    /**
+     * @param id         The wire id of this codec
+     * @param dictionary Preset dictionary both sides agree on, or null for none
+     */
+    public DeflateCodec(int id, byte[] dictionary) {
+        mId = id;
+        mDictionary = dictionary;
+    }
+
+    @Override
+    public int getId() {
+        return mId;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        // The link is far slower than the CPU, so spend the cycles
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        if (mDictionary != null) {
+            deflater.setDictionary(mDictionary);
+        }
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        final Inflater inflater = new Inflater(true);
+        if (mDictionary != null) {
+            inflater.setDictionary(mDictionary);
+        }
+        // Raw inflate wants one byte past the end of the data to notice it has finished
+        InputStream padded = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+        return new InflaterInputStream(padded, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.common.compress;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The preset dictionary for {@link CompressionCodecs#DEFLATE_PRESET}, built from strings that
+ * recur across news pages, e-mail text and our own datagrams. DEFLATE codes a match more cheaply
+ * the closer it is, so the most frequent strings come last.
+ *
+ * <p>Both peers must use byte-for-byte the same dictionary. Never edit it in place; add a new
+ * codec id with a new dictionary instead.</p>
+ *
+ * <p>Written by hand, before there was a training corpus, and still for the JSON datagrams that
+ * older builds send. Kept for those builds; peers that both know
+ * {@link CompressionCodecs#DEFLATE_TRAINED} use that.</p>
+ */
+final class PresetDictionary {
+
+    private static final String TEXT = ""
+            // E-mail text
+            + "Dear Sir/Madam, Thank you for your message. Please find attached. "
+            + "Looking forward to hearing from you. Best regards, Kind regards, Sincerely, "
+            + "Forwarded message From: Sent: Subject: Re: Fwd: Date: To: Cc: "
+            + "Namaste, please call me when you reach. I will send the money tomorrow. "
+            // News page boilerplate
+            + "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"utf-8\">"
+            + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">"
+            + "<meta name=\"description\" content=\"<meta property=\"og:title\" content=\""
+            + "<link rel=\"stylesheet\" type=\"text/css\" href=\"<link rel=\"canonical\" href=\""
+            + "<script type=\"text/javascript\" src=\"</script><noscript></noscript>"
+            + "<title></title></head><body><header><nav><ul><li><a href=\"/\">Home</a></li>"
+            + "<li><a href=\"/india\">India</a></li><li><a href=\"/world\">World</a></li>"
+            + "<li><a href=\"/business\">Business</a></li><li><a href=\"/sports\">Sports</a></li>"
+            + "<li><a href=\"/cricket\">Cricket</a></li><li><a href=\"/weather\">Weather</a></li>"
+            + "<li><a href=\"/agriculture\">Agriculture</a></li>"
+            + "<li><a href=\"/entertainment\">Entertainment</a></li></ul></nav></header>"
+            + "<footer><p>Copyright All rights reserved. Privacy Policy Terms of Use "
+            + "Contact Us About Us</p></footer></body></html>"
+            + "<article><h1 class=\"headline\"></h1><h2></h2><h3></h3>"
+            + "<span class=\"byline\">By </span><time datetime=\"2016-"
+            + "<figure><img src=\"https://\" alt=\"\" width=\"\" height=\"\"/>"
+            + "<figcaption></figcaption></figure><section class=\"story\">"
+            + "</article></section><blockquote></blockquote>"
+            + " the government said on the minister of state district police village farmers "
+            + "Prime Minister Chief Minister rain monsoon crop prices rupees crore lakh "
+            + "according to officials said that in the of the and the to the on the for the "
+            + "<div class=\"container\"><div class=\"row\"><div class=\"content\">"
+            + "<div class=\"article\"><div class=\"summary\"><p class=\"text\">"
+            + "<a href=\"https://www.</a><span></span><strong></strong><em></em><br/>"
+            + "</div></div></div><p></p><p></p>"
+            // Our own datagrams, as Gson writes them
+            + "{\"type\":\"GET_ALERTS\",\"mDeviceName\":\""
+            + "{\"type\":\"GET_NEW_EMAILS\",\"mDeviceName\":\""
+            + "{\"type\":\"SEND_WHATSAPP_MSG\",\"mDeviceName\":\""
+            + "{\"type\":\"SEND_EMAIL\",\"mDeviceName\":\"\",\"mEmailFrom\":\"\","
+            + "\"mEmailTo\":\"@gmail.com\",\"mEmailBody\":\""
+            + "{\"type\":\"GET_NEWSPAPER\",\"mDeviceName\":\"\",\"mNewspaperHtml\":\"";
+
+    private PresetDictionary() {
+    }
+
+    static byte[] get() {
+        try {
+            return TEXT.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.common.compress;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The preset dictionary for codec 3, trained by DictionaryTrainer on src/tools/corpus.
+ *
+ * <p>Generated; don't edit. Both peers must use byte-for-byte the same dictionary, so a
+ * retrained one goes under a new codec id.</p>
+ */
+final class TrainedDictionary3 {
+
+    private static final String TEXT = ""
+            + "es from ational This is  at the er the cegards,\n"
+            + "ear the primary school llager\032\026alerts@example-b have to r@example-text"
+            + "iles.in\n"
+            + "To: /p>\n"
+            + "<p>\"Villagers should bring they\">\n"
+            + "<p>The district health department account today through he village, or the d"
+            + "ist Pradesh and Uttar Pradess@example-wholesale.in\n"
+            + "Subject: Order for June\n"
+            + "\n"
+            + "Dear S.css\">\n"
+            + "</hea\n"
+            + "\n"
+            + "Please call ail.com*\231\003Dear Ajay Kumar,\n"
+            + "\n"
+            + "Thank you for your applicationment will be made by cheque on delivery as usu"
+            + "al. Please le-news.in/india/ for the repair, copy attached.\n"
+            + "\n"
+            + "Thanking you,\n"
+            + "ccording to officials.</p>\n"
+            + "<p>Farmers </h1>\n"
+            + "<span class=\"byline\">By S said the government should  agriculture minister"
+            + " said.</p>\n"
+            + "<p>The scheme will cos in the first ODI at Harare.\">\n"
+            + "<meta property=\"og:title\" conts.</p>\n"
+            + "</section>\n"
+            + "</article>\n"
+            + "</divAgriculture</a></li>\n"
+            + "<li><a href=\"/weather\">Weather<href=\"/business\">Business</a></ail.com\n"
+            + "To: vikram.singh.dubai@gmail.com\n"
+            + "Subject: Re: ner\">\n"
+            + "<article>\n"
+            + "<h1 class=\"headline\">> | <a href=\"/terms\">Terms of Use</a> |  insurance "
+            + "scheme\">\n"
+            + "<meta property=\"og:type\" content=\"articme=\"2016-06-06\">June 6, 2016</ti"
+            + "me>\n"
+            + "<section class=\"story\">\n"
+            + "<p>ref=\"/sports\">Sports</a></li>\n"
+            + "<li><a href=\"/agriculture\">Agriculclass=\"byline\">By Our Correspondent</s"
+            + "pan> | <time datetime=\"201 News</title>\n"
+            + "<meta name=\"description\" content=\"The district dth=device-width, initial-"
+            + "scale=1\">\n"
+            + "<title><!DOCTYPE html>\n"
+            + "<html lang=\"en\">\n"
+            + "<head>\n"
+            + "<metahref=\"/india\">India</a></li>\n"
+            + "<li><a href=\"/world\">World</a></l\304\001\000\003\n"
+            + "\017Narada villager\032\031sarpanch.rampur@gmail.com\"href=\"/contact\">Cont"
+            + "act Us</a></p>\n"
+            + "</footer>\n"
+            + "</body>\n"
+            + "</html>\n"
+            + "eather</a></li>\n"
+            + "</ul>\n"
+            + "</nav>\n"
+            + "</header>\n"
+            + "<div class=\"container\">\n"
+            + "<All rights reserved. <a href=\"/privacy\">Privacy Policy</a> | <a k rel=\"s"
+            + "tylesheet\" type=\"text/css\" href=\"/static/css/main.css\">\n"
+            + ">\n"
+            + "</head>\n"
+            + "<body>\n"
+            + "<header>\n"
+            + "<nav>\n"
+            + "<ul>\n"
+            + "<li><a href=\"/\">Home</a></l\n"
+            + "<meta charset=\"utf-8\">\n"
+            + "<meta name=\"viewport\" content=\"width=dev>\n"
+            + "</div>\n"
+            + "<footer>\n"
+            + "<p>Copyright &copy; 2016 Example News. All rig=\"article\">\n"
+            + "<link rel=\"canonical\" href=\"https://www.example-news";
+
+    private TrainedDictionary3() {
+    }
+
+    static byte[] get() {
+        try {
+            return TEXT.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
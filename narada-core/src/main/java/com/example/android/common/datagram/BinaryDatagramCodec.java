@@ -0,0 +1,67 @@
+package com.example.android.common.datagram;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+
+/**
+ * The compact datagram format. Field names never go on the wire, enums go as ordinals and
+ * every integer as a varint:
+ *
+ * <pre>
+ *   MAGIC (1) | version (1) | kind (varint) | type ordinal (varint) | field...
+ *   field = tag (varint: number &lt;&lt; 3 | wire type) | value
+ *   wire type 0: a varint
+ *   wire type 2: length (varint) | bytes
+ * </pre>
+ *
+ * <p>Fields are optional and may come in any order; a field that is null isn't written. A reader
+ * skips fields it doesn't know by their wire type, so new fields can be added without a new
+ * version. The version only goes up when old readers could no longer make sense of the
+ * datagram, and such datagrams are refused.</p>
+ *
+ * <p>Everything after the version is written and read by the codecs generated for
+ * {@link DatagramRequest} and {@link DatagramResponse}, from the field numbers declared on
+ * them. The newspaper signature, edition and delta are Base64 in the model, because JSON needs
+ * them to be; here they go as raw bytes, a quarter smaller.</p>
+ */
+final class BinaryDatagramCodec {
+
+    // Can't start JSON, so a receiver tells the formats apart by the first byte
+    static final byte MAGIC = (byte) 0xC4;
+
+    static final int VERSION = 1;
+
+    private BinaryDatagramCodec() {
+    }
+
+    static byte[] encode(Datagram datagram) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC);
+        out.write(VERSION);
+        if (datagram instanceof DatagramRequest) {
+            DatagramRequestCodec.writeBinary((DatagramRequest) datagram, out);
+        } else {
+            DatagramResponseCodec.writeBinary((DatagramResponse) datagram, out);
+        }
+        return out.toByteArray();
+    }
+
+    static Datagram decode(byte[] data, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        if (length < 3 || data[offset] != MAGIC) {
+            throw new ProtocolException("Not a binary datagram");
+        }
+        int version = data[offset + 1] & 0xFF;
+        if (version > VERSION) {
+            throw new ProtocolException("Datagram version " + version + " is too new");
+        }
+        // Kinds are small enough to be a single-byte varint
+        int kind = data[offset + 2];
+        if (kind == DatagramRequestCodec.KIND) {
+            return DatagramRequestCodec.readBinary(data, offset + 3, end);
+        } else if (kind == DatagramResponseCodec.KIND) {
+            return DatagramResponseCodec.readBinary(data, offset + 3, end);
+        }
+        throw new ProtocolException("Unknown datagram kind " + (kind & 0xFF));
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.android.common.datagram;
+
+import com.example.android.codegen.WireField;
+
+/**
+ * What requests and responses have in common. Instances are written and read by
+ * {@link DatagramCodec}, through codecs generated from the {@link WireField} annotations; other
+ * fields never go on the wire.
+ */
+public abstract class Datagram {
+
+    @WireField(number = 1)
+    public String mDeviceName;
+    @WireField(number = 2)
+    public String mRequest;
+    // Session the datagram arrived on, so an answer goes back to the same peer
+    public transient int mSessionId;
+    // Endpoint a datagram that came as a bundle was sent from, so an answer goes back as one
+    public transient String mBundleSource;
+
+    Datagram() {
+    }
+
+    Datagram(String deviceName) {
+        mDeviceName = deviceName;
+    }
+
+    /**
+     * Returns the name of the datagram's type.
+     */
+    public abstract String getTypeName();
+}
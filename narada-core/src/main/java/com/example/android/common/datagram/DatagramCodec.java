@@ -0,0 +1,66 @@
+package com.example.android.common.datagram;
+
+import java.net.ProtocolException;
+
+/**
+ * Writes and reads datagrams, without reflection.
+ *
+ * <p>Datagrams go in a compact binary format by default. JSON, which older builds sent, is kept
+ * as a fallback for debugging: it is readable in a log or a packet capture. Either can be
+ * decoded whatever the current setting, since the first byte tells them apart.</p>
+ *
+ * <p>Enum ordinals go on the wire, so new request and response types are only ever added at the
+ * end of their enums. A peer that gets a type it doesn't know refuses that datagram alone.</p>
+ */
+public final class DatagramCodec {
+
+    public static final int FORMAT_BINARY = 0;
+    public static final int FORMAT_JSON = 1;
+
+    private static volatile int sFormat = FORMAT_BINARY;
+
+    private DatagramCodec() {
+    }
+
+    /**
+     * Sets the format {@link #encode(Datagram)} writes from now on.
+     *
+     * @param format {@link #FORMAT_BINARY}, or {@link #FORMAT_JSON} for debugging
+     */
+    public static void setFormat(int format) {
+        if (format != FORMAT_BINARY && format != FORMAT_JSON) {
+            throw new IllegalArgumentException("Unknown datagram format " + format);
+        }
+        sFormat = format;
+    }
+
+    public static byte[] encode(Datagram datagram) {
+        return encode(datagram, sFormat);
+    }
+
+    /**
+     * Encodes a datagram in the given format. Fields the model holds as Base64 must be valid
+     * Base64.
+     */
+    public static byte[] encode(Datagram datagram, int format) {
+        return format == FORMAT_JSON
+                ? JsonDatagramCodec.encode(datagram)
+                : BinaryDatagramCodec.encode(datagram);
+    }
+
+    /**
+     * Decodes a datagram in either format.
+     */
+    public static Datagram decode(byte[] data, int offset, int length) throws ProtocolException {
+        if (length == 0) {
+            throw new ProtocolException("Empty datagram");
+        }
+        if (data[offset] == BinaryDatagramCodec.MAGIC) {
+            return BinaryDatagramCodec.decode(data, offset, length);
+        }
+        if (JsonDatagramCodec.isJson(data[offset])) {
+            return JsonDatagramCodec.decode(data, offset, length);
+        }
+        throw new ProtocolException("Unknown datagram format " + (data[offset] & 0xFF));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.common.datagram;
+
+import com.example.android.common.dtn.DtnBundle;
+import com.example.android.common.logger.Log;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.transport.ConnectionEngine;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Decodes incoming datagrams as a task on a {@link ConnectionEngine}, and hands each one to a {@link Listener}
+ * once it is a typed {@link Datagram}. The UI thread then never parses a datagram, however large
+ * it is.
+ *
+ * <p>Datagrams are decoded in the order they are handed over. When the queue is full,
+ * {@link #decode} blocks, so a peer that sends faster than we decode is slowed down by the link
+ * instead of filling the heap.</p>
+ */
+public class DatagramDecoder {
+
+    private static final String TAG = "DatagramDecoder";
+
+    private static final int QUEUE_CAPACITY = 32;
+
+    /**
+     * Receives decoded datagrams, on the decoder's thread. An app typically posts them on to its
+     * UI thread.
+     */
+    public interface Listener {
+        /**
+         * @param datagram The datagram, with its session id and bundle source set
+         * @param length   The datagram's encoded length
+         */
+        void onDatagram(Datagram datagram, int length);
+    }
+
+    private static class Pending {
+        final byte[] mData;
+        final int mLength;
+        final Frame mFrame;
+        final int mSessionId;
+        final String mBundleSource;
+
+        Pending(byte[] data, int length, Frame frame, int sessionId, String bundleSource) {
+            mData = data;
+            mLength = length;
+            mFrame = frame;
+            mSessionId = sessionId;
+            mBundleSource = bundleSource;
+        }
+    }
+
+    private final Listener mListener;
+    private final BlockingQueue<Pending> mQueue = new LinkedBlockingQueue<Pending>(QUEUE_CAPACITY);
+    // Guarded by this
+    private ConnectionEngine.Task mTask;
+    private boolean mClosed;
+
+    public DatagramDecoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts decoding on one of the engine's threads, which it keeps until closed.
+     *
+     * @throws IOException If the engine has no thread for it
+     */
+    public synchronized void start(ConnectionEngine engine) throws IOException {
+        if (mClosed || mTask != null) {
+            return;
+        }
+        mTask = engine.run(TAG, new Runnable() {
+            @Override
+            public void run() {
+                decodeLoop();
+            }
+        });
+    }
+
+    /**
+     * Stops the decoder. Datagrams still queued are dropped.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mTask != null) {
+            mTask.cancel();
+        }
+    }
+
+    /**
+     * Queues a datagram frame for decoding, taking over the frame.
+     */
+    public void decode(Frame frame, int sessionId) throws InterruptedException {
+        mQueue.put(new Pending(frame.getPayload(), frame.getLength(), frame, sessionId, null));
+    }
+
+    /**
+     * Queues a datagram that was delivered to us as a bundle for decoding. The datagram's
+     * {@link Datagram#mBundleSource} is set to the bundle's source.
+     */
+    public void decode(DtnBundle bundle, int sessionId) throws InterruptedException {
+        byte[] payload = bundle.getPayload();
+        mQueue.put(new Pending(payload, payload.length, null, sessionId, bundle.getSource()));
+    }
+
+    private void decodeLoop() {
+        try {
+            while (true) {
+                Pending pending = mQueue.take();
+                Datagram datagram;
+                try {
+                    datagram = DatagramCodec.decode(pending.mData, 0, pending.mLength);
+                } catch (ProtocolException | RuntimeException e) {
+                    // A codec that trips over bad input mustn't take the decoder down with it;
+                    // the sessions feeding it would block on the full queue for good
+                    Log.w(TAG, "Dropping a datagram from session " + pending.mSessionId, e);
+                    continue;
+                } finally {
+                    if (pending.mFrame != null) {
+                        pending.mFrame.release();
+                    }
+                }
+                datagram.mSessionId = pending.mSessionId;
+                datagram.mBundleSource = pending.mBundleSource;
+                mListener.onDatagram(datagram, pending.mLength);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+        Pending pending;
+        while ((pending = mQueue.poll()) != null) {
+            if (pending.mFrame != null) {
+                pending.mFrame.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,3 @@
+package com.example.android.common.datagram;
+
+public enum DatagramError {BAD_REQUEST, RECIPIENT_NO_EXIST, SENDER_REFUSED}
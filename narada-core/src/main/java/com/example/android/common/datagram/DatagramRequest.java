@@ -0,0 +1,44 @@
+package com.example.android.common.datagram;
+
+import com.example.android.codegen.WireField;
+import com.example.android.codegen.WireMessage;
+import com.example.android.codegen.WireType;
+
+@WireMessage(kind = 0)
+public class DatagramRequest extends Datagram {
+
+    @WireType
+    public DatagramRequestType type;
+    //email data
+    @WireField(number = 3)
+    public String mEmailFrom;
+    @WireField(number = 4)
+    public String mEmailTo;
+    @WireField(number = 5)
+    public String mEmailBody;
+    //newspaper data, the signature of the edition the requester already holds
+    @WireField(number = 6, base64 = true)
+    public String mNewspaperSignature;
+
+    DatagramRequest() {
+    }
+
+    public DatagramRequest(DatagramRequestType type, String deviceName) {
+        super(deviceName);
+        this.type = type;
+    }
+
+    //EMAIL TYPE DATAGRAM
+    public DatagramRequest(DatagramRequestType type, String deviceName, String from, String to,
+            String body) {
+        this(type, deviceName);
+        mEmailFrom = from;
+        mEmailTo = to;
+        mEmailBody = body;
+    }
+
+    @Override
+    public String getTypeName() {
+        return type.name();
+    }
+}
@@ -0,0 +1,3 @@
+package com.example.android.common.datagram;
+
+public enum DatagramRequestType {GET_NEWSPAPER, GET_NEW_EMAILS, SEND_WHATSAPP_MSG, SEND_EMAIL, GET_ALERTS}
@@ -0,0 +1,40 @@
+package com.example.android.common.datagram;
+
+import com.example.android.codegen.WireField;
+import com.example.android.codegen.WireMessage;
+import com.example.android.codegen.WireType;
+
+@WireMessage(kind = 1)
+public class DatagramResponse extends Datagram {
+
+    @WireType
+    public DatagramResponseType type;
+    //newspaper data: the whole edition, a delta against the one the requester holds, or the
+    //hash of a blob that is sent separately unless the requester already has it
+    @WireField(number = 7, base64 = true)
+    public String mNewspaperHtml;
+    @WireField(number = 8, base64 = true)
+    public String mNewspaperDelta;
+    @WireField(number = 9)
+    public String mNewspaperBlob;
+
+    DatagramResponse() {
+    }
+
+    public DatagramResponse(DatagramResponseType type, String deviceName) {
+        super(deviceName);
+        this.type = type;
+    }
+
+    /**
+     * Returns true if the response carries a newspaper edition in any of its forms.
+     */
+    public boolean hasNewspaper() {
+        return mNewspaperHtml != null || mNewspaperDelta != null || mNewspaperBlob != null;
+    }
+
+    @Override
+    public String getTypeName() {
+        return type.name();
+    }
+}
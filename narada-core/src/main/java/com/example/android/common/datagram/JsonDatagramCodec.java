@@ -0,0 +1,111 @@
+package com.example.android.common.datagram;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The JSON datagram format, with Gson's streaming reader and writer rather than by reflection;
+ * the codecs generated for {@link DatagramRequest} and {@link DatagramResponse} know their
+ * fields. The JSON is what {@code Gson.toJson} makes of the same objects, so builds that still
+ * use Gson read it unchanged.
+ *
+ * <p>Decoding walks the bytes in a single pass without first turning them into a
+ * {@code String}, so only the field values are ever copied.</p>
+ */
+final class JsonDatagramCodec {
+
+    private static final String CHARSET = "UTF-8";
+
+    // Names only a response has; JSON carrying any of them is read as one
+    private static final Set<String> RESPONSE_ONLY = new HashSet<String>();
+
+    static {
+        RESPONSE_ONLY.addAll(Arrays.asList(DatagramResponseCodec.JSON_NAMES));
+        RESPONSE_ONLY.removeAll(Arrays.asList(DatagramRequestCodec.JSON_NAMES));
+    }
+
+    private JsonDatagramCodec() {
+    }
+
+    /**
+     * Returns true if {@code first}, the first byte of an encoded datagram, can start JSON.
+     */
+    static boolean isJson(byte first) {
+        return first == '{' || first == ' ' || first == '\t' || first == '\r' || first == '\n';
+    }
+
+    static byte[] encode(Datagram datagram) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            JsonWriter out = new JsonWriter(new OutputStreamWriter(bytes, CHARSET));
+            if (datagram instanceof DatagramRequest) {
+                DatagramRequestCodec.writeJson((DatagramRequest) datagram, out);
+            } else {
+                DatagramResponseCodec.writeJson((DatagramResponse) datagram, out);
+            }
+            out.close();
+        } catch (IOException e) {
+            // Nothing here does real I/O
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Datagram decode(byte[] data, int offset, int length) throws ProtocolException {
+        try {
+            return decode(new ByteArrayInputStream(data, offset, length));
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            // Only malformed JSON gets here; there's no real I/O
+            throw new ProtocolException("Bad datagram: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads one datagram from {@code in}, which is not closed.
+     *
+     * <p>The JSON doesn't say whether it is a request or a response. As before, one that carries
+     * a newspaper edition is a response, and anything else is read as a request.</p>
+     */
+    static Datagram decode(InputStream in) throws IOException {
+        Map<String, String> fields = new HashMap<String, String>();
+        boolean response = false;
+        JsonReader reader = new JsonReader(new InputStreamReader(in, CHARSET));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                JsonToken token = reader.peek();
+                if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    fields.put(name, reader.nextString());
+                    response |= RESPONSE_ONLY.contains(name);
+                } else {
+                    // Null, or a field from a newer peer that isn't a string
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Gson's way of saying the JSON isn't the shape we expect
+            throw new ProtocolException("Bad datagram: " + e.getMessage());
+        }
+        return response
+                ? DatagramResponseCodec.fromJson(fields)
+                : DatagramRequestCodec.fromJson(fields);
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.common.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rsync-style deltas: the holder of a new document turns it into instructions for rebuilding it
+ * from the {@link Signature} of an older one, copying every block the receiver already has and
+ * spelling out only what changed.
+ *
+ * <p>Encoded layout, big-endian:</p>
+ * <pre>
+ *   basis digest (8) | block size (4) | target digest (8) | target length (4) | op... | END
+ *   COPY    = 1 | first block (4) | block count (4)
+ *   LITERAL = 2 | length (4) | bytes
+ *   END     = 0
+ * </pre>
+ *
+ * <p>Both digests are checked when the delta is applied, so a delta against the wrong edition,
+ * or one that rebuilt the wrong bytes, is refused rather than shown.</p>
+ */
+public final class Delta {
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+
+    // Refuse to rebuild documents larger than this
+    public static final int MAX_DOCUMENT_LENGTH = 16 * 1024 * 1024;
+
+    private Delta() {
+    }
+
+    /**
+     * Works out how to rebuild {@code target} from the document {@code basis} describes.
+     */
+    public static byte[] create(Signature basis, byte[] target) {
+        int blockSize = basis.getBlockSize();
+        Map<Integer, Integer> firstByWeak = new HashMap<Integer, Integer>();
+        int[] nextWithSameWeak = new int[basis.getBlockCount()];
+        // Chain blocks sharing a weak checksum, lowest index first
+        for (int i = basis.getBlockCount() - 1; i >= 0; i--) {
+            Integer first = firstByWeak.put(basis.getWeak(i), i);
+            nextWithSameWeak[i] = first == null ? -1 : first;
+        }
+
+        Writer writer = new Writer(basis, target);
+        RollingChecksum sum = new RollingChecksum(blockSize);
+        int literalStart = 0;
+        int pos = 0;
+        boolean fresh = true;
+        while (pos + blockSize <= target.length) {
+            if (fresh) {
+                sum.reset(target, pos, blockSize);
+                fresh = false;
+            }
+            int block = match(basis, firstByWeak, nextWithSameWeak, sum.getValue(), target, pos);
+            if (block >= 0) {
+                writer.literal(target, literalStart, pos - literalStart);
+                writer.copy(block);
+                pos += blockSize;
+                literalStart = pos;
+                fresh = true;
+            } else {
+                if (pos + blockSize < target.length) {
+                    sum.roll(target[pos], target[pos + blockSize]);
+                }
+                pos++;
+            }
+        }
+        writer.literal(target, literalStart, target.length - literalStart);
+        return writer.finish();
+    }
+
+    private static int match(Signature basis, Map<Integer, Integer> firstByWeak,
+            int[] nextWithSameWeak, int weak, byte[] target, int pos) {
+        Integer first = firstByWeak.get(weak);
+        if (first == null) {
+            return -1;
+        }
+        long strong = Digests.block(target, pos, basis.getBlockSize());
+        for (int block = first; block >= 0; block = nextWithSameWeak[block]) {
+            if (basis.getStrong(block) == strong) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the target document from {@code basis} and a delta made against its signature.
+     *
+     * @throws ProtocolException If the delta is malformed, was made against another document,
+     *                           or doesn't rebuild what it promised
+     */
+    public static byte[] apply(byte[] basis, byte[] delta) throws ProtocolException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        try {
+            long basisDigest = in.readLong();
+            int blockSize = in.readInt();
+            long targetDigest = in.readLong();
+            int targetLength = in.readInt();
+            if (basisDigest != Digests.document(basis)) {
+                throw new ProtocolException("Delta was made against another document");
+            }
+            if (blockSize < Signature.MIN_BLOCK_SIZE || blockSize > Signature.MAX_BLOCK_SIZE) {
+                throw new ProtocolException("Bad delta block size " + blockSize);
+            }
+            if (targetLength < 0 || targetLength > MAX_DOCUMENT_LENGTH) {
+                throw new ProtocolException("Bad delta target length " + targetLength);
+            }
+            byte[] target = new byte[targetLength];
+            int pos = 0;
+            while (true) {
+                int op = in.readUnsignedByte();
+                if (op == OP_END) {
+                    break;
+                }
+                int first = in.readInt();
+                int length;
+                if (op == OP_COPY) {
+                    int count = in.readInt();
+                    length = count * blockSize;
+                    if (first < 0 || count < 0 || ((long) first + count) * blockSize > basis.length
+                            || length > targetLength - pos) {
+                        throw new ProtocolException("Bad delta copy");
+                    }
+                    System.arraycopy(basis, first * blockSize, target, pos, length);
+                } else if (op == OP_LITERAL) {
+                    length = first;
+                    if (length < 0 || length > targetLength - pos) {
+                        throw new ProtocolException("Bad delta literal");
+                    }
+                    in.readFully(target, pos, length);
+                } else {
+                    throw new ProtocolException("Unknown delta op " + op);
+                }
+                pos += length;
+            }
+            if (pos != targetLength || Digests.document(target) != targetDigest) {
+                throw new ProtocolException("Delta did not rebuild the document");
+            }
+            return target;
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ProtocolException("Truncated delta");
+        }
+    }
+
+    /**
+     * Emits ops, merging runs of consecutive block copies into one.
+     */
+    private static class Writer {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private int mCopyFirst = -1;
+        private int mCopyCount;
+
+        Writer(Signature basis, byte[] target) {
+            try {
+                mOut.writeLong(basis.getDocumentDigest());
+                mOut.writeInt(basis.getBlockSize());
+                mOut.writeLong(Digests.document(target));
+                mOut.writeInt(target.length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void copy(int block) {
+            if (mCopyFirst >= 0 && block == mCopyFirst + mCopyCount) {
+                mCopyCount++;
+                return;
+            }
+            flushCopy();
+            mCopyFirst = block;
+            mCopyCount = 1;
+        }
+
+        void literal(byte[] data, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            try {
+                mOut.writeByte(OP_LITERAL);
+                mOut.writeInt(length);
+                mOut.write(data, offset, length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] finish() {
+            flushCopy();
+            try {
+                mOut.writeByte(OP_END);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return mBytes.toByteArray();
+        }
+
+        private void flushCopy() {
+            if (mCopyFirst < 0) {
+                return;
+            }
+            try {
+                mOut.writeByte(OP_COPY);
+                mOut.writeInt(mCopyFirst);
+                mOut.writeInt(mCopyCount);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            mCopyFirst = -1;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.common.delta;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Short content digests. Eight bytes are plenty to tell blocks and editions apart; the weak
+ * checksum has already filtered out all but a handful of candidates.
+ */
+final class Digests {
+
+    private Digests() {
+    }
+
+    /**
+     * Returns the first eight bytes of the MD5 digest of a block.
+     */
+    static long block(byte[] data, int offset, int length) {
+        return prefix("MD5", data, offset, length);
+    }
+
+    /**
+     * Returns the first eight bytes of the SHA-1 digest of a whole document.
+     */
+    static long document(byte[] data) {
+        return prefix("SHA-1", data, 0, data.length);
+    }
+
+    private static long prefix(String algorithm, byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(data, offset, length);
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+}
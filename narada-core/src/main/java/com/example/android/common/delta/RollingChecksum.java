@@ -0,0 +1,48 @@
+package com.example.android.common.delta;
+
+/**
+ * The weak checksum rsync uses to find matching blocks: two 16-bit sums over a fixed-size window
+ * that can be slid along by one byte in constant time.
+ */
+class RollingChecksum {
+
+    private final int mWindow;
+    private int mA;
+    private int mB;
+
+    RollingChecksum(int window) {
+        mWindow = window;
+    }
+
+    /**
+     * Starts over on {@code length} bytes of {@code data} from {@code offset}.
+     */
+    void reset(byte[] data, int offset, int length) {
+        mA = 0;
+        mB = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            mA += b;
+            mB += (length - i) * b;
+        }
+    }
+
+    /**
+     * Slides the window one byte on, dropping {@code out} and taking in {@code in}.
+     */
+    void roll(byte out, byte in) {
+        int o = out & 0xFF;
+        mA += (in & 0xFF) - o;
+        mB += mA - mWindow * o;
+    }
+
+    int getValue() {
+        return (mA & 0xFFFF) | (mB << 16);
+    }
+
+    static int of(byte[] data, int offset, int length) {
+        RollingChecksum sum = new RollingChecksum(length);
+        sum.reset(data, offset, length);
+        return sum.getValue();
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.common.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * What a requester sends to describe the document it already holds: a weak rolling checksum and
+ * a short strong digest for every whole block. The sender needs nothing else to work out a
+ * {@link Delta} against it.
+ *
+ * <p>A signature costs twelve bytes per block, so for a typical page it is a few hundred times
+ * smaller than the page itself.</p>
+ */
+public class Signature {
+
+    public static final int MIN_BLOCK_SIZE = 256;
+    public static final int MAX_BLOCK_SIZE = 16 * 1024;
+
+    // Refuse signatures describing more blocks than this
+    private static final int MAX_BLOCKS = 64 * 1024;
+
+    private final int mBlockSize;
+    private final int mDocumentLength;
+    private final long mDocumentDigest;
+    private final int[] mWeak;
+    private final long[] mStrong;
+
+    private Signature(int blockSize, int documentLength, long documentDigest, int[] weak,
+            long[] strong) {
+        mBlockSize = blockSize;
+        mDocumentLength = documentLength;
+        mDocumentDigest = documentDigest;
+        mWeak = weak;
+        mStrong = strong;
+    }
+
+    /**
+     * Computes the signature of a document with a block size suited to its length.
+     */
+    public static Signature of(byte[] document) {
+        return of(document, blockSizeFor(document.length));
+    }
+
+    public static Signature of(byte[] document, int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Bad block size " + blockSize);
+        }
+        int count = document.length / blockSize;
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = RollingChecksum.of(document, i * blockSize, blockSize);
+            strong[i] = Digests.block(document, i * blockSize, blockSize);
+        }
+        return new Signature(blockSize, document.length, Digests.document(document), weak,
+                strong);
+    }
+
+    /**
+     * Picks a block size near the square root of the length, which balances signature size
+     * against how much of a changed block has to be resent.
+     */
+    static int blockSizeFor(int length) {
+        int size = Integer.highestOneBit((int) Math.sqrt(length));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mWeak.length;
+    }
+
+    public int getDocumentLength() {
+        return mDocumentLength;
+    }
+
+    /**
+     * Returns a short digest of the whole document, which identifies the edition.
+     */
+    public long getDocumentDigest() {
+        return mDocumentDigest;
+    }
+
+    int getWeak(int block) {
+        return mWeak[block];
+    }
+
+    long getStrong(int block) {
+        return mStrong[block];
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + mWeak.length * 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mBlockSize);
+            out.writeInt(mDocumentLength);
+            out.writeLong(mDocumentDigest);
+            out.writeInt(mWeak.length);
+            for (int i = 0; i < mWeak.length; i++) {
+                out.writeInt(mWeak[i]);
+                out.writeLong(mStrong[i]);
+            }
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses a signature received from a peer.
+     *
+     * @throws ProtocolException If it is malformed
+     */
+    public static Signature fromBytes(byte[] bytes) throws ProtocolException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int blockSize = in.readInt();
+            int documentLength = in.readInt();
+            long documentDigest = in.readLong();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0
+                    || count > MAX_BLOCKS || documentLength < (long) count * blockSize) {
+                throw new ProtocolException("Bad signature header");
+            }
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                strong[i] = in.readLong();
+            }
+            return new Signature(blockSize, documentLength, documentDigest, weak, strong);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ProtocolException("Truncated signature");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.common.dtn;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over byte strings: a set that may answer "maybe" for something never added,
+ * but never "no" for something that was, in about 1.2 bytes per entry at a 1% false positive
+ * rate instead of the entry itself.
+ *
+ * <p>Positions come from two 64-bit hashes combined as {@code h1 + i * h2} (Kirsch and
+ * Mitzenmacher). The hashes are keyed with a seed chosen by whoever builds the filter, so an
+ * entry that collides in one filter most likely won't in the next.</p>
+ *
+ * <p>Serialised as seed (8) | hash count (1) | bit count (4) | bits.</p>
+ */
+public class BloomFilter {
+
+    private static final int HEADER_LENGTH = 13;
+    private static final int MIN_BITS = 64;
+    private static final int MAX_HASHES = 16;
+
+    private final long mSeed;
+    private final int mHashes;
+    private final int mBits;
+    private final byte[] mBitArray;
+
+    /**
+     * Creates a filter sized to hold {@code expected} entries with roughly the given false
+     * positive rate, and no more than {@code maxBytes} on the wire.
+     */
+    public BloomFilter(int expected, double falsePositiveRate, int maxBytes, long seed) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Bad false positive rate " + falsePositiveRate);
+        }
+        int n = Math.max(1, expected);
+        // m = -n ln p / (ln 2)^2, k = m / n ln 2
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long maxBits = (long) (maxBytes - HEADER_LENGTH) * 8;
+        bits = Math.max(MIN_BITS, Math.min(maxBits, bits));
+        mBits = (int) ((bits + 7) / 8 * 8);
+        mHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) mBits / n * ln2)));
+        mBitArray = new byte[mBits / 8];
+        mSeed = seed;
+    }
+
+    private BloomFilter(long seed, int hashes, byte[] bitArray) {
+        mSeed = seed;
+        mHashes = hashes;
+        mBits = bitArray.length * 8;
+        mBitArray = bitArray;
+    }
+
+    public void add(byte[] data) {
+        long h1 = hash(data, mSeed);
+        long h2 = hash(data, ~mSeed) | 1;
+        for (int i = 0; i < mHashes; i++) {
+            int bit = index(h1 + i * h2);
+            mBitArray[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    /**
+     * Returns false if {@code data} was certainly never added.
+     */
+    public boolean mightContain(byte[] data) {
+        long h1 = hash(data, mSeed);
+        long h2 = hash(data, ~mSeed) | 1;
+        for (int i = 0; i < mHashes; i++) {
+            int bit = index(h1 + i * h2);
+            if ((mBitArray[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many bytes {@link #toBytes()} takes.
+     */
+    public int getSerializedLength() {
+        return HEADER_LENGTH + mBitArray.length;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(getSerializedLength());
+        out.putLong(mSeed);
+        out.put((byte) mHashes);
+        out.putInt(mBits);
+        out.put(mBitArray);
+        return out.array();
+    }
+
+    /**
+     * Reads a filter from {@code length} bytes of {@code data} starting at {@code offset}.
+     */
+    public static BloomFilter fromBytes(byte[] data, int offset, int length)
+            throws ProtocolException {
+        if (length < HEADER_LENGTH) {
+            throw new ProtocolException("Short Bloom filter");
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        long seed = in.getLong();
+        int hashes = in.get() & 0xFF;
+        int bits = in.getInt();
+        if (hashes < 1 || hashes > MAX_HASHES || bits < MIN_BITS || bits % 8 != 0
+                || bits / 8 != length - HEADER_LENGTH) {
+            throw new ProtocolException("Bad Bloom filter " + hashes + " hashes, " + bits
+                    + " bits");
+        }
+        byte[] bitArray = new byte[bits / 8];
+        in.get(bitArray);
+        return new BloomFilter(seed, hashes, bitArray);
+    }
+
+    private int index(long hash) {
+        return (int) ((hash & Long.MAX_VALUE) % mBits);
+    }
+
+    // FNV-1a over the bytes, then the MurmurHash3 finaliser so every bit depends on every byte
+    private static long hash(byte[] data, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (byte b : data) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
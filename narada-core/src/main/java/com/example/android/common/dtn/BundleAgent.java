@@ -0,0 +1,323 @@
+package com.example.android.common.dtn;
+
+import com.example.android.common.link.TransferPlanner;
+import com.example.android.common.protocol.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Store-and-forward of {@link DtnBundle}s between devices that are rarely connected at the same
+ * time: a villager's request can ride a courier's phone to the next village and on to a gateway,
+ * and the answer can find its way back the same way, days later.
+ *
+ * <p>On meeting a peer, each side sends a {@link BundleSummary} of what it holds and has finished
+ * with, so only the difference between the two goes over the air. Which of the bundles the peer
+ * lacks it is actually given is up to a {@link RoutingPolicy}, spray-and-wait unless another is
+ * set. The hop limit and lifetime bound how far a bundle spreads whatever the policy.</p>
+ *
+ * <p>A bundle is handed off under custody: the receiver answers with a
+ * {@link Frame#TYPE_CUSTODY} signal once the bundle is safely stored, and only then does the
+ * sender let go of its copy. Bundles addressed to the peer are always handed off.</p>
+ *
+ * <p>Bundles addressed to {@link #GATEWAY} are delivered by the first gateway they reach, which
+ * is any device with a way to answer them (the online app). Peers are identified by address, as
+ * for {@link com.example.android.common.transfer.ChunkedTransfers}.</p>
+ */
+public class BundleAgent {
+
+    /**
+     * Endpoint id for whichever gateway a bundle reaches first.
+     */
+    public static final String GATEWAY = "dtn:gateway";
+
+    public static final long DEFAULT_LIFETIME_MS = 3 * 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_HOP_LIMIT = 4;
+
+    private static final String PROPHET_FILE = "prophet";
+
+    /**
+     * What became of a bundle received from a peer.
+     */
+    public enum Result {
+        DELIVERED,  // it was for us
+        STORED,     // it is ours to carry on
+        DUPLICATE,  // we already had it, or already delivered it
+        DROPPED     // expired, or out of hops with nowhere left to go
+    }
+
+    // What we know about a peer from its summary and from what went between us since
+    private static class PeerState {
+        final BundleSummary mSummary;
+        final Set<String> mIds = new HashSet<String>();
+
+        PeerState(BundleSummary summary) {
+            mSummary = summary;
+        }
+
+        boolean has(String id) {
+            return mIds.contains(id) || mSummary.mightHave(id);
+        }
+    }
+
+    private final BundleStore mStore;
+    private final boolean mGateway;
+    private final String mEndpoint;
+    private final ProphetTable mTable;
+    private final Map<String, PeerState> mPeers = new HashMap<String, PeerState>();
+    // Bundles handed off and awaiting a custody signal, by id, and the peer they went to
+    private final Map<String, String> mHandedOff = new HashMap<String, String>();
+    private RoutingPolicy mPolicy;
+    private RoutingStats mStats;
+
+    /**
+     * @param gateway Whether this device delivers bundles sent to {@link #GATEWAY}
+     */
+    public BundleAgent(BundleStore store, boolean gateway) throws IOException {
+        mStore = store;
+        mGateway = gateway;
+        mEndpoint = store.getNodeId();
+        mTable = new ProphetTable(new File(store.getDirectory(), PROPHET_FILE));
+        setRoutingPolicy(new SprayAndWaitPolicy());
+    }
+
+    /**
+     * Returns this device's endpoint id, for others to send bundles to.
+     */
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+
+    public boolean isGateway() {
+        return mGateway;
+    }
+
+    /**
+     * Sets the policy deciding which peers get which bundles, and starts its statistics afresh.
+     */
+    public synchronized void setRoutingPolicy(RoutingPolicy policy) {
+        mPolicy = policy;
+        mStats = new RoutingStats(policy.getName());
+    }
+
+    public synchronized RoutingPolicy getRoutingPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Returns what routing under the current policy has cost so far.
+     */
+    public synchronized RoutingStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns how likely we are to deliver to each endpoint we know of.
+     */
+    public ProphetTable getProphetTable() {
+        return mTable;
+    }
+
+    /**
+     * Creates a bundle from here to {@code destination} with the default lifetime and hop limit,
+     * and stores it until it can be forwarded.
+     *
+     * @param priority One of the {@link TransferPlanner} priorities
+     */
+    public DtnBundle send(String destination, byte[] payload, int priority) throws IOException {
+        return send(destination, payload, priority, DEFAULT_LIFETIME_MS, DEFAULT_HOP_LIMIT);
+    }
+
+    public synchronized DtnBundle send(String destination, byte[] payload, int priority,
+            long lifetime, int hopLimit) throws IOException {
+        DtnBundle bundle = DtnBundle.create(mEndpoint, destination, payload, lifetime, hopLimit,
+                mPolicy.getInitialCopies(), priority);
+        mStore.put(bundle);
+        return bundle;
+    }
+
+    /**
+     * Returns the summary to send a peer on connecting.
+     */
+    public Frame summary() {
+        List<String> ids = mStore.listSeen();
+        for (DtnBundle bundle : mStore.list()) {
+            ids.add(bundle.getIdString());
+        }
+        return new BundleSummary(mEndpoint, mGateway,
+                mTable.top(BundleSummary.MAX_PREDICTABILITIES), ids).toFrame();
+    }
+
+    /**
+     * Takes in a peer's summary, and counts the encounter towards our delivery
+     * predictabilities. Bundles for it can be asked for with {@link #bundlesFor} from then on.
+     */
+    public synchronized void onSummary(String peer, Frame frame) throws IOException {
+        BundleSummary summary = BundleSummary.fromFrame(frame);
+        mPeers.put(peer, new PeerState(summary));
+        mTable.encounter(summary.getEndpoint());
+        if (summary.isGateway()) {
+            mTable.encounter(GATEWAY);
+        }
+        mTable.learn(summary.getEndpoint(), summary.getPredictabilities());
+        mTable.save();
+    }
+
+    /**
+     * Returns the bundles to hand a peer now, in the order to send them, and counts them as the
+     * peer's from then on. Of those the routing policy picks for the peer, the planner keeps the
+     * ones worth the most that fit in {@code budget} bytes; the rest wait for a later call.
+     * Empty until the peer's summary has arrived.
+     *
+     * <p>A bundle the policy replicates gives up the peer's share of its copies here, whether or
+     * not the transmission then gets through; a lost copy only means one carrier fewer.</p>
+     */
+    public synchronized List<DtnBundle> bundlesFor(String peer, TransferPlanner planner,
+            long budget) throws IOException {
+        PeerState state = mPeers.get(peer);
+        if (state == null) {
+            return new ArrayList<DtnBundle>();
+        }
+        // Ask the policy first, so the planner only weighs what would actually go
+        BundleSummary summary = state.mSummary;
+        Map<DtnBundle, RoutingPolicy.Decision> decisions =
+                new HashMap<DtnBundle, RoutingPolicy.Decision>();
+        List<TransferPlanner.Candidate<DtnBundle>> candidates =
+                new ArrayList<TransferPlanner.Candidate<DtnBundle>>();
+        for (DtnBundle bundle : mStore.list()) {
+            String id = bundle.getIdString();
+            if (!bundle.canForward() || state.has(id) || mHandedOff.containsKey(id)) {
+                continue;
+            }
+            RoutingPolicy.Decision decision =
+                    isFor(bundle, summary.getEndpoint(), summary.isGateway())
+                    ? RoutingPolicy.Decision.handOff(bundle)
+                    : mPolicy.decide(bundle, summary, mTable);
+            if (decision.getAction() == RoutingPolicy.Decision.Action.HOLD) {
+                continue;
+            }
+            decisions.put(bundle, decision);
+            candidates.add(new TransferPlanner.Candidate<DtnBundle>(bundle,
+                    bundle.getSerializedLength(), bundle.getPriority(), bundle.getAge(),
+                    bundle.getRemainingLifetime()));
+        }
+        List<DtnBundle> bundles = new ArrayList<DtnBundle>();
+        for (DtnBundle bundle : planner.plan(candidates, budget)) {
+            String id = bundle.getIdString();
+            RoutingPolicy.Decision decision = decisions.get(bundle);
+            DtnBundle out;
+            switch (decision.getAction()) {
+                case HAND_OFF:
+                    out = bundle.withCopies(decision.getPeerCopies(), true);
+                    mHandedOff.put(id, peer);
+                    break;
+                case REPLICATE:
+                    out = bundle.withCopies(decision.getPeerCopies(), false);
+                    if (decision.getKeptCopies() != bundle.getCopies()) {
+                        mStore.update(bundle.withCopies(decision.getKeptCopies(),
+                                bundle.isCustodyRequested()));
+                    }
+                    break;
+                default:
+                    continue;
+            }
+            state.mIds.add(id);
+            mStats.onSent(isFor(bundle, summary.getEndpoint(), summary.isGateway()));
+            bundles.add(out);
+        }
+        return bundles;
+    }
+
+    /**
+     * Takes in a bundle a peer sent.
+     */
+    public synchronized Result onBundle(String peer, DtnBundle bundle) throws IOException {
+        String id = bundle.getIdString();
+        PeerState state = mPeers.get(peer);
+        if (state != null) {
+            // Never offer it back
+            state.mIds.add(id);
+        }
+        Result result;
+        if (mStore.contains(id) || mStore.hasSeen(id)) {
+            result = Result.DUPLICATE;
+        } else if (bundle.isExpired()) {
+            result = Result.DROPPED;
+        } else if (isFor(bundle, mEndpoint, mGateway)) {
+            mStore.markSeen(bundle);
+            result = Result.DELIVERED;
+        } else if (!bundle.canForward()) {
+            result = Result.DROPPED;
+        } else {
+            mStore.put(bundle);
+            result = Result.STORED;
+        }
+        mStats.onReceived(result == Result.DELIVERED);
+        return result;
+    }
+
+    /**
+     * Returns the signal telling the sender of {@code bundle} that we have taken custody.
+     */
+    public Frame custodySignal(DtnBundle bundle) {
+        return new Frame(Frame.TYPE_CUSTODY, bundle.getId());
+    }
+
+    /**
+     * Takes in a custody signal from a peer: the peer now holds a bundle we handed off to it,
+     * so we drop our copy.
+     */
+    public synchronized void onCustody(String peer, Frame frame) throws IOException {
+        if (frame.getLength() != DtnBundle.ID_LENGTH) {
+            throw new ProtocolException("Bad custody signal length " + frame.getLength());
+        }
+        byte[] id = new byte[DtnBundle.ID_LENGTH];
+        System.arraycopy(frame.getPayload(), 0, id, 0, id.length);
+        String idString = DtnBundle.toHex(id);
+        if (!peer.equals(mHandedOff.get(idString))) {
+            return;
+        }
+        mHandedOff.remove(idString);
+        DtnBundle bundle = mStore.get(idString);
+        if (bundle != null) {
+            mStore.markSeen(bundle);
+            mStore.remove(idString);
+        }
+    }
+
+    /**
+     * Forgets what we knew of a peer, once it is gone. Bundles handed to it that it never took
+     * custody of are ours to forward again; its next summary tells us afresh what it has.
+     */
+    public synchronized void forget(String peer) {
+        mPeers.remove(peer);
+        Iterator<String> handedTo = mHandedOff.values().iterator();
+        while (handedTo.hasNext()) {
+            if (handedTo.next().equals(peer)) {
+                handedTo.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops expired bundles.
+     *
+     * @return The number dropped
+     */
+    public int expire() throws IOException {
+        return mStore.expire();
+    }
+
+    private static boolean isFor(DtnBundle bundle, String endpoint, boolean gateway) {
+        String destination = bundle.getDestination();
+        return destination.equals(endpoint) || (gateway && GATEWAY.equals(destination));
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.android.common.dtn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The bundles a device is carrying, kept on disk so they survive until the next encounter
+ * however long that takes.
+ *
+ * <p>Each bundle is a file named after its id, written aside and renamed; the file's modification
+ * time records when the bundle arrived, which its age counts from. The store also remembers the
+ * ids of bundles that were delivered here or handed on under custody, until they would have
+ * expired, so the same bundle offered again by another peer isn't taken a second time.</p>
+ *
+ * <p>The store also holds this device's endpoint id, made up on first use.</p>
+ */
+public class BundleStore {
+
+    private static final String SUFFIX = ".bundle";
+    private static final String SEEN_FILE = "seen";
+    private static final String NODE_FILE = "node";
+
+    // Most bundles carried at once; the ones closest to expiry make room first
+    private static final int MAX_BUNDLES = 256;
+
+    private final File mDir;
+    private final Map<String, DtnBundle> mBundles = new LinkedHashMap<String, DtnBundle>();
+    // Ids of bundles we are done with, and when we may forget them (wall clock)
+    private final Map<String, Long> mSeen = new LinkedHashMap<String, Long>();
+    private String mNodeId;
+
+    /**
+     * Opens the store in {@code dir}, creating it if needed. Bundles that can't be read are
+     * deleted.
+     */
+    public BundleStore(File dir) throws IOException {
+        mDir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        load();
+    }
+
+    /**
+     * Returns this device's endpoint id, the same every time.
+     */
+    public synchronized String getNodeId() throws IOException {
+        if (mNodeId != null) {
+            return mNodeId;
+        }
+        File file = new File(mDir, NODE_FILE);
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                mNodeId = in.readLine();
+            } finally {
+                in.close();
+            }
+        }
+        if (mNodeId == null || mNodeId.length() == 0) {
+            mNodeId = "dtn:" + UUID.randomUUID();
+            Writer out = new FileWriter(file);
+            try {
+                out.write(mNodeId);
+            } finally {
+                out.close();
+            }
+        }
+        return mNodeId;
+    }
+
+    /**
+     * Returns the directory the store keeps its files in, for state that goes with the bundles.
+     */
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Stores a bundle, unless it is already here or was seen before.
+     *
+     * @return false if it was already here or seen
+     */
+    public synchronized boolean put(DtnBundle bundle) throws IOException {
+        String id = bundle.getIdString();
+        if (mBundles.containsKey(id) || mSeen.containsKey(id)) {
+            return false;
+        }
+        write(bundle);
+        if (mBundles.size() > MAX_BUNDLES) {
+            remove(soonestToExpire());
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a bundle with a new version of itself, such as one with fewer copies left.
+     *
+     * @return false if the bundle isn't here
+     */
+    public synchronized boolean update(DtnBundle bundle) throws IOException {
+        if (!mBundles.containsKey(bundle.getIdString())) {
+            return false;
+        }
+        write(bundle);
+        return true;
+    }
+
+    private void write(DtnBundle bundle) throws IOException {
+        String id = bundle.getIdString();
+        // Write aside and rename, so a crash never leaves half a bundle
+        File file = new File(mDir, id + SUFFIX);
+        File temp = new File(mDir, id + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bundle.toStoredBytes());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't store bundle " + id);
+        }
+        file.setLastModified(bundle.getArrivedAt());
+        mBundles.put(id, bundle);
+    }
+
+    public synchronized DtnBundle get(String id) {
+        return mBundles.get(id);
+    }
+
+    public synchronized boolean contains(String id) {
+        return mBundles.containsKey(id);
+    }
+
+    /**
+     * Returns the bundles being carried, oldest arrival first.
+     */
+    public synchronized List<DtnBundle> list() {
+        return new ArrayList<DtnBundle>(mBundles.values());
+    }
+
+    /**
+     * Drops a bundle. Does nothing if it isn't here.
+     */
+    public synchronized void remove(String id) {
+        if (mBundles.remove(id) != null) {
+            new File(mDir, id + SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Remembers that we are done with a bundle, so it isn't taken again before it would have
+     * expired anyway.
+     */
+    public synchronized void markSeen(DtnBundle bundle) throws IOException {
+        mSeen.put(bundle.getIdString(),
+                System.currentTimeMillis() + bundle.getRemainingLifetime());
+        saveSeen();
+    }
+
+    public synchronized boolean hasSeen(String id) {
+        return mSeen.containsKey(id);
+    }
+
+    /**
+     * Returns the ids of bundles we are done with.
+     */
+    public synchronized List<String> listSeen() {
+        return new ArrayList<String>(mSeen.keySet());
+    }
+
+    /**
+     * Drops expired bundles, and forgets seen ids whose bundles would have expired.
+     *
+     * @return The number of bundles dropped
+     */
+    public synchronized int expire() throws IOException {
+        int expired = 0;
+        Iterator<Map.Entry<String, DtnBundle>> bundles = mBundles.entrySet().iterator();
+        while (bundles.hasNext()) {
+            Map.Entry<String, DtnBundle> entry = bundles.next();
+            if (entry.getValue().isExpired()) {
+                bundles.remove();
+                new File(mDir, entry.getKey() + SUFFIX).delete();
+                expired++;
+            }
+        }
+        long now = System.currentTimeMillis();
+        boolean forgot = false;
+        Iterator<Long> seen = mSeen.values().iterator();
+        while (seen.hasNext()) {
+            if (seen.next() < now) {
+                seen.remove();
+                forgot = true;
+            }
+        }
+        if (forgot) {
+            saveSeen();
+        }
+        return expired;
+    }
+
+    private String soonestToExpire() {
+        String soonest = null;
+        long remaining = Long.MAX_VALUE;
+        for (DtnBundle bundle : mBundles.values()) {
+            if (bundle.getRemainingLifetime() < remaining) {
+                remaining = bundle.getRemainingLifetime();
+                soonest = bundle.getIdString();
+            }
+        }
+        return soonest;
+    }
+
+    private void load() throws IOException {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".tmp")) {
+                    file.delete();
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        DtnBundle bundle = DtnBundle.fromStoredBytes(read(file),
+                                file.lastModified());
+                        mBundles.put(bundle.getIdString(), bundle);
+                    } catch (IOException e) {
+                        // A bundle we can't read is one we can't deliver either
+                        file.delete();
+                    }
+                }
+            }
+        }
+        File seen = new File(mDir, SEEN_FILE);
+        if (seen.exists()) {
+            BufferedReader in = new BufferedReader(new FileReader(seen));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // id forgetAt
+                    String[] fields = line.split(" ");
+                    if (fields.length == 2) {
+                        mSeen.put(fields[0], Long.parseLong(fields[1]));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Forgetting what we've seen only risks taking a bundle twice
+                mSeen.clear();
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private void saveSeen() throws IOException {
+        File file = new File(mDir, SEEN_FILE);
+        File temp = new File(mDir, SEEN_FILE + ".tmp");
+        Writer out = new FileWriter(temp);
+        try {
+            for (Map.Entry<String, Long> entry : mSeen.entrySet()) {
+                out.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't save " + file);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) {
+                    throw new IOException("Short read of " + file);
+                }
+                offset += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
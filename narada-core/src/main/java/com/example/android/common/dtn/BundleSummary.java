@@ -0,0 +1,163 @@
+package com.example.android.common.dtn;
+
+import com.example.android.common.protocol.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Frame#TYPE_BUNDLE_SUMMARY} announcement: who the sender is, whether it is a gateway,
+ * the endpoints it is likeliest to meet, and a {@link BloomFilter} of the ids of the bundles it
+ * holds or is done with, so its peer only offers it the ones it lacks.
+ *
+ * <p>A courier carrying thousands of bundles summarises them in a few kilobytes rather than
+ * 16 bytes each. The price is that about one bundle in a hundred the sender lacks looks held, and
+ * isn't offered at this encounter. Every summary is built with a fresh seed, so it will be at the
+ * next.</p>
+ *
+ * <p>The payload is the sender's endpoint id (UTF), a gateway flag, a count and that many
+ * endpoint (UTF) and predictability (float) pairs, the number of ids summarised and the
+ * filter.</p>
+ */
+public class BundleSummary {
+
+    // Fraction of missing bundles that look held
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // Most predictabilities sent
+    public static final int MAX_PREDICTABILITIES = 32;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final String mEndpoint;
+    private final boolean mGateway;
+    private final Map<String, Float> mPredictabilities;
+    private final int mCount;
+    private final BloomFilter mFilter;
+
+    /**
+     * @param predictabilities How likely the sender is to meet each endpoint, most likely first
+     */
+    public BundleSummary(String endpoint, boolean gateway, Map<String, Float> predictabilities,
+            Collection<String> ids) {
+        mEndpoint = endpoint;
+        mGateway = gateway;
+        mPredictabilities = new LinkedHashMap<String, Float>();
+        for (Map.Entry<String, Float> entry : predictabilities.entrySet()) {
+            if (mPredictabilities.size() == MAX_PREDICTABILITIES) {
+                break;
+            }
+            mPredictabilities.put(entry.getKey(), entry.getValue());
+        }
+        mCount = ids.size();
+        // Leave room in the frame for the endpoint ids
+        mFilter = new BloomFilter(ids.size(), FALSE_POSITIVE_RATE,
+                Frame.MAX_PAYLOAD_LENGTH - 16 * 1024, sRandom.nextLong());
+        for (String id : ids) {
+            mFilter.add(fromHex(id));
+        }
+    }
+
+    private BundleSummary(String endpoint, boolean gateway, Map<String, Float> predictabilities,
+            int count, BloomFilter filter) {
+        mEndpoint = endpoint;
+        mGateway = gateway;
+        mPredictabilities = predictabilities;
+        mCount = count;
+        mFilter = filter;
+    }
+
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+
+    public boolean isGateway() {
+        return mGateway;
+    }
+
+    /**
+     * Returns how likely the sender is to meet each endpoint, from 0 to 1.
+     */
+    public Map<String, Float> getPredictabilities() {
+        return mPredictabilities;
+    }
+
+    /**
+     * Returns how many ids the sender summarised.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns false if the sender certainly doesn't have the bundle.
+     */
+    public boolean mightHave(String id) {
+        return mFilter.mightContain(fromHex(id));
+    }
+
+    public Frame toFrame() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                64 + mFilter.getSerializedLength());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(mEndpoint);
+            out.writeBoolean(mGateway);
+            out.writeByte(mPredictabilities.size());
+            for (Map.Entry<String, Float> entry : mPredictabilities.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeFloat(entry.getValue());
+            }
+            out.writeInt(mCount);
+            out.write(mFilter.toBytes());
+        } catch (IOException e) {
+            // Not from a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return new Frame(Frame.TYPE_BUNDLE_SUMMARY, bytes.toByteArray());
+    }
+
+    public static BundleSummary fromFrame(Frame frame) throws ProtocolException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(frame.getPayload(), 0, frame.getLength()));
+        try {
+            String endpoint = in.readUTF();
+            boolean gateway = in.readBoolean();
+            int entries = in.readUnsignedByte();
+            Map<String, Float> predictabilities = new LinkedHashMap<String, Float>();
+            for (int i = 0; i < entries; i++) {
+                String other = in.readUTF();
+                float p = in.readFloat();
+                if (!(p >= 0 && p <= 1)) {
+                    throw new ProtocolException("Bad predictability " + p);
+                }
+                predictabilities.put(other, p);
+            }
+            int count = in.readInt();
+            int offset = frame.getLength() - in.available();
+            BloomFilter filter = BloomFilter.fromBytes(frame.getPayload(), offset,
+                    frame.getLength() - offset);
+            return new BundleSummary(endpoint, gateway, predictabilities, count, filter);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ProtocolException("Truncated bundle summary");
+        }
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.android.common.dtn;
+
+import com.example.android.common.link.TransferPlanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.SecureRandom;
+
+/**
+ * A datagram on its way across several hops, in the manner of the DTN bundle protocol: who sent
+ * it, where it is going, how urgent it is, how long it may take and over how many hops, how many
+ * more copies its holder may hand out, and whether the hop it was handed to should take custody
+ * of it.
+ *
+ * <p>Devices' clocks can't be trusted to agree, so a bundle carries its age rather than its
+ * creation time. Each device adds the time it held the bundle before passing it on, and the
+ * bundle expires once its age reaches its lifetime.</p>
+ *
+ * <p>The flags hold the custody flag in bit 0, the priority, one of the
+ * {@link TransferPlanner} priorities, in bits 1 and 2, and in bit 3 whether the payload travels
+ * separately, in which case the payload field only says where to find it. Serialised as:</p>
+ * <pre>
+ *   version (1) | flags (1) | hop limit (1) | hop count (1) | copies (2) | id (16)
+ *   | lifetime (8) | age (8) | source (UTF) | destination (UTF) | payload length (4) | payload
+ * </pre>
+ */
+public class DtnBundle {
+
+    public static final int ID_LENGTH = 16;
+
+    private static final int VERSION = 2;
+    private static final int FLAG_CUSTODY = 1;
+    private static final int PRIORITY_SHIFT = 1;
+    private static final int PRIORITY_MASK = 3;
+    private static final int FLAG_DETACHED = 8;
+
+    // Largest payload we accept from a peer
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final byte[] mId;
+    private final String mSource;
+    private final String mDestination;
+    private final boolean mCustody;
+    private final int mPriority;
+    private final int mHopLimit;
+    private final int mHopCount;
+    private final int mCopies;
+    private final boolean mDetached;
+    private final long mLifetime;
+    // Age when it reached this device, and when that was by our clock
+    private final long mAge;
+    private final long mArrivedAt;
+    private final byte[] mPayload;
+
+    DtnBundle(byte[] id, String source, String destination, boolean custody, int priority,
+            int hopLimit, int hopCount, int copies, long lifetime, long age, long arrivedAt,
+            boolean detached, byte[] payload) {
+        mId = id;
+        mSource = source;
+        mDestination = destination;
+        mCustody = custody;
+        mPriority = priority;
+        mHopLimit = hopLimit;
+        mHopCount = hopCount;
+        mCopies = copies;
+        mDetached = detached;
+        mLifetime = lifetime;
+        mAge = age;
+        mArrivedAt = arrivedAt;
+        mPayload = payload;
+    }
+
+    /**
+     * Creates a new bundle originating here.
+     *
+     * @param lifetime How long it may take to arrive, in milliseconds
+     * @param hopLimit How many times it may be passed on, at most 255
+     * @param copies   How many copies may be spread, at most 65535
+     * @param priority One of the {@link TransferPlanner} priorities
+     */
+    public static DtnBundle create(String source, String destination, byte[] payload,
+            long lifetime, int hopLimit, int copies, int priority) {
+        if (hopLimit < 1 || hopLimit > 0xFF) {
+            throw new IllegalArgumentException("Bad hop limit " + hopLimit);
+        }
+        if (copies < 1 || copies > 0xFFFF) {
+            throw new IllegalArgumentException("Bad copy count " + copies);
+        }
+        if (priority < TransferPlanner.PRIORITY_BULK
+                || priority > TransferPlanner.PRIORITY_EXPEDITED) {
+            throw new IllegalArgumentException("Bad priority " + priority);
+        }
+        byte[] id = new byte[ID_LENGTH];
+        sRandom.nextBytes(id);
+        return new DtnBundle(id, source, destination, false, priority, hopLimit, 0, copies,
+                lifetime, 0, System.currentTimeMillis(), false, payload);
+    }
+
+    /**
+     * Returns this bundle with another copy count and custody flag, but the same age.
+     */
+    public DtnBundle withCopies(int copies, boolean custody) {
+        if (copies < 1 || copies > 0xFFFF) {
+            throw new IllegalArgumentException("Bad copy count " + copies);
+        }
+        return new DtnBundle(mId, mSource, mDestination, custody, mPriority, mHopLimit,
+                mHopCount, copies, mLifetime, mAge, mArrivedAt, mDetached, mPayload);
+    }
+
+    /**
+     * Returns this bundle with its payload replaced by {@code reference}, for a payload too large
+     * to send along with the rest, which goes some other way the reference identifies.
+     */
+    public DtnBundle withDetachedPayload(byte[] reference) {
+        return new DtnBundle(mId, mSource, mDestination, mCustody, mPriority, mHopLimit,
+                mHopCount, mCopies, mLifetime, mAge, mArrivedAt, true, reference);
+    }
+
+    /**
+     * Returns this bundle with {@code payload} in place of a detached payload's reference.
+     */
+    public DtnBundle withPayload(byte[] payload) {
+        return new DtnBundle(mId, mSource, mDestination, mCustody, mPriority, mHopLimit,
+                mHopCount, mCopies, mLifetime, mAge, mArrivedAt, false, payload);
+    }
+
+    public byte[] getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the id as 32 hex digits.
+     */
+    public String getIdString() {
+        return toHex(mId);
+    }
+
+    /**
+     * Returns the endpoint the bundle came from.
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the endpoint the bundle is going to.
+     */
+    public String getDestination() {
+        return mDestination;
+    }
+
+    /**
+     * Returns whether whoever sent us this bundle let go of its own copy once we signal custody.
+     */
+    public boolean isCustodyRequested() {
+        return mCustody;
+    }
+
+    /**
+     * Returns one of the {@link TransferPlanner} priorities.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Returns how many copies of the bundle its holder is responsible for, this one included.
+     */
+    public int getCopies() {
+        return mCopies;
+    }
+
+    public int getHopLimit() {
+        return mHopLimit;
+    }
+
+    /**
+     * Returns how many times the bundle has been passed on so far.
+     */
+    public int getHopCount() {
+        return mHopCount;
+    }
+
+    public long getLifetime() {
+        return mLifetime;
+    }
+
+    /**
+     * Returns how long ago the bundle was created, in milliseconds, as far as we can tell.
+     */
+    public long getAge() {
+        return mAge + Math.max(0, System.currentTimeMillis() - mArrivedAt);
+    }
+
+    public boolean isExpired() {
+        return getAge() >= mLifetime;
+    }
+
+    /**
+     * Returns how much longer the bundle may travel, in milliseconds.
+     */
+    public long getRemainingLifetime() {
+        return Math.max(0, mLifetime - getAge());
+    }
+
+    /**
+     * Returns whether it may be passed on again.
+     */
+    public boolean canForward() {
+        return mHopCount < mHopLimit && !isExpired();
+    }
+
+    /**
+     * Returns whether the payload travels separately, and {@link #getPayload()} is only a
+     * reference to it.
+     */
+    public boolean isPayloadDetached() {
+        return mDetached;
+    }
+
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Returns roughly how many bytes {@link #toBytes()} takes, before compression.
+     */
+    public int getSerializedLength() {
+        // Fixed fields, two UTF lengths and the payload length
+        return 40 + 2 + mSource.length() + 2 + mDestination.length() + 4 + mPayload.length;
+    }
+
+    /**
+     * Serialises the bundle for the next hop, with its age as of now.
+     */
+    public byte[] toBytes() {
+        return toBytes(mHopCount, getAge());
+    }
+
+    /**
+     * Serialises the bundle for our own storage, with its age and arrival time as they were.
+     */
+    byte[] toStoredBytes() {
+        return toBytes(mHopCount, mAge);
+    }
+
+    long getArrivedAt() {
+        return mArrivedAt;
+    }
+
+    private byte[] toBytes(int hopCount, long age) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mPayload.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte((mCustody ? FLAG_CUSTODY : 0) | mPriority << PRIORITY_SHIFT
+                    | (mDetached ? FLAG_DETACHED : 0));
+            out.writeByte(mHopLimit);
+            out.writeByte(hopCount);
+            out.writeShort(mCopies);
+            out.write(mId);
+            out.writeLong(mLifetime);
+            out.writeLong(age);
+            out.writeUTF(mSource);
+            out.writeUTF(mDestination);
+            out.writeInt(mPayload.length);
+            out.write(mPayload);
+        } catch (IOException e) {
+            // Not from a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a bundle that just arrived from another device, counting the hop it made.
+     */
+    public static DtnBundle fromBytes(byte[] data) throws ProtocolException {
+        return fromBytes(data, 1, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads a bundle from our own storage.
+     *
+     * @param arrivedAt When it reached this device, by our clock
+     */
+    static DtnBundle fromStoredBytes(byte[] data, long arrivedAt) throws ProtocolException {
+        return fromBytes(data, 0, arrivedAt);
+    }
+
+    private static DtnBundle fromBytes(byte[] data, int hops, long arrivedAt)
+            throws ProtocolException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readUnsignedByte() != VERSION) {
+                throw new ProtocolException("Unknown bundle version");
+            }
+            int flags = in.readUnsignedByte();
+            int priority = (flags >> PRIORITY_SHIFT) & PRIORITY_MASK;
+            if (priority > TransferPlanner.PRIORITY_EXPEDITED) {
+                throw new ProtocolException("Bad bundle priority " + priority);
+            }
+            int hopLimit = in.readUnsignedByte();
+            int hopCount = in.readUnsignedByte() + hops;
+            int copies = in.readUnsignedShort();
+            if (copies < 1) {
+                throw new ProtocolException("Bundle with no copies");
+            }
+            byte[] id = new byte[ID_LENGTH];
+            in.readFully(id);
+            long lifetime = in.readLong();
+            long age = in.readLong();
+            String source = in.readUTF();
+            String destination = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_PAYLOAD_LENGTH || length > in.available()) {
+                throw new ProtocolException("Bad bundle payload length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new DtnBundle(id, source, destination, (flags & FLAG_CUSTODY) != 0, priority,
+                    hopLimit, hopCount, copies, lifetime, age, arrivedAt,
+                    (flags & FLAG_DETACHED) != 0, payload);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ProtocolException("Truncated bundle");
+        }
+    }
+
+    static String toHex(byte[] id) {
+        StringBuilder hex = new StringBuilder(id.length * 2);
+        for (byte b : id) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.android.common.dtn;
+
+/**
+ * Gives every peer a copy of every bundle it lacks. Delivers soonest when encounters are short
+ * of nothing, at the cost of a transmission per bundle per encounter.
+ */
+public class EpidemicPolicy implements RoutingPolicy {
+
+    @Override
+    public String getName() {
+        return "epidemic";
+    }
+
+    @Override
+    public int getInitialCopies() {
+        return 1;
+    }
+
+    @Override
+    public Decision decide(DtnBundle bundle, BundleSummary peer, ProphetTable table) {
+        // Copies aren't counted; everyone gets one
+        return Decision.replicate(bundle.getCopies(), bundle.getCopies());
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.android.common.dtn;
+
+import java.util.Map;
+
+/**
+ * PRoPHET's GRTR strategy: give a peer a copy of a bundle only if the peer is likelier than we
+ * are to meet its destination, going by the predictabilities in the peer's summary and our own
+ * {@link ProphetTable}.
+ */
+public class ProphetPolicy implements RoutingPolicy {
+
+    @Override
+    public String getName() {
+        return "prophet";
+    }
+
+    @Override
+    public int getInitialCopies() {
+        return 1;
+    }
+
+    @Override
+    public Decision decide(DtnBundle bundle, BundleSummary peer, ProphetTable table) {
+        String destination = bundle.getDestination();
+        Map<String, Float> theirs = peer.getPredictabilities();
+        Float p = theirs.get(destination);
+        if (p != null && p > table.get(destination)) {
+            return Decision.replicate(bundle.getCopies(), bundle.getCopies());
+        }
+        return Decision.HOLD;
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.android.common.dtn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How likely this device is to deliver a bundle to each endpoint, in the manner of PRoPHET
+ * (RFC 6693): meeting an endpoint raises its predictability, time without meeting it lowers it,
+ * and meeting someone who often meets it raises it a little too.
+ *
+ * <p>Encounters between villages are days apart, so the table is kept in a file, as
+ * {@code endpoint predictability} lines after a first line with when it was last aged. Without a
+ * file it is only kept in memory.</p>
+ */
+public class ProphetTable {
+
+    // RFC 6693 defaults
+    private static final double P_ENCOUNTER = 0.75;
+    private static final double BETA = 0.25;
+    private static final double GAMMA = 0.98;
+
+    // Predictabilities are aged by GAMMA once per unit of time; couriers come by every few hours
+    private static final long AGING_UNIT_MS = 60 * 60 * 1000;
+
+    // Endpoints remembered, the least predictable forgotten first
+    private static final int MAX_ENDPOINTS = 128;
+
+    // Below this an endpoint is as good as never met
+    private static final double P_MIN = 0.01;
+
+    private final File mFile;
+    private final Map<String, Double> mPredictabilities = new HashMap<String, Double>();
+    private long mAgedAt = System.currentTimeMillis();
+
+    /**
+     * Opens the table, reading {@code file} if it exists.
+     *
+     * @param file Where the table is kept, or null to keep it in memory only
+     */
+    public ProphetTable(File file) {
+        mFile = file;
+        if (file != null && file.exists()) {
+            try {
+                load(file);
+            } catch (IOException | NumberFormatException e) {
+                // Starting from scratch only costs some routing decisions
+                mPredictabilities.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns how likely we are to deliver to {@code endpoint}, from 0 to 1.
+     */
+    public synchronized double get(String endpoint) {
+        age();
+        Double p = mPredictabilities.get(endpoint);
+        return p == null ? 0 : p;
+    }
+
+    /**
+     * Records meeting {@code endpoint} directly.
+     */
+    public synchronized void encounter(String endpoint) {
+        age();
+        double old = get(endpoint);
+        mPredictabilities.put(endpoint, old + (1 - old) * P_ENCOUNTER);
+        trim();
+    }
+
+    /**
+     * Learns from a peer's predictabilities: whoever {@code peer} is likely to meet, we are
+     * somewhat likely to reach through it. Call after {@link #encounter(String)} for the peer.
+     *
+     * @param peer   The endpoint we met
+     * @param theirs The peer's predictabilities, as sent in its summary
+     */
+    public synchronized void learn(String peer, Map<String, Float> theirs) {
+        double viaPeer = get(peer);
+        for (Map.Entry<String, Float> entry : theirs.entrySet()) {
+            String endpoint = entry.getKey();
+            if (endpoint.equals(peer)) {
+                continue;
+            }
+            double transitive = viaPeer * entry.getValue() * BETA;
+            if (transitive > get(endpoint)) {
+                mPredictabilities.put(endpoint, transitive);
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Returns the {@code count} endpoints we are likeliest to deliver to, for a summary.
+     */
+    public synchronized Map<String, Float> top(int count) {
+        age();
+        List<Map.Entry<String, Double>> entries =
+                new ArrayList<Map.Entry<String, Double>>(mPredictabilities.entrySet());
+        Collections.sort(entries, BY_PREDICTABILITY);
+        Map<String, Float> top = new LinkedHashMap<String, Float>();
+        for (int i = 0; i < entries.size() && i < count; i++) {
+            top.put(entries.get(i).getKey(), entries.get(i).getValue().floatValue());
+        }
+        return top;
+    }
+
+    /**
+     * Writes the table to its file. Does nothing for a table kept in memory.
+     */
+    public synchronized void save() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        Writer out = new FileWriter(temp);
+        try {
+            out.write(mAgedAt + "\n");
+            for (Map.Entry<String, Double> entry : mPredictabilities.entrySet()) {
+                out.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Couldn't save " + mFile);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return top(MAX_ENDPOINTS).toString();
+    }
+
+    // Applies P = P * GAMMA^k for the k whole units since the table was last aged
+    private void age() {
+        long now = System.currentTimeMillis();
+        long units = (now - mAgedAt) / AGING_UNIT_MS;
+        if (units <= 0) {
+            if (now < mAgedAt) {
+                // The clock went back; age from here on
+                mAgedAt = now;
+            }
+            return;
+        }
+        double factor = Math.pow(GAMMA, units);
+        List<String> forgotten = new ArrayList<String>();
+        for (Map.Entry<String, Double> entry : mPredictabilities.entrySet()) {
+            double p = entry.getValue() * factor;
+            if (p < P_MIN) {
+                forgotten.add(entry.getKey());
+            } else {
+                entry.setValue(p);
+            }
+        }
+        mPredictabilities.keySet().removeAll(forgotten);
+        mAgedAt += units * AGING_UNIT_MS;
+    }
+
+    private void trim() {
+        if (mPredictabilities.size() <= MAX_ENDPOINTS) {
+            return;
+        }
+        List<Map.Entry<String, Double>> entries =
+                new ArrayList<Map.Entry<String, Double>>(mPredictabilities.entrySet());
+        Collections.sort(entries, BY_PREDICTABILITY);
+        for (Map.Entry<String, Double> entry : entries.subList(MAX_ENDPOINTS, entries.size())) {
+            mPredictabilities.remove(entry.getKey());
+        }
+    }
+
+    private void load(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+            mAgedAt = Long.parseLong(line);
+            while ((line = in.readLine()) != null) {
+                int space = line.lastIndexOf(' ');
+                if (space > 0) {
+                    mPredictabilities.put(line.substring(0, space),
+                            Double.parseDouble(line.substring(space + 1)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Most predictable first
+    private static final Comparator<Map.Entry<String, Double>> BY_PREDICTABILITY =
+            new Comparator<Map.Entry<String, Double>>() {
+                @Override
+                public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                    return Double.compare(b.getValue(), a.getValue());
+                }
+            };
+}
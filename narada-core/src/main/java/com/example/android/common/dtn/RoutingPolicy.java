@@ -0,0 +1,78 @@
+package com.example.android.common.dtn;
+
+/**
+ * Decides, bundle by bundle, what to do with the bundles a peer lacks when we meet it: give it a
+ * copy, hand the bundle over altogether, or keep it for a better encounter.
+ *
+ * <p>Policies are consulted by {@link BundleAgent} and may be swapped at any time. Bundles
+ * addressed to the peer are always handed over without asking the policy.</p>
+ */
+public interface RoutingPolicy {
+
+    /**
+     * What to do with one bundle.
+     */
+    final class Decision {
+
+        public enum Action {
+            REPLICATE,  // give the peer a copy and keep ours
+            HAND_OFF,   // give the peer the bundle and drop ours once it takes custody
+            HOLD        // keep it to ourselves for now
+        }
+
+        public static final Decision HOLD = new Decision(Action.HOLD, 0, 0);
+
+        private final Action mAction;
+        private final int mPeerCopies;
+        private final int mKeptCopies;
+
+        private Decision(Action action, int peerCopies, int keptCopies) {
+            mAction = action;
+            mPeerCopies = peerCopies;
+            mKeptCopies = keptCopies;
+        }
+
+        public static Decision handOff(DtnBundle bundle) {
+            return new Decision(Action.HAND_OFF, bundle.getCopies(), 0);
+        }
+
+        /**
+         * @param peerCopies How many copies the peer becomes responsible for
+         * @param keptCopies How many we remain responsible for
+         */
+        public static Decision replicate(int peerCopies, int keptCopies) {
+            return new Decision(Action.REPLICATE, peerCopies, keptCopies);
+        }
+
+        public Action getAction() {
+            return mAction;
+        }
+
+        public int getPeerCopies() {
+            return mPeerCopies;
+        }
+
+        public int getKeptCopies() {
+            return mKeptCopies;
+        }
+    }
+
+    /**
+     * Returns a short name for logs and statistics.
+     */
+    String getName();
+
+    /**
+     * Returns how many copies a bundle created here starts with.
+     */
+    int getInitialCopies();
+
+    /**
+     * Decides what to do with a bundle the peer lacks.
+     *
+     * @param bundle The bundle, not addressed to the peer
+     * @param peer   The peer's summary
+     * @param table  Our delivery predictabilities, already updated for this encounter
+     */
+    Decision decide(DtnBundle bundle, BundleSummary peer, ProphetTable table);
+}
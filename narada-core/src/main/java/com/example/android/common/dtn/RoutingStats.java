@@ -0,0 +1,81 @@
+package com.example.android.common.dtn;
+
+/**
+ * What this device's routing has cost, for comparing policies. The overhead ratio is the usual
+ * (relayed - delivered) / delivered, counted from here: bundle transmissions to peers, against
+ * the ones that went straight to their destination.
+ */
+public class RoutingStats {
+
+    private final String mPolicy;
+    private int mSent;
+    private int mSentToDestination;
+    private int mReceived;
+    private int mDelivered;
+
+    public RoutingStats(String policy) {
+        mPolicy = policy;
+    }
+
+    public String getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Records a bundle sent to a peer.
+     *
+     * @param toDestination Whether the peer was its destination
+     */
+    public synchronized void onSent(boolean toDestination) {
+        mSent++;
+        if (toDestination) {
+            mSentToDestination++;
+        }
+    }
+
+    /**
+     * Records a bundle received from a peer.
+     *
+     * @param delivered Whether it was for us
+     */
+    public synchronized void onReceived(boolean delivered) {
+        mReceived++;
+        if (delivered) {
+            mDelivered++;
+        }
+    }
+
+    public synchronized int getSentCount() {
+        return mSent;
+    }
+
+    public synchronized int getSentToDestinationCount() {
+        return mSentToDestination;
+    }
+
+    public synchronized int getReceivedCount() {
+        return mReceived;
+    }
+
+    public synchronized int getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * Returns transmissions that didn't reach a destination per one that did, or -1 before any
+     * did.
+     */
+    public synchronized double getOverheadRatio() {
+        if (mSentToDestination == 0) {
+            return -1;
+        }
+        return (double) (mSent - mSentToDestination) / mSentToDestination;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mPolicy + ": sent " + mSent + " (" + mSentToDestination
+                + " to destination), received " + mReceived + " (" + mDelivered
+                + " delivered), overhead " + getOverheadRatio();
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.android.common.dtn;
+
+/**
+ * Binary spray-and-wait (Spyropoulos et al.): a bundle starts with a fixed number of copies, and
+ * a holder of more than one gives half of them to each peer it meets that lacks the bundle. A
+ * holder of the last copy waits to meet the destination itself. That bounds the transmissions
+ * per bundle by the copy count, whatever the number of encounters.
+ */
+public class SprayAndWaitPolicy implements RoutingPolicy {
+
+    public static final int DEFAULT_COPIES = 4;
+
+    private final int mCopies;
+
+    public SprayAndWaitPolicy() {
+        this(DEFAULT_COPIES);
+    }
+
+    /**
+     * @param copies How many copies a new bundle is sprayed as, at least 1
+     */
+    public SprayAndWaitPolicy(int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("Bad copy count " + copies);
+        }
+        mCopies = copies;
+    }
+
+    @Override
+    public String getName() {
+        return "spray-and-wait/" + mCopies;
+    }
+
+    @Override
+    public int getInitialCopies() {
+        return mCopies;
+    }
+
+    @Override
+    public Decision decide(DtnBundle bundle, BundleSummary peer, ProphetTable table) {
+        int copies = bundle.getCopies();
+        if (copies <= 1) {
+            return Decision.HOLD;
+        }
+        return Decision.replicate(copies / 2, copies - copies / 2);
+    }
+}
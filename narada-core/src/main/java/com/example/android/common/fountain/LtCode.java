@@ -0,0 +1,147 @@
+package com.example.android.common.fountain;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * The shape of a Luby transform (LT) code over one payload: how the payload is cut into source
+ * blocks, and which blocks each encoded symbol is the XOR of.
+ *
+ * <p>A symbol is named by a 32-bit encoding symbol id (ESI). Its degree is drawn from the robust
+ * soliton distribution and its blocks uniformly, by a {@link Random} seeded from the payload's
+ * id and the ESI, so both ends work out the same blocks without them ever being sent. Any
+ * K(1 + e) distinct symbols decode the payload with high probability, whichever sender they came
+ * from and in whatever order; e shrinks as K grows, from about 25% at a hundred blocks to under
+ * 10% at a few thousand.</p>
+ */
+public class LtCode {
+
+    // Robust soliton parameters (Luby 2002); these favour a low overhead over a low failure rate,
+    // since a failed decode only means waiting for a few more symbols
+    private static final double C = 0.05;
+    private static final double DELTA = 0.5;
+
+    // Source blocks per payload, so decoding state stays bounded
+    public static final int MAX_BLOCKS = 16 * 1024;
+
+    private final long mId;
+    private final int mLength;
+    private final int mSymbolSize;
+    private final int mBlocks;
+    // Cumulative degree distribution; mCdf[d] is the probability of a degree of at most d
+    private final double[] mCdf;
+
+    /**
+     * @param id         Identifies the payload; symbols from codes with other ids don't mix
+     * @param length     The payload length in bytes
+     * @param symbolSize Bytes per source block and per symbol
+     */
+    public LtCode(long id, int length, int symbolSize) {
+        if (length < 0 || symbolSize <= 0) {
+            throw new IllegalArgumentException("Bad LT code " + length + "/" + symbolSize);
+        }
+        long blocks = Math.max(1, ((long) length + symbolSize - 1) / symbolSize);
+        if (blocks > MAX_BLOCKS) {
+            throw new IllegalArgumentException("Too many LT blocks: " + blocks);
+        }
+        mId = id;
+        mLength = length;
+        mSymbolSize = symbolSize;
+        mBlocks = (int) blocks;
+        mCdf = robustSoliton(mBlocks);
+    }
+
+    /**
+     * Returns the smallest symbol size that keeps a payload within {@link #MAX_BLOCKS} blocks,
+     * or {@code preferred} if that is larger.
+     */
+    public static int symbolSizeFor(int length, int preferred) {
+        return Math.max(preferred, (int) (((long) length + MAX_BLOCKS - 1) / MAX_BLOCKS));
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getSymbolSize() {
+        return mSymbolSize;
+    }
+
+    /**
+     * Returns the number of source blocks, K.
+     */
+    public int getBlockCount() {
+        return mBlocks;
+    }
+
+    /**
+     * Returns the source blocks that symbol {@code esi} is the XOR of, in no particular order.
+     */
+    public int[] neighbours(int esi) {
+        Random random = new Random(mId ^ (esi * 0x9E3779B97F4A7C15L));
+        int degree = degree(random.nextDouble());
+        int[] blocks = new int[degree];
+        if (degree == mBlocks) {
+            for (int i = 0; i < degree; i++) {
+                blocks[i] = i;
+            }
+            return blocks;
+        }
+        BitSet picked = new BitSet(mBlocks);
+        for (int i = 0; i < degree; ) {
+            int block = random.nextInt(mBlocks);
+            if (!picked.get(block)) {
+                picked.set(block);
+                blocks[i++] = block;
+            }
+        }
+        return blocks;
+    }
+
+    private int degree(double u) {
+        // Smallest d with u <= mCdf[d]
+        int low = 1;
+        int high = mBlocks;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (u <= mCdf[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static double[] robustSoliton(int k) {
+        double[] mu = new double[k + 1];
+        // Ideal soliton: rho(1) = 1/K, rho(d) = 1/(d(d - 1))
+        mu[1] = 1.0 / k;
+        for (int d = 2; d <= k; d++) {
+            mu[d] = 1.0 / ((double) d * (d - 1));
+        }
+        // Plus tau, which adds low degrees and a spike at K/R so decoding doesn't stall
+        double r = C * Math.log(k / DELTA) * Math.sqrt(k);
+        int spike = (int) Math.max(1, Math.min(k, Math.round(k / r)));
+        for (int d = 1; d < spike; d++) {
+            mu[d] += r / ((double) d * k);
+        }
+        mu[spike] += r * Math.log(r / DELTA) / k;
+        double total = 0;
+        for (int d = 1; d <= k; d++) {
+            total += Math.max(0, mu[d]);
+        }
+        double[] cdf = new double[k + 1];
+        double sum = 0;
+        for (int d = 1; d <= k; d++) {
+            sum += Math.max(0, mu[d]) / total;
+            cdf[d] = sum;
+        }
+        cdf[k] = 1;
+        return cdf;
+    }
+}
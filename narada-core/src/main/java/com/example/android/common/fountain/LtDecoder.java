@@ -0,0 +1,211 @@
+package com.example.android.common.fountain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds a payload from LT symbols by peeling: a symbol with one source block left unknown
+ * is that block, XORing a newly known block out of every symbol that covers it may leave more
+ * such symbols, and so on until every block is known.
+ *
+ * <p>Symbols can be added in any order, from any number of senders; duplicates, and symbols whose
+ * blocks are all known already, are ignored.</p>
+ *
+ * <p>No more symbols are kept pending than the payload has blocks, the oldest making way for a
+ * new one, so a decoder never holds much more than twice its payload however many symbols a
+ * sender throws at it.</p>
+ */
+public class LtDecoder {
+
+    // A symbol some of whose blocks are still unknown
+    private static class Pending {
+        final int mEsi;
+        final byte[] mData;
+        final int[] mBlocks;
+        int mUnknown;
+
+        Pending(int esi, byte[] data, int[] blocks, int unknown) {
+            mEsi = esi;
+            mData = data;
+            mBlocks = blocks;
+            mUnknown = unknown;
+        }
+    }
+
+    private final LtCode mCode;
+    private final byte[][] mBlocks;
+    // The pending symbols covering each unknown block
+    private final List<List<Pending>> mCovering;
+    // Pending symbols by symbol id, oldest first
+    private final Map<Integer, Pending> mPending = new LinkedHashMap<Integer, Pending>();
+    private int mKnown;
+    private int mReceived;
+
+    public LtDecoder(LtCode code) {
+        mCode = code;
+        int k = code.getBlockCount();
+        mBlocks = new byte[k][];
+        mCovering = new ArrayList<List<Pending>>(k);
+        for (int i = 0; i < k; i++) {
+            mCovering.add(null);
+        }
+    }
+
+    public LtCode getCode() {
+        return mCode;
+    }
+
+    /**
+     * Takes in symbol {@code esi}, {@link LtCode#getSymbolSize()} bytes of {@code data} from
+     * {@code offset}.
+     *
+     * @return Whether the payload is now complete
+     */
+    public synchronized boolean add(int esi, byte[] data, int offset) {
+        if (isComplete() || mPending.containsKey(esi)) {
+            return isComplete();
+        }
+        mReceived++;
+        int size = mCode.getSymbolSize();
+        byte[] symbol = new byte[size];
+        System.arraycopy(data, offset, symbol, 0, size);
+        int[] blocks = mCode.neighbours(esi);
+        int unknown = 0;
+        int last = -1;
+        for (int block : blocks) {
+            if (mBlocks[block] != null) {
+                xor(symbol, mBlocks[block]);
+            } else {
+                unknown++;
+                last = block;
+            }
+        }
+        if (unknown == 0) {
+            // Nothing new in it
+            return false;
+        }
+        if (unknown == 1) {
+            solve(last, symbol);
+            return isComplete();
+        }
+        if (mPending.size() >= mBlocks.length) {
+            drop(mPending.values().iterator());
+        }
+        Pending pending = new Pending(esi, symbol, blocks, unknown);
+        mPending.put(esi, pending);
+        for (int block : blocks) {
+            if (mBlocks[block] == null) {
+                List<Pending> covering = mCovering.get(block);
+                if (covering == null) {
+                    covering = new ArrayList<Pending>(4);
+                    mCovering.set(block, covering);
+                }
+                covering.add(pending);
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isComplete() {
+        return mKnown == mBlocks.length;
+    }
+
+    /**
+     * Returns how many symbols have been added so far. A symbol added again counts again, unless
+     * it is still pending.
+     */
+    public synchronized int getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * Returns how many source blocks are known so far.
+     */
+    public synchronized int getKnownCount() {
+        return mKnown;
+    }
+
+    /**
+     * Returns roughly how many bytes of heap the known blocks and pending symbols take.
+     */
+    public synchronized long getHeldBytes() {
+        return (long) (mKnown + mPending.size()) * mCode.getSymbolSize();
+    }
+
+    /**
+     * Returns the payload, once complete.
+     */
+    public synchronized byte[] getData() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Only " + mKnown + " of " + mBlocks.length
+                    + " blocks known");
+        }
+        byte[] data = new byte[mCode.getLength()];
+        int size = mCode.getSymbolSize();
+        for (int i = 0; i < mBlocks.length; i++) {
+            int start = i * size;
+            System.arraycopy(mBlocks[i], 0, data, start, Math.min(size, data.length - start));
+        }
+        return data;
+    }
+
+    private void solve(int first, byte[] value) {
+        Deque<Integer> solved = new ArrayDeque<Integer>();
+        mBlocks[first] = value;
+        mKnown++;
+        solved.add(first);
+        while (!solved.isEmpty()) {
+            int block = solved.poll();
+            List<Pending> covering = mCovering.get(block);
+            if (covering == null) {
+                continue;
+            }
+            mCovering.set(block, null);
+            for (Pending pending : covering) {
+                if (pending.mUnknown == 0) {
+                    continue;
+                }
+                xor(pending.mData, mBlocks[block]);
+                if (--pending.mUnknown != 1) {
+                    continue;
+                }
+                // The one block left is the symbol itself
+                mPending.remove(pending.mEsi);
+                for (int other : pending.mBlocks) {
+                    if (mBlocks[other] == null) {
+                        pending.mUnknown = 0;
+                        mBlocks[other] = pending.mData;
+                        mKnown++;
+                        solved.add(other);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the pending symbol the iterator is at, from the blocks it covers as well.
+     */
+    private void drop(Iterator<Pending> pending) {
+        Pending dropped = pending.next();
+        pending.remove();
+        for (int block : dropped.mBlocks) {
+            List<Pending> covering = mCovering.get(block);
+            if (covering != null) {
+                covering.remove(dropped);
+            }
+        }
+    }
+
+    private static void xor(byte[] into, byte[] from) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] ^= from[i];
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.android.common.fountain;
+
+import java.util.Arrays;
+
+/**
+ * Produces as many LT symbols of a payload as anyone cares to send.
+ */
+public class LtEncoder {
+
+    private final LtCode mCode;
+    private final byte[] mData;
+
+    public LtEncoder(LtCode code, byte[] data) {
+        if (data.length != code.getLength()) {
+            throw new IllegalArgumentException("Payload is " + data.length + " bytes, code is for "
+                    + code.getLength());
+        }
+        mCode = code;
+        mData = data;
+    }
+
+    public LtCode getCode() {
+        return mCode;
+    }
+
+    /**
+     * Writes symbol {@code esi} to {@code out} at {@code offset}, filling
+     * {@link LtCode#getSymbolSize()} bytes. The payload is taken as padded with zeroes to a whole
+     * number of blocks.
+     */
+    public void symbol(int esi, byte[] out, int offset) {
+        int size = mCode.getSymbolSize();
+        Arrays.fill(out, offset, offset + size, (byte) 0);
+        for (int block : mCode.neighbours(esi)) {
+            int start = block * size;
+            int length = Math.min(size, mData.length - start);
+            for (int i = 0; i < length; i++) {
+                out[offset + i] ^= mData[start + i];
+            }
+        }
+    }
+}
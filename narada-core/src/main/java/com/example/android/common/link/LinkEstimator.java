@@ -0,0 +1,110 @@
+package com.example.android.common.link;
+
+/**
+ * A running estimate of a link's round trip time and goodput, for deciding how much to send and
+ * how to cut it up.
+ *
+ * <p>Round trip samples are smoothed the way TCP does (RFC 6298): a smoothed RTT and its mean
+ * deviation, which together give a retransmission timeout. Goodput is an exponentially weighted
+ * average over bursts of writes, each burst timed from its first byte until it has been flushed
+ * to the link. Bursts too small to keep the link busy are not sampled, or a trickle of short
+ * acks would make an idle link look slow.</p>
+ */
+public class LinkEstimator {
+
+    // RFC 6298 gains
+    private static final double RTT_ALPHA = 1.0 / 8;
+    private static final double RTT_BETA = 1.0 / 4;
+    private static final double GOODPUT_ALPHA = 1.0 / 4;
+
+    // Bursts smaller than this are not timed
+    public static final int MIN_BURST_BYTES = 16 * 1024;
+
+    private static final long MIN_TIMEOUT_MS = 200;
+    private static final long MAX_TIMEOUT_MS = 60 * 1000;
+    // Before any sample; Bluetooth round trips are often tens of milliseconds
+    private static final long INITIAL_TIMEOUT_MS = 1000;
+
+    private double mSmoothedRtt = -1;
+    private double mRttVariance;
+    private double mGoodput = -1;
+    private int mRttSamples;
+
+    /**
+     * Adds a round trip time measurement.
+     */
+    public synchronized void onRttSample(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = millis;
+            mRttVariance = millis / 2.0;
+        } else {
+            mRttVariance = (1 - RTT_BETA) * mRttVariance
+                    + RTT_BETA * Math.abs(mSmoothedRtt - millis);
+            mSmoothedRtt = (1 - RTT_ALPHA) * mSmoothedRtt + RTT_ALPHA * millis;
+        }
+        mRttSamples++;
+    }
+
+    /**
+     * Adds a burst of writes: {@code bytes} went out in {@code nanos} of continuous writing.
+     */
+    public synchronized void onBurst(long bytes, long nanos) {
+        if (bytes < MIN_BURST_BYTES || nanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / nanos;
+        mGoodput = mGoodput < 0 ? rate : (1 - GOODPUT_ALPHA) * mGoodput + GOODPUT_ALPHA * rate;
+    }
+
+    /**
+     * Returns the smoothed round trip time in milliseconds, or -1 before the first sample.
+     */
+    public synchronized long getSmoothedRtt() {
+        return Math.round(mSmoothedRtt);
+    }
+
+    /**
+     * Returns the mean deviation of the round trip time in milliseconds.
+     */
+    public synchronized long getRttVariance() {
+        return Math.round(mRttVariance);
+    }
+
+    /**
+     * Returns how long to wait for an answer before presuming the request or answer lost.
+     */
+    public synchronized long getTimeout() {
+        if (mSmoothedRtt < 0) {
+            return INITIAL_TIMEOUT_MS;
+        }
+        long timeout = Math.round(mSmoothedRtt + 4 * mRttVariance);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    /**
+     * Returns the estimated goodput in bytes per second, or -1 before the first sample.
+     */
+    public synchronized long getGoodput() {
+        return Math.round(mGoodput);
+    }
+
+    /**
+     * Returns roughly how many bytes the link can carry in {@code millis}, or -1 if we have no
+     * goodput estimate yet.
+     */
+    public synchronized long estimateBytes(long millis) {
+        if (mGoodput < 0) {
+            return -1;
+        }
+        return Math.round(mGoodput * millis / 1000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rtt " + getSmoothedRtt() + " +/- " + getRttVariance() + " ms over "
+                + mRttSamples + " samples, goodput " + getGoodput() + " B/s";
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.android.common.link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks what to send during an encounter, and in what order, so the few seconds or minutes two
+ * people spend within range go to what matters most rather than to whatever was queued first.
+ *
+ * <p>The byte budget is what the link is estimated to carry in the rest of a typical contact,
+ * from a {@link LinkEstimator} and the durations of recent contacts. Candidates are chosen as a
+ * 0/1 knapsack: each is worth its priority's weight, more the longer it has waited and more
+ * again if it would expire before the next contact, and the set that fits the budget with the
+ * most total worth is sent, most urgent and most worth per byte first. A newspaper that couldn't
+ * finish in time is left for a longer contact instead of holding up alerts behind it, unless it
+ * is sent in a way that lets what got through count towards the next attempt; see
+ * {@link #setResumableSize(long)}.</p>
+ */
+public class TransferPlanner {
+
+    // Priorities, lowest first
+    public static final int PRIORITY_BULK = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_EXPEDITED = 2;
+
+    // Worth of a candidate of each priority, before age and deadline
+    private static final double[] PRIORITY_WEIGHTS = {1, 10, 100};
+
+    // Before any contact has ended; walking past someone takes about a minute
+    private static final long DEFAULT_CONTACT_MS = 60 * 1000;
+    // Before two contacts have started; couriers come by about daily
+    private static final long DEFAULT_GAP_MS = 24 * 60 * 60 * 1000;
+    // Before any goodput sample; RFCOMM manages well over this
+    private static final long DEFAULT_GOODPUT = 32 * 1024;
+    // However long the contact has gone on, plan for at least this much more of it
+    private static final long MIN_REMAINING_MS = 5 * 1000;
+
+    // Knapsack capacities are rounded to at most this many units
+    private static final int MAX_UNITS = 2048;
+
+    private static final int MAX_SAMPLES = 32;
+    private static final double GAP_ALPHA = 1.0 / 4;
+
+    /**
+     * Something that could be sent.
+     */
+    public static class Candidate<T> {
+        final T mItem;
+        final long mSize;
+        final int mPriority;
+        final long mAge;
+        final long mRemaining;
+        double mWorth;
+
+        /**
+         * @param item      What to send
+         * @param size      Roughly how many bytes it takes on the link
+         * @param priority  One of the PRIORITY_ constants
+         * @param age       How long it has been waiting, in milliseconds
+         * @param remaining How long until it is no use any more, in milliseconds
+         */
+        public Candidate(T item, long size, int priority, long age, long remaining) {
+            if (priority < PRIORITY_BULK || priority > PRIORITY_EXPEDITED) {
+                throw new IllegalArgumentException("Bad priority " + priority);
+            }
+            mItem = item;
+            mSize = Math.max(1, size);
+            mPriority = priority;
+            mAge = Math.max(0, age);
+            mRemaining = Math.max(0, remaining);
+        }
+    }
+
+    private final long[] mContacts = new long[MAX_SAMPLES];
+    private int mContactCount;
+    private double mGap = -1;
+    private long mLastContactStart = -1;
+    private long mLastGoodput = -1;
+    private long mResumableSize = Long.MAX_VALUE;
+
+    /**
+     * Sets the size from which candidates are sent so that a part that gets through is kept,
+     * and the rest can follow in a later contact, from the same peer or another. Whatever budget
+     * is left after the plan starts the most worthwhile of those too large to fit.
+     */
+    public synchronized void setResumableSize(long size) {
+        mResumableSize = size;
+    }
+
+    /**
+     * Records the start of a contact, at {@code now} in milliseconds.
+     */
+    public synchronized void onContactStarted(long now) {
+        if (mLastContactStart >= 0 && now > mLastContactStart) {
+            double gap = now - mLastContactStart;
+            mGap = mGap < 0 ? gap : (1 - GAP_ALPHA) * mGap + GAP_ALPHA * gap;
+        }
+        mLastContactStart = now;
+    }
+
+    /**
+     * Records the end of a contact.
+     *
+     * @param millis  How long it lasted
+     * @param goodput The goodput seen over it in bytes per second, or -1 if unknown
+     */
+    public synchronized void onContactEnded(long millis, long goodput) {
+        mContacts[mContactCount++ % MAX_SAMPLES] = millis;
+        if (goodput > 0) {
+            mLastGoodput = goodput;
+        }
+    }
+
+    /**
+     * Returns the median duration of recent contacts in milliseconds.
+     */
+    public synchronized long getExpectedContact() {
+        int n = Math.min(mContactCount, MAX_SAMPLES);
+        if (n == 0) {
+            return DEFAULT_CONTACT_MS;
+        }
+        long[] sorted = Arrays.copyOf(mContacts, n);
+        Arrays.sort(sorted);
+        return sorted[n / 2];
+    }
+
+    /**
+     * Returns the average time between the starts of contacts in milliseconds.
+     */
+    public synchronized long getExpectedGap() {
+        return mGap < 0 ? DEFAULT_GAP_MS : Math.round(mGap);
+    }
+
+    /**
+     * Returns how many bytes to plan for in the rest of a contact.
+     *
+     * @param link    The contact's link estimate
+     * @param elapsed How long the contact has gone on so far, in milliseconds
+     */
+    public long budget(LinkEstimator link, long elapsed) {
+        long remaining = Math.max(MIN_REMAINING_MS, getExpectedContact() - elapsed);
+        long bytes = link.estimateBytes(remaining);
+        if (bytes >= 0) {
+            return bytes;
+        }
+        long goodput;
+        synchronized (this) {
+            goodput = mLastGoodput > 0 ? mLastGoodput : DEFAULT_GOODPUT;
+        }
+        return goodput * remaining / 1000;
+    }
+
+    /**
+     * Picks the candidates worth the most that fit in {@code budget} bytes.
+     *
+     * @return The items to send, in the order to send them
+     */
+    public <T> List<T> plan(List<Candidate<T>> candidates, long budget) {
+        long gap = getExpectedGap();
+        long resumable;
+        synchronized (this) {
+            resumable = mResumableSize;
+        }
+        List<Candidate<T>> fitting = new ArrayList<Candidate<T>>();
+        Candidate<T> started = null;
+        for (Candidate<T> candidate : candidates) {
+            candidate.mWorth = worth(candidate, gap);
+            if (candidate.mSize <= budget) {
+                fitting.add(candidate);
+            } else if (candidate.mSize >= resumable
+                    && (started == null || candidate.mWorth > started.mWorth)) {
+                started = candidate;
+            }
+        }
+        List<Candidate<T>> chosen = knapsack(fitting, budget);
+        Collections.sort(chosen, new Comparator<Candidate<T>>() {
+            @Override
+            public int compare(Candidate<T> a, Candidate<T> b) {
+                if (a.mPriority != b.mPriority) {
+                    return b.mPriority - a.mPriority;
+                }
+                return Double.compare(b.mWorth / b.mSize, a.mWorth / a.mSize);
+            }
+        });
+        List<T> items = new ArrayList<T>(chosen.size() + 1);
+        long left = budget;
+        for (Candidate<T> candidate : chosen) {
+            items.add(candidate.mItem);
+            left -= candidate.mSize;
+        }
+        if (started != null && left > 0) {
+            // Last, so it only gets what the rest leave
+            items.add(started.mItem);
+        }
+        return items;
+    }
+
+    private static double worth(Candidate<?> candidate, long gap) {
+        double worth = PRIORITY_WEIGHTS[candidate.mPriority];
+        // Up to twice as much for having waited as long again as it has left
+        long lifetime = candidate.mAge + candidate.mRemaining;
+        if (lifetime > 0) {
+            worth *= 1 + (double) candidate.mAge / lifetime;
+        }
+        // Now or never
+        if (candidate.mRemaining < gap) {
+            worth *= 2;
+        }
+        return worth;
+    }
+
+    private static <T> List<Candidate<T>> knapsack(List<Candidate<T>> candidates, long budget) {
+        long total = 0;
+        for (Candidate<T> candidate : candidates) {
+            total += candidate.mSize;
+        }
+        if (total <= budget) {
+            // Everything fits
+            return new ArrayList<Candidate<T>>(candidates);
+        }
+        // Sizes are rounded up to units, so a chosen set never overruns the budget
+        long unit = Math.max(1, (budget + MAX_UNITS - 1) / MAX_UNITS);
+        int capacity = (int) (budget / unit);
+        int n = candidates.size();
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = (int) ((candidates.get(i).mSize + unit - 1) / unit);
+        }
+        double[] best = new double[capacity + 1];
+        boolean[][] taken = new boolean[n][capacity + 1];
+        for (int i = 0; i < n; i++) {
+            double worth = candidates.get(i).mWorth;
+            for (int c = capacity; c >= sizes[i]; c--) {
+                double with = best[c - sizes[i]] + worth;
+                if (with > best[c]) {
+                    best[c] = with;
+                    taken[i][c] = true;
+                }
+            }
+        }
+        List<Candidate<T>> chosen = new ArrayList<Candidate<T>>();
+        int c = capacity;
+        for (int i = n - 1; i >= 0; i--) {
+            if (taken[i][c]) {
+                chosen.add(candidates.get(i));
+                c -= sizes[i];
+            }
+        }
+        return chosen;
+    }
+}
@@ -19,20 +19,20 @@ package com.example.android.common.logger;
  * Helper class for a list (or tree) of LoggerNodes.
  *
  * <p>When this is set as the head of the list,
- * an instance of it can function as a drop-in replacement for {@link android.util.Log}.
+ * an instance of it can function as a drop-in replacement for android.util.Log.
  * Most of the methods in this class server only to map a method call in Log to its equivalent
  * in LogNode.</p>
  */
 public class Log {
-    // Grabbing the native values from Android's native logging facilities,
-    // to make for easy migration and interop.
+    // The values of Android's native logging facilities, to make for easy migration and
+    // interop. Spelled out so that this class also runs on a plain JVM.
     public static final int NONE = -1;
-    public static final int VERBOSE = android.util.Log.VERBOSE;
-    public static final int DEBUG = android.util.Log.DEBUG;
-    public static final int INFO = android.util.Log.INFO;
-    public static final int WARN = android.util.Log.WARN;
-    public static final int ERROR = android.util.Log.ERROR;
-    public static final int ASSERT = android.util.Log.ASSERT;
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
 
     // Stores the beginning of the LogNode topology.
     private static LogNode mLogNode;
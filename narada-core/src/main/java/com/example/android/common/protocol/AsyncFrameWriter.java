@@ -0,0 +1,285 @@
+package com.example.android.common.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes frames on an {@link Executor} so callers never block on a slow link.
+ *
+ * <p>Frames wait in bounded queues, one per lane. Lane 0 is the most urgent. The writer always
+ * takes the next frame from the most urgent lane that still has credit, and each lane gets
+ * {@code weights[lane]} credits per round. A small urgent frame therefore only waits for the
+ * frame currently being written, while a busy urgent lane still can't starve the bulk lanes
+ * completely.</p>
+ *
+ * <p>Everything queued is gathered into a coalescing buffer, so a burst of small frames leaves
+ * as a few large transport writes, and the buffer is flushed as soon as the queues run dry. When
+ * a lane is full {@link #enqueue} refuses the frame instead of blocking. Callers learn about
+ * completion or failure through a {@link Callback} once the frame's bytes have been flushed.</p>
+ *
+ * <p>The writer holds no thread of its own. A write task is handed to the executor when the
+ * first frame is queued, and ends once the queues have run dry, so an idle connection doesn't
+ * tie up a thread. At most one write task runs at a time.</p>
+ */
+public class AsyncFrameWriter {
+
+    /**
+     * Receives the outcome of an enqueued frame, on the write task's thread.
+     */
+    public interface Callback {
+        public void onFrameWritten(Frame frame);
+
+        public void onFrameFailed(Frame frame, IOException e);
+    }
+
+    /**
+     * Told about each burst of frames written back to back, on the write task's thread.
+     */
+    public interface BurstListener {
+        /**
+         * @param bytes Bytes written, headers included
+         * @param nanos Time from starting the burst until it had been flushed
+         */
+        public void onBurstWritten(long bytes, long nanos);
+    }
+
+    private static class Pending {
+        final Frame mFrame;
+        final Callback mCallback;
+
+        Pending(Frame frame, Callback callback) {
+            mFrame = frame;
+            mCallback = callback;
+        }
+    }
+
+    private final FrameWriter mFrameWriter;
+    private final int mQueueCapacity;
+    private final int[] mWeights;
+    private final ArrayDeque<Pending>[] mLanes;
+    // Frames a lane may still send this round; guarded by mLanes
+    private final int[] mCredits;
+    private final Executor mExecutor;
+    private final Runnable mWriteTask;
+    // A write task has been handed to the executor and hasn't ended yet; guarded by mLanes
+    private boolean mWriting;
+    private volatile boolean mClosed;
+    private volatile BurstListener mBurstListener;
+
+    /**
+     * Creates a writer with a single lane.
+     *
+     * @param out           The stream to write to
+     * @param queueCapacity How many frames may wait before {@link #enqueue} pushes back
+     * @param coalesceBytes Size of the buffer small frames are gathered in between flushes
+     * @param executor      Runs the write task
+     */
+    public AsyncFrameWriter(OutputStream out, int queueCapacity, int coalesceBytes,
+            Executor executor) {
+        this(out, new int[]{1}, queueCapacity, coalesceBytes, executor);
+    }
+
+    /**
+     * @param out           The stream to write to
+     * @param weights       Frames each lane may send per round, most urgent lane first
+     * @param queueCapacity How many frames may wait in each lane before {@link #enqueue}
+     *                      pushes back
+     * @param coalesceBytes Size of the buffer small frames are gathered in between flushes
+     * @param executor      Runs the write task
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AsyncFrameWriter(OutputStream out, int[] weights, int queueCapacity,
+            int coalesceBytes, Executor executor) {
+        mFrameWriter = new FrameWriter(new BufferedOutputStream(out, coalesceBytes));
+        mQueueCapacity = queueCapacity;
+        mWeights = weights.clone();
+        mLanes = new ArrayDeque[weights.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Bad weight " + weights[i]);
+            }
+            mLanes[i] = new ArrayDeque<Pending>(queueCapacity);
+        }
+        mCredits = mWeights.clone();
+        mExecutor = executor;
+        mWriteTask = new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+    }
+
+    /**
+     * Sets who is told about bursts of writes, for estimating the link's throughput.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setBurstListener(BurstListener listener) {
+        mBurstListener = listener;
+    }
+
+    /**
+     * Queues a frame in the only lane, or the most urgent one, without blocking.
+     *
+     * @see #enqueue(Frame, int, Callback)
+     */
+    public boolean enqueue(Frame frame, Callback callback) {
+        return enqueue(frame, 0, callback);
+    }
+
+    /**
+     * Queues a frame for writing without blocking.
+     *
+     * @param frame    The frame to write
+     * @param lane     The lane to queue it in, 0 being the most urgent
+     * @param callback Told once the frame has been flushed or has failed; may be null
+     * @return false if the lane is full or the writer is closed; the frame was not queued
+     */
+    public boolean enqueue(Frame frame, int lane, Callback callback) {
+        synchronized (mLanes) {
+            if (mClosed || mLanes[lane].size() >= mQueueCapacity) {
+                return false;
+            }
+            mLanes[lane].addLast(new Pending(frame, callback));
+            if (mWriting) {
+                // The running task picks it up
+                return true;
+            }
+            mWriting = true;
+        }
+        try {
+            mExecutor.execute(mWriteTask);
+        } catch (RejectedExecutionException e) {
+            // Nothing will ever write what is queued
+            closeWith(new IOException("No thread to write on", e));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of frames waiting to be written, across all lanes.
+     */
+    public int getQueuedCount() {
+        synchronized (mLanes) {
+            int count = 0;
+            for (ArrayDeque<Pending> lane : mLanes) {
+                count += lane.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Stops the writer. Frames still queued are failed rather than written.
+     */
+    public void close() {
+        closeWith(new IOException("Writer closed"));
+    }
+
+    private void closeWith(IOException e) {
+        List<Pending> dropped = new ArrayList<Pending>();
+        synchronized (mLanes) {
+            mClosed = true;
+            drainTo(dropped);
+        }
+        fail(dropped, e);
+    }
+
+    /**
+     * Writes bursts until nothing is queued. A frame a callback queues is written by the same
+     * task.
+     */
+    private void writeLoop() {
+        List<Pending> written = new ArrayList<Pending>();
+        try {
+            while (true) {
+                Pending pending;
+                synchronized (mLanes) {
+                    pending = poll();
+                    if (pending == null) {
+                        mWriting = false;
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                long bytes = 0;
+                while (pending != null) {
+                    written.add(pending);
+                    mFrameWriter.writeFrame(pending.mFrame);
+                    bytes += Frame.HEADER_LENGTH + pending.mFrame.getLength();
+                    pending = poll();
+                }
+                // Nothing more queued; push out whatever is still buffered
+                mFrameWriter.flush();
+                BurstListener listener = mBurstListener;
+                if (listener != null) {
+                    listener.onBurstWritten(bytes, System.nanoTime() - start);
+                }
+                for (Pending p : written) {
+                    if (p.mCallback != null) {
+                        p.mCallback.onFrameWritten(p.mFrame);
+                    }
+                }
+                written.clear();
+            }
+        } catch (IOException e) {
+            List<Pending> rest = new ArrayList<Pending>();
+            synchronized (mLanes) {
+                mClosed = true;
+                mWriting = false;
+                drainTo(rest);
+            }
+            fail(written, e);
+            fail(rest, e);
+        }
+    }
+
+    /**
+     * Returns the next frame due, or null if every lane is empty.
+     */
+    private Pending poll() {
+        synchronized (mLanes) {
+            for (int round = 0; round < 2; round++) {
+                boolean queued = false;
+                for (int i = 0; i < mLanes.length; i++) {
+                    if (mLanes[i].isEmpty()) {
+                        continue;
+                    }
+                    queued = true;
+                    if (mCredits[i] > 0) {
+                        mCredits[i]--;
+                        return mLanes[i].pollFirst();
+                    }
+                }
+                if (!queued) {
+                    return null;
+                }
+                // Every lane with frames has used its share; start a new round
+                System.arraycopy(mWeights, 0, mCredits, 0, mWeights.length);
+            }
+            return null;
+        }
+    }
+
+    private void drainTo(List<Pending> out) {
+        for (ArrayDeque<Pending> lane : mLanes) {
+            out.addAll(lane);
+            lane.clear();
+        }
+    }
+
+    private static void fail(List<Pending> pending, IOException e) {
+        for (Pending p : pending) {
+            if (p.mCallback != null) {
+                p.mCallback.onFrameFailed(p.mFrame, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.common.protocol;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of fixed-size byte buffers with explicit ownership. Whoever holds a
+ * {@link Buffer} owns it until it calls {@link Buffer#release()}; after that the buffer may be
+ * refilled by another reader at any moment, so touching it again is an error and throws.
+ *
+ * <p>At most {@code maxBuffers} pooled buffers are handed out at once. When all of them are in
+ * use {@link #acquire(int)} blocks, which stalls the reader and lets the transport's own flow
+ * control push back on the sender instead of piling up memory. Requests larger than the pool's
+ * buffer size get a one-off buffer that is simply dropped on release.</p>
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxBuffers;
+    private final ArrayDeque<Buffer> mFree = new ArrayDeque<Buffer>();
+    private int mAllocated;
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("bufferSize and maxBuffers must be positive");
+        }
+        mBufferSize = bufferSize;
+        mMaxBuffers = maxBuffers;
+    }
+
+    /**
+     * Returns the capacity of each pooled buffer.
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Takes ownership of a buffer holding at least {@code length} bytes, blocking while every
+     * pooled buffer is in use.
+     *
+     * @param length The number of bytes the caller is going to put in the buffer
+     * @throws InterruptedIOException If the calling thread is interrupted while waiting
+     */
+    public Buffer acquire(int length) throws InterruptedIOException {
+        if (length > mBufferSize) {
+            Buffer oversized = new Buffer(null, new byte[length]);
+            oversized.acquired(length);
+            return oversized;
+        }
+        Buffer buffer;
+        synchronized (this) {
+            try {
+                while (mFree.isEmpty() && mAllocated == mMaxBuffers) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for a buffer");
+            }
+            buffer = mFree.pollFirst();
+            if (buffer == null) {
+                buffer = new Buffer(this, new byte[mBufferSize]);
+                mAllocated++;
+            }
+        }
+        buffer.acquired(length);
+        return buffer;
+    }
+
+    private synchronized void recycle(Buffer buffer) {
+        mFree.addFirst(buffer);
+        notify();
+    }
+
+    /**
+     * A byte array on loan from a {@link BufferPool}.
+     */
+    public static final class Buffer {
+        private final BufferPool mPool;
+        private final byte[] mArray;
+        private int mLength;
+        private volatile boolean mOwned;
+
+        private Buffer(BufferPool pool, byte[] array) {
+            mPool = pool;
+            mArray = array;
+        }
+
+        private void acquired(int length) {
+            mLength = length;
+            mOwned = true;
+        }
+
+        /**
+         * Returns the backing array. Only the first {@link #length()} bytes are valid.
+         *
+         * @throws IllegalStateException If the buffer has already been released
+         */
+        public byte[] array() {
+            checkOwned();
+            return mArray;
+        }
+
+        /**
+         * Returns the number of valid bytes.
+         */
+        public int length() {
+            checkOwned();
+            return mLength;
+        }
+
+        /**
+         * Gives the buffer back to its pool. The caller must not use it afterwards.
+         *
+         * @throws IllegalStateException If the buffer has already been released
+         */
+        public void release() {
+            checkOwned();
+            mOwned = false;
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+
+        private void checkOwned() {
+            if (!mOwned) {
+                throw new IllegalStateException("Buffer used after release");
+            }
+        }
+    }
+}
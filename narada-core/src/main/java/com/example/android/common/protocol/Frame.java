@@ -0,0 +1,127 @@
+package com.example.android.common.protocol;
+
+/**
+ * A single unit of data on a datagram stream. Every frame on the wire starts with a fixed
+ * {@link #HEADER_LENGTH}-byte header:
+ *
+ * <pre>
+ *   0       2       3       4               8              12
+ *   +-------+-------+-------+---------------+---------------+----------
+ *   | magic |version| type  |    length     |    CRC32      | payload...
+ *   +-------+-------+-------+---------------+---------------+----------
+ * </pre>
+ *
+ * All integers are big-endian. The checksum covers the first eight header bytes and the payload,
+ * so a desynchronised stream is detected instead of being decoded as garbage.
+ *
+ * <p>Frames read by a pooled {@link FrameReader} borrow their payload from a {@link BufferPool};
+ * whoever ends up holding such a frame must call {@link #release()} once done with it.</p>
+ */
+public class Frame {
+
+    // Marks the start of every frame ("ND")
+    public static final int MAGIC = 0x4E44;
+
+    // Current wire format version
+    public static final int VERSION = 1;
+
+    public static final int HEADER_LENGTH = 12;
+
+    // Upper bound on a single payload, so a corrupt length can't make us allocate the heap away
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    // Frame types
+    public static final int TYPE_DATAGRAM = 1;
+    public static final int TYPE_CHUNK = 2;
+    public static final int TYPE_CHUNK_ACK = 3;
+    public static final int TYPE_HELLO = 4;
+    public static final int TYPE_DATAGRAM_ENCODED = 5;
+    public static final int TYPE_BLOB_HAVE = 6;
+    public static final int TYPE_BLOB = 7;
+    public static final int TYPE_SEQUENCED = 8;
+    public static final int TYPE_ACK = 9;
+    public static final int TYPE_PING = 10;
+    public static final int TYPE_PONG = 11;
+    public static final int TYPE_BUNDLE_SUMMARY = 12;
+    public static final int TYPE_BUNDLE = 13;
+    public static final int TYPE_CUSTODY = 14;
+    public static final int TYPE_SYMBOL = 15;
+    public static final int TYPE_SYMBOL_DONE = 16;
+
+    private final int mType;
+    private final byte[] mPayload;
+    private final int mLength;
+    private final BufferPool.Buffer mBuffer;
+
+    public Frame(int type, byte[] payload) {
+        this(type, payload, payload.length);
+    }
+
+    public Frame(int type, byte[] payload, int length) {
+        if (length < 0 || length > payload.length) {
+            throw new IllegalArgumentException("Bad payload length " + length);
+        }
+        mType = type;
+        mPayload = payload;
+        mLength = length;
+        mBuffer = null;
+    }
+
+    /**
+     * Creates a frame whose payload is on loan from a {@link BufferPool}. The frame takes over
+     * ownership of the buffer.
+     */
+    public Frame(int type, BufferPool.Buffer buffer) {
+        this(type, buffer.array(), buffer.length(), buffer);
+    }
+
+    private Frame(int type, byte[] payload, int length, BufferPool.Buffer buffer) {
+        mType = type;
+        mPayload = payload;
+        mLength = length;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Returns the frame type, one of the {@code TYPE_*} constants.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the array holding the payload. Only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Returns the number of valid payload bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns a frame of another type over the first {@code length} bytes of this one's payload,
+     * without copying. The new frame takes over a pooled payload, so this frame must not be
+     * used or released afterwards.
+     */
+    public Frame slice(int type, int length) {
+        if (length < 0 || length > mLength) {
+            throw new IllegalArgumentException("Bad slice length " + length);
+        }
+        return new Frame(type, mPayload, length, mBuffer);
+    }
+
+    /**
+     * Returns a pooled payload to its pool. The payload must not be touched afterwards. Does
+     * nothing for frames that own their payload array.
+     */
+    public void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+        }
+    }
+}
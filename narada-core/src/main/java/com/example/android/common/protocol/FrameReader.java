@@ -0,0 +1,106 @@
+package com.example.android.common.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.zip.CRC32;
+
+/**
+ * Reassembles {@link Frame}s from a byte stream. Reads block until a whole frame has arrived,
+ * however the underlying stream happens to split or merge the bytes.
+ */
+public class FrameReader {
+
+    private final DataInputStream mIn;
+    private final BufferPool mPool;
+    private final byte[] mHeader = new byte[Frame.HEADER_LENGTH];
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Creates a reader that allocates a new payload array for every frame.
+     */
+    public FrameReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Creates a reader that reads payloads into buffers borrowed from {@code pool}. Every frame
+     * returned must be {@link Frame#release() released} by whoever consumes it.
+     */
+    public FrameReader(InputStream in, BufferPool pool) {
+        mIn = new DataInputStream(in);
+        mPool = pool;
+    }
+
+    /**
+     * Blocks until the next frame has been read completely.
+     *
+     * @return The frame, with a payload array sized exactly to its length, or a pooled
+     *         payload if this reader has a pool
+     * @throws ProtocolException If the header or checksum is invalid
+     * @throws IOException       If the stream fails or ends in the middle of a frame
+     */
+    public Frame readFrame() throws IOException {
+        mIn.readFully(mHeader);
+
+        int magic = ((mHeader[0] & 0xFF) << 8) | (mHeader[1] & 0xFF);
+        if (magic != Frame.MAGIC) {
+            throw new ProtocolException("Bad frame magic 0x" + Integer.toHexString(magic));
+        }
+        int version = mHeader[2] & 0xFF;
+        if (version != Frame.VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        int type = mHeader[3] & 0xFF;
+        int length = readInt(mHeader, 4);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Bad frame length " + length);
+        }
+        int checksum = readInt(mHeader, 8);
+
+        if (mPool == null) {
+            byte[] payload = new byte[length];
+            mIn.readFully(payload);
+            verify(payload, length, checksum);
+            return new Frame(type, payload);
+        }
+
+        BufferPool.Buffer buffer = mPool.acquire(length);
+        boolean handedOff = false;
+        try {
+            mIn.readFully(buffer.array(), 0, length);
+            verify(buffer.array(), length, checksum);
+            handedOff = true;
+            return new Frame(type, buffer);
+        } finally {
+            if (!handedOff) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Returns how many bytes can be read without blocking, so a caller can tell whether more
+     * frames are already waiting.
+     */
+    public int available() throws IOException {
+        return mIn.available();
+    }
+
+    private void verify(byte[] payload, int length, int checksum) throws ProtocolException {
+        mCrc.reset();
+        mCrc.update(mHeader, 0, 8);
+        mCrc.update(payload, 0, length);
+        if ((int) mCrc.getValue() != checksum) {
+            throw new ProtocolException("Frame checksum mismatch");
+        }
+    }
+
+    static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24)
+                | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8)
+                | (b[offset + 3] & 0xFF);
+    }
+}
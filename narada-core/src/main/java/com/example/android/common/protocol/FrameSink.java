@@ -0,0 +1,15 @@
+package com.example.android.common.protocol;
+
+/**
+ * Somewhere outgoing frames can be handed to without blocking, usually a session's
+ * {@link AsyncFrameWriter}.
+ */
+public interface FrameSink {
+
+    /**
+     * Offers a frame for sending.
+     *
+     * @return false if the frame was not accepted and should be offered again later
+     */
+    public boolean send(Frame frame);
+}
@@ -0,0 +1,63 @@
+package com.example.android.common.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes {@link Frame}s to a byte stream. Safe to share between threads; each frame is written
+ * as a unit. Frames are not flushed individually, so several can be gathered in a buffered
+ * stream and pushed out together with {@link #flush()}.
+ */
+public class FrameWriter {
+
+    private final OutputStream mOut;
+    private final byte[] mHeader = new byte[Frame.HEADER_LENGTH];
+    private final CRC32 mCrc = new CRC32();
+
+    public FrameWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    public void writeFrame(Frame frame) throws IOException {
+        writeFrame(frame.getType(), frame.getPayload(), 0, frame.getLength());
+    }
+
+    public void writeFrame(int type, byte[] payload) throws IOException {
+        writeFrame(type, payload, 0, payload.length);
+    }
+
+    /**
+     * Writes a header followed by {@code length} bytes of {@code payload}.
+     */
+    public synchronized void writeFrame(int type, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        mHeader[0] = (byte) (Frame.MAGIC >>> 8);
+        mHeader[1] = (byte) Frame.MAGIC;
+        mHeader[2] = (byte) Frame.VERSION;
+        mHeader[3] = (byte) type;
+        writeInt(mHeader, 4, length);
+
+        mCrc.reset();
+        mCrc.update(mHeader, 0, 8);
+        mCrc.update(payload, offset, length);
+        writeInt(mHeader, 8, (int) mCrc.getValue());
+
+        mOut.write(mHeader);
+        mOut.write(payload, offset, length);
+    }
+
+    public synchronized void flush() throws IOException {
+        mOut.flush();
+    }
+
+    static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.common.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The first frame each side sends on a new connection, announcing what it supports. Peers that
+ * never send one are treated as supporting nothing beyond plain datagrams.
+ *
+ * <p>Fields are appended at the end as the protocol grows; a reader ignores trailing bytes it
+ * doesn't understand, so older and newer builds can still talk.</p>
+ */
+public class Hello {
+
+    private final int[] mCodecIds;
+    private final long mSessionToken;
+    private final long mResumeToken;
+
+    public Hello(int[] codecIds) {
+        this(codecIds, 0, 0);
+    }
+
+    /**
+     * @param codecIds     The compression codec ids the sender supports
+     * @param sessionToken Identifies the sender's session with the receiver
+     * @param resumeToken  The receiver's session token as the sender last saw it, or 0
+     */
+    public Hello(int[] codecIds, long sessionToken, long resumeToken) {
+        mCodecIds = codecIds;
+        mSessionToken = sessionToken;
+        mResumeToken = resumeToken;
+    }
+
+    /**
+     * Returns the compression codec ids the sender supports.
+     */
+    public int[] getCodecIds() {
+        return mCodecIds;
+    }
+
+    /**
+     * Returns the token of the sender's session with us, or 0 if it didn't send one.
+     */
+    public long getSessionToken() {
+        return mSessionToken;
+    }
+
+    /**
+     * Returns our session token as the sender remembers it, or 0 if it has no session with us.
+     * If this matches our current token the sender still holds its state from before.
+     */
+    public long getResumeToken() {
+        return mResumeToken;
+    }
+
+    public Frame toFrame() {
+        byte[] payload = new byte[1 + mCodecIds.length + 16];
+        payload[0] = (byte) mCodecIds.length;
+        for (int i = 0; i < mCodecIds.length; i++) {
+            payload[1 + i] = (byte) mCodecIds[i];
+        }
+        ByteBuffer.wrap(payload, 1 + mCodecIds.length, 16)
+                .putLong(mSessionToken)
+                .putLong(mResumeToken);
+        return new Frame(Frame.TYPE_HELLO, payload);
+    }
+
+    public static Hello fromFrame(Frame frame) throws ProtocolException {
+        byte[] payload = frame.getPayload();
+        int length = frame.getLength();
+        if (length < 1 || length < 1 + (payload[0] & 0xFF)) {
+            throw new ProtocolException("Short hello");
+        }
+        int[] codecIds = new int[payload[0] & 0xFF];
+        for (int i = 0; i < codecIds.length; i++) {
+            codecIds[i] = payload[1 + i] & 0xFF;
+        }
+        // Session tokens came later; without them the sender can't resume anything
+        int offset = 1 + codecIds.length;
+        if (length < offset + 16) {
+            return new Hello(codecIds);
+        }
+        ByteBuffer tokens = ByteBuffer.wrap(payload, offset, 16);
+        return new Hello(codecIds, tokens.getLong(), tokens.getLong());
+    }
+}
@@ -0,0 +1,1822 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.session;
+
+import com.example.android.common.blob.BlobInventory;
+import com.example.android.common.blob.BlobStore;
+import com.example.android.common.compress.CompressionCodec;
+import com.example.android.common.compress.CompressionCodecs;
+import com.example.android.common.datagram.DatagramDecoder;
+import com.example.android.common.dtn.BundleAgent;
+import com.example.android.common.dtn.DtnBundle;
+import com.example.android.common.link.LinkEstimator;
+import com.example.android.common.link.TransferPlanner;
+import com.example.android.common.logger.Log;
+import com.example.android.common.protocol.AsyncFrameWriter;
+import com.example.android.common.protocol.BufferPool;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameReader;
+import com.example.android.common.protocol.FrameSink;
+import com.example.android.common.protocol.Hello;
+import com.example.android.common.transfer.ChunkedTransfers;
+import com.example.android.common.transfer.FountainTransfers;
+import com.example.android.common.transfer.Payload;
+import com.example.android.common.transfer.SlidingWindow;
+import com.example.android.common.transport.ConnectRace;
+import com.example.android.common.transport.ConnectStats;
+import com.example.android.common.transport.ConnectionEngine;
+import com.example.android.common.transport.DatagramTransport;
+import com.example.android.common.transport.PeerCache;
+import com.example.android.common.transport.TransportServerSocket;
+import com.example.android.common.transport.TransportSocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class does all the work for setting up and managing datagram
+ * connections with other devices, and tells a {@link Listener} what happens
+ * on them. Listening for incoming connections, connecting with a device,
+ * and reading from and writing to each connected one are tasks on a
+ * {@link ConnectionEngine}, which runs them on a bounded pool of threads
+ * that are reused from one connection to the next. Cancelling a task closes
+ * what it is blocked on, and it ends quietly.
+ * <p>
+ * The sockets themselves come from a {@link DatagramTransport}, which is
+ * RFCOMM in the apps but can be swapped for an in-memory or TCP loopback
+ * transport to run the exchange without a radio.
+ * <p>
+ * By default only one connection is kept at a time. A courier can raise
+ * {@link #setMaxSessions(int)} so that it keeps accepting while connected
+ * and serves several peers at once, each on its own session.
+ * <p>
+ * Large datagrams are split into chunks. Progress is remembered per peer, so
+ * when a connection drops mid-transfer and the same peer reconnects, sending
+ * resumes from the last acknowledged chunk.
+ * <p>
+ * Each session opens with a hello exchange that settles on a compression
+ * codec, and datagrams are compressed with it whenever that makes them smaller.
+ * <p>
+ * Datagrams and blobs travel in a {@link SlidingWindow}: each is sequenced,
+ * acknowledged selectively, and resent after a reconnect if the peer never
+ * acknowledged it. The listener hears once the peer has acknowledged.
+ * Every connection carries several such windows as prioritised lanes, so
+ * urgent datagrams overtake bulk transfers.
+ * <p>
+ * With a {@link BlobStore} set, each side also announces the blobs it holds,
+ * and {@link #writeBlob(int, String)} only sends a blob the peer doesn't
+ * already have. Large blobs go from file to socket and from socket to file
+ * a chunk at a time, so their size doesn't show in the heap.
+ * <p>
+ * With a {@link BundleAgent} set, the service also relays bundles for
+ * devices that are never connected to each other: each side summarises the
+ * bundles it carries on connecting, then hands over those the other lacks
+ * that the agent's routing policy picks for it. A {@link TransferPlanner}
+ * sends the most valuable of those first, and only as many as the rest of a
+ * typical contact has time for. A large bundle's payload goes as a
+ * {@link FountainTransfers} stream, so the symbols any of its carriers got
+ * through add up towards it.
+ * Bundles for us go to the listener; see {@link #sendBundle}.
+ * <p>
+ * With a {@link DatagramDecoder} set, datagrams and bundles for us go to it
+ * instead of the listener, which then gets them decoded.
+ * <p>
+ * Outgoing connects try the socket type and channel that last worked for
+ * the peer first, and race the other socket type after a short head start.
+ * See {@link #setPeerCache(PeerCache)} and {@link #getConnectStats()}.
+ * <p>
+ * Connected peers are pinged every couple of seconds. That feeds a
+ * {@link LinkEstimator} per session, see {@link #getLinkEstimator(int)},
+ * and a peer that has gone silent is dropped within seconds instead of
+ * whenever a read finally fails.
+ * <p>
+ * A peer that reconnects within {@link #setSessionTimeout(long)} resumes its
+ * session: it keeps its session id, codec and blob inventory, and its
+ * sequence numbers and unacknowledged frames carry on without another
+ * inventory exchange. After the timeout all of that is dropped.
+ */
+public class DatagramService {
+    // Debugging
+    private static final String TAG = "DatagramService";
+
+    // Read buffers shared by all sessions. A full pool stalls the readers until
+    // the listener releases what it has been handed.
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int READ_BUFFER_COUNT = 16;
+
+    // Outgoing frames queued per session and lane before write() pushes back,
+    // and the buffer small frames are gathered in so they leave as one
+    // transport write
+    private static final int WRITE_QUEUE_CAPACITY = 32;
+    private static final int WRITE_COALESCE_BYTES = 8 * 1024;
+
+    // Datagrams larger than one chunk are sent as a resumable chunked transfer,
+    // with this many chunks in flight at a time
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int CHUNK_WINDOW = 8;
+    private static final String SPOOL_DIRECTORY = "spool";
+
+    // Bundle payloads larger than this, up to FountainTransfers.MAX_TRANSFER_LENGTH,
+    // are fountain coded in symbols of SYMBOL_SIZE, and that many bundles
+    // awaiting their payload are kept
+    private static final int FOUNTAIN_THRESHOLD = 128 * 1024;
+    private static final int SYMBOL_SIZE = 1024;
+    private static final int MAX_DETACHED_BUNDLES = 16;
+
+    // Other frames are sequenced and acknowledged; this many may be awaiting
+    // an ack per peer and lane, and those are resent after a reconnect
+    private static final int SEND_WINDOW = 16;
+
+    // Frames each lane may write per round when several have frames waiting
+    private static final int[] LANE_WEIGHTS = {16, 8, 4, 1};
+
+    // How long a disconnected peer's session is kept for it to resume
+    private static final long DEFAULT_SESSION_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    // A connect's preferred route runs alone this long before the next joins
+    // in, and the whole connect gives up after CONNECT_TIMEOUT_MS
+    private static final long CONNECT_STAGGER_MS = 1000;
+    private static final long CONNECT_TIMEOUT_MS = 15 * 1000;
+
+    // A cached channel older than this may have been handed to another
+    // service on the peer, so it is looked up again instead
+    private static final long CHANNEL_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    // Connected peers are pinged this often, and one we haven't heard
+    // anything from for DEAD_PEER_TIMEOUT_MS is taken to be gone
+    private static final long HEARTBEAT_INTERVAL_MS = 2000;
+    private static final long DEAD_PEER_TIMEOUT_MS = 7000;
+
+    // Threads for the two accept tasks, the datagram decoder, a connect and
+    // its route attempts, and a read and a write task per session, with room
+    // for a session that is still winding down
+    private static final int CONNECT_THREADS = 4;
+    private static final int THREADS_PER_SESSION = 2;
+
+    /**
+     * Told what happens on the service's connections, on whichever of its
+     * threads it happened on, sometimes with the service's lock held. An app
+     * typically posts it all on to its UI thread; a listener must not block,
+     * or call back into the service before returning.
+     */
+    public interface Listener {
+        /**
+         * @param state One of the STATE_ constants
+         */
+        void onStateChanged(int state);
+
+        /**
+         * A session started, or resumed.
+         *
+         * @param deviceName The peer's name, as its transport reports it
+         */
+        void onConnected(int sessionId, String deviceName);
+
+        /**
+         * A connect started by {@link #connect(String, boolean)} failed.
+         */
+        void onConnectFailed();
+
+        void onConnectionLost(int sessionId);
+
+        /**
+         * A datagram arrived and no {@link DatagramDecoder} is set.
+         *
+         * @param frame The datagram, which the listener takes over and releases
+         */
+        void onDatagram(int sessionId, Frame frame);
+
+        /**
+         * The peer acknowledged a datagram we wrote.
+         */
+        void onDatagramWritten(int sessionId, byte[] datagram);
+
+        /**
+         * The peer sent a blob, and it is in the blob store now.
+         */
+        void onBlob(int sessionId, String hash);
+
+        /**
+         * A bundle for us arrived and no {@link DatagramDecoder} is set.
+         */
+        void onBundle(int sessionId, DtnBundle bundle);
+    }
+
+    // Member fields
+    private final DatagramTransport mTransport;
+    private final Listener mListener;
+    private final BufferPool mReadBufferPool = new BufferPool(READ_BUFFER_SIZE, READ_BUFFER_COUNT);
+    private final ChunkedTransfers mTransfers = new ChunkedTransfers(CHUNK_SIZE, CHUNK_WINDOW);
+    private final FountainTransfers mFountains = new FountainTransfers(SYMBOL_SIZE);
+    // Bundles whose payload is still on its way, by the payload's transfer id
+    private final Map<Long, DtnBundle> mDetachedBundles = new LinkedHashMap<Long, DtnBundle>();
+    private final SlidingWindow[] mWindows = new SlidingWindow[LANE_WEIGHTS.length];
+    private final SessionCache<SessionState> mSessionCache =
+            new SessionCache<SessionState>(DEFAULT_SESSION_TIMEOUT_MS);
+    private final ConnectionEngine mEngine;
+    private ConnectionEngine.Task mSecureAccept;
+    private ConnectionEngine.Task mInsecureAccept;
+    private ConnectionEngine.Task mConnect;
+    private ConnectionEngine.Task mHeartbeat;
+    // Connected sessions by session id, in the order they were established
+    private final Map<Integer, Connection> mSessions = new LinkedHashMap<Integer, Connection>();
+    private int mNextSessionId = 1;
+    private int mMaxSessions = 1;
+    private volatile BlobStore mBlobStore;
+    private volatile BundleAgent mBundleAgent;
+    private volatile DatagramDecoder mDatagramDecoder;
+    private volatile PeerCache mPeerCache = new PeerCache(null);
+    private final ConnectStats mConnectStats = new ConnectStats();
+    private final TransferPlanner mPlanner = new TransferPlanner();
+    // Written with the lock held, and volatile so that getState() can do without it
+    private volatile int mState;
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // Logical channels multiplexed over each connection, most urgent first.
+    // Each has its own write queue and sliding window, so an alert never
+    // waits behind a newspaper.
+    public static final int LANE_CONTROL = 0;     // handshakes and acknowledgements
+    public static final int LANE_ALERTS = 1;      // urgent datagrams
+    public static final int LANE_REQUESTS = 2;    // ordinary datagrams
+    public static final int LANE_BULK = 3;        // blobs and chunked transfers
+
+    /**
+     * Constructor. Prepares a new datagram service over the given transport.
+     *
+     * @param transport The transport to listen and connect on
+     * @param listener  Told what happens on the service's connections
+     */
+    public DatagramService(DatagramTransport transport, Listener listener) {
+        mTransport = transport;
+        mEngine = new ConnectionEngine("Datagram", maxThreads(mMaxSessions));
+        for (int lane = 0; lane < mWindows.length; lane++) {
+            mWindows[lane] = new SlidingWindow(SEND_WINDOW, lane);
+        }
+        // What a fountain transfer gets through counts towards the next contact
+        mPlanner.setResumableSize(FOUNTAIN_THRESHOLD);
+        mState = STATE_NONE;
+        mListener = listener;
+    }
+
+    /**
+     * Tell the listener about the current state of the connections
+     */
+    private synchronized void reportState() {
+        Log.d(TAG);
+
+        mListener.onStateChanged(mState);
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Set the store blobs are sent from and received into. Sessions started
+     * after this announce its contents to their peer.
+     *
+     * @param store The blob store, or null to turn blob exchange off
+     */
+    public void setBlobStore(BlobStore store) {
+        mBlobStore = store;
+        // Large incoming transfers are written out as they arrive, next to the blobs
+        mTransfers.setSpoolDirectory(store == null ? null
+                : new File(store.getDirectory(), SPOOL_DIRECTORY));
+    }
+
+    /**
+     * Set the agent that stores and forwards bundles. Sessions started after
+     * this exchange bundles with their peer.
+     *
+     * @param agent The bundle agent, or null to turn relaying off
+     */
+    public void setBundleAgent(BundleAgent agent) {
+        mBundleAgent = agent;
+    }
+
+    /**
+     * Set what decodes incoming datagrams off the UI thread, and start it on
+     * one of the service's threads. Without one, datagrams and bundles for us
+     * go to the listener as they are, for it to decode itself.
+     *
+     * @param decoder The decoder, or null to pass datagrams on undecoded; the
+     *                caller closes it
+     * @throws IOException If there is no thread to run the decoder on
+     */
+    public void setDatagramDecoder(DatagramDecoder decoder) throws IOException {
+        if (decoder != null) {
+            decoder.start(mEngine);
+        }
+        mDatagramDecoder = decoder;
+    }
+
+    /**
+     * Set where the routes to peers we connected to are remembered. Without
+     * one they are only kept until the service goes away.
+     *
+     * @param cache The peer cache
+     */
+    public void setPeerCache(PeerCache cache) {
+        mPeerCache = cache;
+    }
+
+    /**
+     * Return how long our connects to peers have been taking.
+     */
+    public ConnectStats getConnectStats() {
+        return mConnectStats;
+    }
+
+    /**
+     * Return the planner that picks which bundles go out during a contact,
+     * and how long contacts have been lasting.
+     */
+    public TransferPlanner getTransferPlanner() {
+        return mPlanner;
+    }
+
+    /**
+     * Return the round trip time and goodput estimates for a session. They
+     * carry over when the peer reconnects and resumes the session.
+     *
+     * @param sessionId The session, as reported to the listener
+     * @return The estimator, or null if the session isn't connected
+     */
+    public synchronized LinkEstimator getLinkEstimator(int sessionId) {
+        Connection r = mSessions.get(sessionId);
+        return r == null ? null : r.mmState.mLink;
+    }
+
+    /**
+     * Set how many peers may be connected at the same time. With the default
+     * of 1 a new connection replaces the current one and listening stops while
+     * connected; with more, the service keeps accepting until the cap is reached
+     * and turns further peers away.
+     *
+     * @param maxSessions The maximum number of concurrent sessions, at least 1
+     */
+    public synchronized void setMaxSessions(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1");
+        }
+        mMaxSessions = maxSessions;
+        mEngine.setMaxThreads(maxThreads(maxSessions));
+    }
+
+    private static int maxThreads(int maxSessions) {
+        return 3 + CONNECT_THREADS + THREADS_PER_SESSION * (maxSessions + 1);
+    }
+
+    /**
+     * Set how long a peer that disconnected may take to come back and resume
+     * its session. Sessions already waiting get the new timeout too.
+     *
+     * @param timeoutMillis The timeout in milliseconds; 0 turns resumption off
+     */
+    public void setSessionTimeout(long timeoutMillis) {
+        mSessionCache.setTimeout(timeoutMillis);
+    }
+
+    /**
+     * Return the ids of the currently connected sessions.
+     */
+    public synchronized List<Integer> getSessionIds() {
+        return new ArrayList<Integer>(mSessions.keySet());
+    }
+
+    private boolean isMultiPeer() {
+        return mMaxSessions > 1;
+    }
+
+    private void cancelSessions() {
+        for (Connection session : mSessions.values()) {
+            session.cancel();
+            mSessionCache.release(session.mmRemoteAddress);
+        }
+        mSessions.clear();
+    }
+
+    private void cancelConnect() {
+        if (mConnect != null) {
+            mConnect.cancel();
+            mConnect = null;
+        }
+    }
+
+    private void cancelAccepts() {
+        if (mSecureAccept != null) {
+            mSecureAccept.cancel();
+            mSecureAccept = null;
+        }
+        if (mInsecureAccept != null) {
+            mInsecureAccept.cancel();
+            mInsecureAccept = null;
+        }
+    }
+
+    private void cancelHeartbeat() {
+        if (mHeartbeat != null) {
+            mHeartbeat.cancel();
+            mHeartbeat = null;
+        }
+    }
+
+    /**
+     * Drop the state of peers whose sessions have timed out.
+     */
+    private void forgetExpiredSessions() {
+        for (String peer : mSessionCache.expire()) {
+            Log.i(TAG, "session with " + peer + " expired");
+            mTransfers.forget(peer);
+            mFountains.forget(peer);
+            for (SlidingWindow window : mWindows) {
+                window.forget(peer);
+            }
+        }
+    }
+
+    /**
+     * Start the chat service. Specifically start listening for connections,
+     * in listening (server) mode. Called by the Activity onResume()
+     */
+    public synchronized void start() {
+        Log.d(TAG);
+
+        // Cancel any attempt to make a connection
+        cancelConnect();
+
+        // Cancel any connection currently running
+        cancelSessions();
+        cancelHeartbeat();
+
+        // Listen on a TransportServerSocket of each type
+        if (mSecureAccept == null) {
+            mSecureAccept = listen(true);
+        }
+        if (mInsecureAccept == null) {
+            mInsecureAccept = listen(false);
+        }
+        // A multi-peer service kept listening while connected; it is listening
+        // again, not turning peers away
+        mState = STATE_LISTEN;
+        reportState();
+    }
+
+    /**
+     * Start accepting connections on a new server socket.
+     *
+     * @return The accept task, or null if we can't listen
+     */
+    private ConnectionEngine.Task listen(boolean secure) {
+        final String socketType = secure ? "Secure" : "Insecure";
+        TransportServerSocket server;
+        try {
+            server = mTransport.listen(secure);
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: " + socketType + " listen() failed", e);
+            return null;
+        }
+        try {
+            return mEngine.accept("Accept" + socketType, server,
+                    new ConnectionEngine.AcceptListener() {
+                        @Override
+                        public void onAccepted(TransportSocket socket) {
+                            accepted(socket, socketType);
+                        }
+                    });
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: " + socketType + " can't accept", e);
+            return null;
+        }
+    }
+
+    /**
+     * Take on a connection a peer made to us, unless we can't serve it now.
+     * Called on an accept task.
+     */
+    private void accepted(TransportSocket socket, String socketType) {
+        boolean wanted;
+        synchronized (this) {
+            switch (mState) {
+                case STATE_CONNECTED:
+                    // Room for another peer, or already serving as many as we may
+                    wanted = mSessions.size() < mMaxSessions;
+                    break;
+                case STATE_LISTEN:
+                case STATE_CONNECTING:
+                    // Situation normal
+                    wanted = true;
+                    break;
+                default:
+                    // Not ready
+                    wanted = false;
+                    break;
+            }
+        }
+        if (!wanted) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close unwanted socket", e);
+            }
+            return;
+        }
+        connected(socket, socketType);
+    }
+
+    /**
+     * Start connecting to a remote device.
+     *
+     * @param address The transport address of the device to connect
+     * @param secure  Socket Security type to try first for a peer we have
+     *                never connected to; otherwise the one that last worked
+     *                goes first. The other type is tried as well.
+     */
+    public synchronized void connect(String address, boolean secure) {
+        Log.d(TAG);
+
+        // Cancel any attempt to make a connection
+        cancelConnect();
+
+        // Cancel any connection currently running, unless we serve several
+        if (!isMultiPeer()) {
+            cancelSessions();
+        }
+
+        // Race the routes to the device; each attempt runs on the engine too
+        PeerCache.Peer known = mPeerCache.get(address);
+        ConnectRace race = new ConnectRace(mTransport, address, routesTo(known, secure),
+                CONNECT_STAGGER_MS, CONNECT_TIMEOUT_MS, mEngine.getExecutor());
+        Log.i(TAG, "BEGIN connect " + address);
+        try {
+            mConnect = mEngine.connect("Connect", race, new Connector(address, known != null));
+        } catch (IOException e) {
+            Log.e(TAG, "unable to connect to " + address, e);
+            mConnectStats.onFailed();
+            connectionFailed();
+            return;
+        }
+        mState = STATE_CONNECTING;
+        reportState();
+    }
+
+    /**
+     * Start managing a connection, as a session of its own.
+     *
+     * @param socket The TransportSocket on which the connection was made
+     */
+    public void connected(TransportSocket socket, final String socketType) {
+        Log.d(TAG);
+        Connection session;
+        synchronized (this) {
+            // Cancel the connect that completed the connection
+            cancelConnect();
+
+            if (!isMultiPeer()) {
+                // Cancel any connection currently running
+                cancelSessions();
+
+                // Stop listening because we only want to connect to one device
+                cancelAccepts();
+            }
+
+            // Resume the peer's session if it was here recently, otherwise start one
+            String address = socket.getRemoteAddress();
+            forgetExpiredSessions();
+            SessionState state = mSessionCache.acquire(address);
+            boolean resumed = state != null;
+            if (resumed) {
+                // The peer may be back before we noticed its old connection die
+                Connection stale = mSessions.remove(state.mId);
+                if (stale != null) {
+                    stale.cancel();
+                }
+            } else {
+                state = new SessionState(mNextSessionId++);
+                mSessionCache.put(address, state);
+            }
+            int sessionId = state.mId;
+
+            session = new Connection(socket, socketType, state, resumed);
+            mSessions.put(sessionId, session);
+            mState = STATE_CONNECTED;
+
+            // Keep an eye on the link while anyone is connected
+            if (mHeartbeat == null) {
+                mHeartbeat = mEngine.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        heartbeat();
+                    }
+                }, HEARTBEAT_INTERVAL_MS);
+            }
+
+            mListener.onConnected(sessionId, socket.getRemoteName());
+            reportState();
+        }
+        // Outside the lock: the opening exchange may touch the disk
+        session.start();
+    }
+
+    /**
+     * Stop all tasks
+     */
+    public synchronized void stop() {
+        Log.d(TAG);
+
+        cancelConnect();
+        cancelSessions();
+        cancelHeartbeat();
+        cancelAccepts();
+        mState = STATE_NONE;
+        reportState();
+    }
+
+    /**
+     * Queue a datagram on the requests lane for every connected session.
+     *
+     * @see #write(byte[], int)
+     */
+    public boolean write(byte[] out) {
+        return write(out, LANE_REQUESTS);
+    }
+
+    /**
+     * Queue a datagram for every connected session. Never blocks; the listener
+     * hears once the peer has acknowledged it.
+     *
+     * @param out  The bytes to write
+     * @param lane One of the LANE_ constants; datagrams too large for one
+     *             chunk always go on the bulk lane
+     * @return false if not connected, a session's write queue is full or the
+     *         datagram is too large to send
+     * @see Connection#write(byte[], int)
+     */
+    public boolean write(byte[] out, int lane) {
+        // Create temporary objects
+        List<Connection> sessions;
+        // Synchronize a copy of the Connections
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return false;
+            sessions = new ArrayList<Connection>(mSessions.values());
+        }
+        // Perform the writes unsynchronized
+        boolean accepted = true;
+        for (Connection r : sessions) {
+            accepted &= r.write(out, lane);
+        }
+        return accepted;
+    }
+
+    /**
+     * Queue a datagram on the requests lane for a single session.
+     *
+     * @see #write(int, byte[], int)
+     */
+    public boolean write(int sessionId, byte[] out) {
+        return write(sessionId, out, LANE_REQUESTS);
+    }
+
+    /**
+     * Queue a datagram for a single session. Never blocks.
+     *
+     * @param sessionId The session to write to, as reported to the listener
+     * @param out       The bytes to write
+     * @param lane      One of the LANE_ constants
+     * @return false if the session is no longer connected, its write queue is
+     *         full or the datagram is too large to send
+     */
+    public boolean write(int sessionId, byte[] out, int lane) {
+        Connection r;
+        synchronized (this) {
+            r = mSessions.get(sessionId);
+        }
+        return r != null && r.write(out, lane);
+    }
+
+    /**
+     * Queue a blob from the blob store for a single session, unless the peer
+     * already has it. Never blocks.
+     *
+     * @param sessionId The session to write to
+     * @param hash      The hash of the blob, which must be in the blob store
+     * @return false if the session is gone, the blob is missing or the write
+     * queue is full
+     */
+    public boolean writeBlob(int sessionId, String hash) {
+        Connection r;
+        synchronized (this) {
+            r = mSessions.get(sessionId);
+        }
+        return r != null && r.writeBlob(hash);
+    }
+
+    /**
+     * Send a datagram as a bundle, to be carried across as many hops as it
+     * takes to reach its destination. It is stored until then, and handed
+     * to every connected peer now.
+     *
+     * @param destination The endpoint id to deliver to, or
+     *                    {@link BundleAgent#GATEWAY}
+     * @param payload     The datagram bytes
+     * @param priority    One of the {@link TransferPlanner} priorities
+     * @return false if there is no bundle agent or the bundle couldn't be stored
+     */
+    public boolean sendBundle(String destination, byte[] payload, int priority) {
+        BundleAgent agent = mBundleAgent;
+        if (agent == null) {
+            return false;
+        }
+        try {
+            agent.send(destination, payload, priority);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store a bundle", e);
+            return false;
+        }
+        forwardBundles();
+        return true;
+    }
+
+    /**
+     * Hand every connected peer the bundles it doesn't have yet.
+     */
+    private void forwardBundles() {
+        List<Connection> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<Connection>(mSessions.values());
+        }
+        for (Connection r : sessions) {
+            r.forwardBundles();
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     */
+    private synchronized void connectionFailed() {
+        mConnect = null;
+
+        mListener.onConnectFailed();
+
+        // Keep serving the peers we already have
+        if (!mSessions.isEmpty()) {
+            mState = STATE_CONNECTED;
+            reportState();
+            return;
+        }
+
+        mState = STATE_NONE;
+        reportState();
+
+        // Start the service over to restart listening mode
+        start();
+    }
+
+    /**
+     * Indicate that a session was lost and notify the listener.
+     */
+    private synchronized void connectionLost(Connection session) {
+        // A session we cancelled ourselves, or one already replaced, is not news
+        if (mSessions.get(session.mmSessionId) != session) {
+            return;
+        }
+        mSessions.remove(session.mmSessionId);
+        mSessionCache.release(session.mmRemoteAddress);
+        forgetExpiredSessions();
+        mPlanner.onContactEnded(now() - session.mmConnectedAt,
+                session.mmState.mLink.getGoodput());
+
+        mListener.onConnectionLost(session.mmSessionId);
+
+        // The other peers are still being served
+        if (!mSessions.isEmpty()) {
+            return;
+        }
+        cancelHeartbeat();
+
+        mState = STATE_NONE;
+        reportState();
+
+        // Start the service over to restart listening mode
+        start();
+    }
+
+    /**
+     * Hears how a connect started by {@link #connect(String, boolean)} ended,
+     * on its connect task.
+     */
+    private class Connector implements ConnectionEngine.ConnectListener {
+        private final String mmAddress;
+        // Whether we had a route to the peer cached, for the connect stats
+        private final boolean mmWarm;
+        private final long mmStart = now();
+
+        Connector(String address, boolean warm) {
+            mmAddress = address;
+            mmWarm = warm;
+        }
+
+        @Override
+        public void onConnected(TransportSocket socket, ConnectRace.Route route) {
+            long millis = now() - mmStart;
+            mConnectStats.onConnected(millis, mmWarm);
+            Log.i(TAG, "connected to " + mmAddress + " over " + route + " in " + millis
+                    + " ms; " + mConnectStats);
+            try {
+                mPeerCache.put(mmAddress, route.isSecure(), socket.getChannel());
+            } catch (IOException e) {
+                Log.w(TAG, "unable to save the peer cache", e);
+            }
+
+            // Start managing the connection
+            connected(socket, route.isSecure() ? "Secure" : "Insecure");
+        }
+
+        @Override
+        public void onConnectFailed(IOException e) {
+            Log.e(TAG, "unable to connect to " + mmAddress, e);
+            mConnectStats.onFailed();
+            connectionFailed();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Routes to try for a peer, best first: the socket type that last worked,
+     * straight to its channel if we know it, then with a lookup, then the
+     * other socket type.
+     *
+     * @param known  What the peer cache has on the peer, or null
+     * @param secure The socket type to prefer if the peer isn't known
+     */
+    private static List<ConnectRace.Route> routesTo(PeerCache.Peer known, boolean secure) {
+        List<ConnectRace.Route> routes = new ArrayList<ConnectRace.Route>();
+        if (known != null) {
+            secure = known.isSecure();
+            long age = System.currentTimeMillis() - known.getLastConnected();
+            if (known.getChannel() > 0 && age < CHANNEL_MAX_AGE_MS) {
+                routes.add(new ConnectRace.Route(secure, known.getChannel()));
+            }
+        }
+        routes.add(new ConnectRace.Route(secure, -1));
+        routes.add(new ConnectRace.Route(!secure, -1));
+        return routes;
+    }
+
+    /**
+     * Ping every connected peer, and drop the ones that have stopped
+     * answering. Runs on the engine's timer while anyone is connected.
+     */
+    private void heartbeat() {
+        List<Connection> sessions;
+        synchronized (this) {
+            if (mSessions.isEmpty()) {
+                cancelHeartbeat();
+                return;
+            }
+            sessions = new ArrayList<Connection>(mSessions.values());
+        }
+        for (Connection session : sessions) {
+            session.heartbeat();
+        }
+    }
+
+    /**
+     * What we know about a peer beyond a single connection. Kept in the
+     * session cache until the peer has been gone for the session timeout.
+     */
+    private static class SessionState {
+        final int mId;
+        // Ours, sent in every hello so the peer can tell we still remember it
+        final long mToken = nextToken();
+        // The peer's, from its last hello; 0 until we have one
+        volatile long mPeerToken;
+        // Plain until the peer's hello tells us what it can decode
+        volatile CompressionCodec mCodec = CompressionCodecs.IDENTITY;
+        // Blobs the peer is known to hold, from its inventory and from what went between us
+        final Set<String> mPeerBlobs = Collections.synchronizedSet(new HashSet<String>());
+        final LinkEstimator mLink = new LinkEstimator();
+
+        SessionState(int id) {
+            mId = id;
+        }
+
+        private static long nextToken() {
+            long token;
+            do {
+                token = sRandom.nextLong();
+            } while (token == 0);
+            return token;
+        }
+    }
+
+    /**
+     * A connection with a remote device. It handles all incoming and outgoing
+     * transmissions, on a read task and a write task. Both directions are
+     * framed, so the listener gets exactly one complete datagram at a time.
+     */
+    private class Connection implements ConnectionEngine.ReadListener {
+        private final int mmSessionId;
+        private final String mmRemoteAddress;
+        private final TransportSocket mmSocket;
+        private final FrameReader mmFrameReader;
+        private final AsyncFrameWriter mmFrameWriter;
+        private final SessionState mmState;
+        // Carrying on a session from an earlier connection
+        private final boolean mmResumed;
+        // Shorthand for the session state's
+        private final Set<String> mmPeerBlobs;
+        // When we last heard anything from the peer, in milliseconds
+        private volatile long mmLastHeard = now();
+        private final long mmConnectedAt = now();
+        // Bytes of bundles queued for the peer and not yet acknowledged
+        private final AtomicLong mmBundleBytes = new AtomicLong();
+        private final AtomicBoolean mmClosed = new AtomicBoolean();
+        private volatile ConnectionEngine.Task mmReadTask;
+
+        public Connection(TransportSocket socket, String socketType, SessionState state,
+                boolean resumed) {
+            Log.d(TAG);
+            int sessionId = state.mId;
+            mmSessionId = sessionId;
+            mmState = state;
+            mmResumed = resumed;
+            mmPeerBlobs = state.mPeerBlobs;
+            mmRemoteAddress = socket.getRemoteAddress();
+            mmSocket = socket;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // Get the TransportSocket input and output streams
+            try {
+                tmpIn = socket.getInputStream();
+                tmpOut = socket.getOutputStream();
+            } catch (IOException e) {
+                Log.e(TAG, "temp sockets not created", e);
+            }
+
+            mmFrameReader = new FrameReader(tmpIn, mReadBufferPool);
+            mmFrameWriter = new AsyncFrameWriter(tmpOut, LANE_WEIGHTS, WRITE_QUEUE_CAPACITY,
+                    WRITE_COALESCE_BYTES, mEngine.getExecutor());
+            mmFrameWriter.setBurstListener(new AsyncFrameWriter.BurstListener() {
+                @Override
+                public void onBurstWritten(long bytes, long nanos) {
+                    mmState.mLink.onBurst(bytes, nanos);
+                }
+            });
+        }
+
+        /**
+         * Open the session, and start reading from the peer.
+         */
+        void start() {
+            Log.i(TAG, "BEGIN session " + mmSessionId);
+            mPlanner.onContactStarted(mmConnectedAt);
+
+            // Tell the peer what we support and which session we think this is
+            // before anything else goes out
+            mmFrameSink.send(new Hello(CompressionCodecs.supportedIds(), mmState.mToken,
+                    mmState.mPeerToken).toFrame());
+
+            // Pick up any transfers that were cut off the last time we saw this peer,
+            // and resend the frames it never acknowledged. This doesn't wait for the
+            // peer's hello; if that shows the peer has forgotten us we start over.
+            mTransfers.attach(mmRemoteAddress, mmFrameSink);
+            mFountains.attach(mmRemoteAddress, mmFrameSink);
+            for (int lane = 0; lane < mWindows.length; lane++) {
+                mWindows[lane].attach(mmRemoteAddress, mmLaneSinks[lane]);
+            }
+
+            // Say which bundles we carry; the peer's summary sets off forwarding
+            BundleAgent agent = mBundleAgent;
+            if (agent != null) {
+                try {
+                    agent.expire();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't expire bundles", e);
+                }
+                mmFrameSink.send(agent.summary());
+            }
+
+            // Keep listening to the InputStream until the socket is closed
+            try {
+                mmReadTask = mEngine.read("Read" + mmSessionId, mmSocket, mmFrameReader, this);
+            } catch (IOException e) {
+                Log.e(TAG, "unable to serve session " + mmSessionId, e);
+                lost();
+            }
+        }
+
+        @Override
+        public void onFrame(Frame frame) throws IOException {
+            mmLastHeard = now();
+            dispatch(frame);
+        }
+
+        @Override
+        public void onDrained() {
+            // Acknowledge a burst once, when nothing more is waiting
+            for (SlidingWindow window : mWindows) {
+                window.flushAck(mmRemoteAddress);
+            }
+        }
+
+        @Override
+        public void onReadFailed(IOException e) {
+            if (e instanceof ProtocolException) {
+                // The stream is out of sync; there is no way to find the next frame
+                Log.e(TAG, "corrupt frame", e);
+            } else {
+                Log.e(TAG, "disconnected", e);
+            }
+            lost();
+        }
+
+        /**
+         * Act on a frame from the peer, taking over the frame.
+         */
+        private void dispatch(Frame frame) throws IOException {
+            switch (frame.getType()) {
+                case Frame.TYPE_DATAGRAM:
+                    deliver(frame);
+                    break;
+                case Frame.TYPE_DATAGRAM_ENCODED:
+                    byte[] decoded;
+                    try {
+                        decoded = CompressionCodecs.decode(frame.getPayload(), 0,
+                                frame.getLength());
+                    } finally {
+                        frame.release();
+                    }
+                    deliver(decoded);
+                    break;
+                case Frame.TYPE_CHUNK:
+                    receiveChunk(frame);
+                    break;
+                case Frame.TYPE_CHUNK_ACK:
+                    try {
+                        mTransfers.onAck(mmRemoteAddress, frame);
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_SYMBOL:
+                    byte[] payload;
+                    try {
+                        payload = mFountains.onSymbol(mmRemoteAddress, frame);
+                    } finally {
+                        frame.release();
+                    }
+                    if (payload != null) {
+                        receiveBundlePayload(payload);
+                    }
+                    break;
+                case Frame.TYPE_SYMBOL_DONE:
+                    try {
+                        mFountains.onDone(mmRemoteAddress, frame);
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_HELLO:
+                    Hello hello;
+                    try {
+                        hello = Hello.fromFrame(frame);
+                    } finally {
+                        frame.release();
+                    }
+                    onHello(hello);
+                    break;
+                case Frame.TYPE_SEQUENCED:
+                    // Hand on whatever is now in order, releasing the rest if one fails
+                    SlidingWindow window;
+                    try {
+                        window = window(frame);
+                    } catch (ProtocolException e) {
+                        frame.release();
+                        throw e;
+                    }
+                    List<Frame> ready = window.onSequenced(mmRemoteAddress, frame);
+                    for (int i = 0; i < ready.size(); i++) {
+                        try {
+                            dispatch(ready.get(i));
+                        } catch (IOException e) {
+                            for (int j = i + 1; j < ready.size(); j++) {
+                                ready.get(j).release();
+                            }
+                            throw e;
+                        }
+                    }
+                    break;
+                case Frame.TYPE_PING:
+                    // Echo it straight back, on the control lane
+                    mmFrameSink.send(new Frame(Frame.TYPE_PONG,
+                            Arrays.copyOf(frame.getPayload(), frame.getLength())));
+                    frame.release();
+                    break;
+                case Frame.TYPE_PONG:
+                    try {
+                        if (frame.getLength() < 8) {
+                            throw new ProtocolException("Short pong");
+                        }
+                        // It carries the time we sent the ping
+                        long sent = ByteBuffer.wrap(frame.getPayload(), 0, 8).getLong();
+                        mmState.mLink.onRttSample(now() - sent);
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_ACK:
+                    try {
+                        window(frame).onAck(mmRemoteAddress, frame);
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_BLOB_HAVE:
+                    try {
+                        mmPeerBlobs.addAll(BlobInventory.fromFrame(frame).getHashes());
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_BLOB:
+                    try {
+                        receiveBlob(CompressionCodecs.decoding(new ByteArrayInputStream(
+                                frame.getPayload(), 0, frame.getLength())));
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                case Frame.TYPE_BUNDLE_SUMMARY:
+                    try {
+                        onSummary(frame);
+                    } finally {
+                        frame.release();
+                    }
+                    forwardBundles();
+                    break;
+                case Frame.TYPE_BUNDLE:
+                    byte[] bundle;
+                    try {
+                        bundle = CompressionCodecs.decode(frame.getPayload(), 0,
+                                frame.getLength());
+                    } finally {
+                        frame.release();
+                    }
+                    receiveBundle(bundle);
+                    break;
+                case Frame.TYPE_CUSTODY:
+                    try {
+                        onCustody(frame);
+                    } finally {
+                        frame.release();
+                    }
+                    break;
+                default:
+                    Log.w(TAG, "Ignoring frame of unknown type " + frame.getType());
+                    frame.release();
+                    break;
+            }
+        }
+
+        /**
+         * Drop the connection if the peer has gone quiet, otherwise ping it.
+         * Called from the heartbeat timer.
+         */
+        void heartbeat() {
+            long silent = now() - mmLastHeard;
+            if (silent > DEAD_PEER_TIMEOUT_MS) {
+                Log.w(TAG, "session " + mmSessionId + " silent for " + silent + " ms, dropping");
+                lost();
+                return;
+            }
+            byte[] ping = new byte[8];
+            ByteBuffer.wrap(ping).putLong(now());
+            mmFrameSink.send(new Frame(Frame.TYPE_PING, ping));
+        }
+
+        /**
+         * Settle the codec, and find out whether the peer still holds its side
+         * of the session. If it doesn't, our streams to it start over and it
+         * gets our blob inventory again.
+         */
+        private void onHello(Hello hello) {
+            mmState.mCodec = CompressionCodecs.negotiate(hello.getCodecIds());
+            boolean peerResumed = hello.getResumeToken() == mmState.mToken;
+            mmState.mPeerToken = hello.getSessionToken();
+            Log.i(TAG, "session " + mmSessionId + (peerResumed ? " resumed" : " started")
+                    + ", using codec " + mmState.mCodec.getId());
+            if (peerResumed) {
+                return;
+            }
+            if (mmResumed) {
+                for (SlidingWindow window : mWindows) {
+                    window.restart(mmRemoteAddress);
+                }
+            }
+            mmPeerBlobs.clear();
+            BlobStore store = mBlobStore;
+            if (store != null) {
+                mmFrameSink.send(new BlobInventory(store.list()).toFrame());
+            }
+        }
+
+        /**
+         * Returns the window a sequenced frame or ack belongs to.
+         */
+        private SlidingWindow window(Frame frame) throws ProtocolException {
+            int lane = SlidingWindow.channelOf(frame);
+            if (lane >= mWindows.length) {
+                throw new ProtocolException("Unknown lane " + lane);
+            }
+            return mWindows[lane];
+        }
+
+        /**
+         * Stop feeding this session; transfer and window state stays with the
+         * peer address for when it comes back.
+         */
+        private void detach() {
+            BundleAgent agent = mBundleAgent;
+            if (agent != null) {
+                agent.forget(mmRemoteAddress);
+                Log.i(TAG, "routing " + agent.getStats());
+            }
+            mTransfers.detach(mmRemoteAddress, mmFrameSink);
+            mFountains.detach(mmRemoteAddress, mmFrameSink);
+            for (int lane = 0; lane < mWindows.length; lane++) {
+                mWindows[lane].detach(mmRemoteAddress, mmLaneSinks[lane]);
+            }
+        }
+
+        /**
+         * Deliver a decoded datagram.
+         */
+        private void deliver(byte[] datagram) {
+            deliver(new Frame(Frame.TYPE_DATAGRAM, datagram));
+        }
+
+        /**
+         * Send a datagram to the decoder if there is one, and to the
+         * listener otherwise. Whoever gets the frame owns it and must release it.
+         */
+        private void deliver(Frame frame) {
+            DatagramDecoder decoder = mDatagramDecoder;
+            if (decoder == null) {
+                mListener.onDatagram(mmSessionId, frame);
+                return;
+            }
+            try {
+                decoder.decode(frame, mmSessionId);
+            } catch (InterruptedException e) {
+                // We're being cancelled; the read task notices
+                frame.release();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Take in a chunk, and whatever transfer it completes. A blob is
+         * decoded straight from the transfer into the blob store, so a large
+         * one is never in memory whole.
+         */
+        private void receiveChunk(Frame frame) throws ProtocolException {
+            Payload encoded;
+            try {
+                encoded = mTransfers.onChunk(mmRemoteAddress, frame);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                // A full disk is no reason to drop the link
+                Log.e(TAG, "Couldn't spool a transfer", e);
+                return;
+            } finally {
+                frame.release();
+            }
+            if (encoded == null) {
+                return;
+            }
+            try {
+                if (encoded.getLength() < 1) {
+                    throw new ProtocolException("Empty chunked transfer");
+                }
+                // The last chunk arrived; the first byte says what it carries
+                byte[] tag = new byte[1];
+                encoded.read(0, tag, 0, 1);
+                if (tag[0] == Frame.TYPE_BLOB) {
+                    InputStream in = encoded.open();
+                    try {
+                        // Past the tag; skip() may not move at all
+                        if (in.read() < 0) {
+                            throw new ProtocolException("Truncated chunked transfer");
+                        }
+                        receiveBlob(CompressionCodecs.decoding(in));
+                    } finally {
+                        in.close();
+                    }
+                    return;
+                }
+                byte[] data = CompressionCodecs.decode(encoded.toBytes(), 1,
+                        encoded.getLength() - 1);
+                if (tag[0] == Frame.TYPE_BUNDLE) {
+                    receiveBundle(data);
+                } else {
+                    deliver(data);
+                }
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read a spooled transfer", e);
+            } finally {
+                encoded.release();
+            }
+        }
+
+        /**
+         * Store a blob the peer sent and tell the listener about it. The
+         * blob is read from {@code in} as it is stored.
+         */
+        private void receiveBlob(InputStream in) throws ProtocolException {
+            BlobStore store = mBlobStore;
+            if (store == null) {
+                Log.w(TAG, "Dropping a blob; no blob store set");
+                return;
+            }
+            String hash;
+            try {
+                hash = store.put(in);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                // A full disk is no reason to drop the link
+                Log.e(TAG, "Couldn't store a blob", e);
+                return;
+            }
+            mmPeerBlobs.add(hash);
+            mListener.onBlob(mmSessionId, hash);
+        }
+
+        /**
+         * Take in a bundle the peer sent: deliver it if it is for us, or keep
+         * it to pass on, and take custody of it if asked to. One whose payload
+         * is on its way as a fountain transfer waits for it.
+         */
+        private void receiveBundle(byte[] data) {
+            BundleAgent agent = mBundleAgent;
+            if (agent == null) {
+                Log.w(TAG, "Dropping a bundle; no bundle agent set");
+                return;
+            }
+            DtnBundle bundle;
+            try {
+                bundle = DtnBundle.fromBytes(data);
+            } catch (ProtocolException e) {
+                Log.e(TAG, "Couldn't read a bundle", e);
+                return;
+            }
+            if (bundle.isPayloadDetached()) {
+                if (bundle.getPayload().length != 8) {
+                    Log.w(TAG, "Dropping a bundle with a bad payload reference");
+                    return;
+                }
+                long payloadId = ByteBuffer.wrap(bundle.getPayload()).getLong();
+                synchronized (mDetachedBundles) {
+                    mDetachedBundles.put(payloadId, bundle);
+                    Iterator<Long> oldest = mDetachedBundles.keySet().iterator();
+                    while (mDetachedBundles.size() > MAX_DETACHED_BUNDLES) {
+                        oldest.next();
+                        oldest.remove();
+                    }
+                }
+                return;
+            }
+            receiveBundle(agent, bundle);
+        }
+
+        /**
+         * Take in a fountain-coded bundle payload once it is whole, for the
+         * bundle that was sent ahead of it, by this peer or an earlier one.
+         */
+        private void receiveBundlePayload(byte[] payload) {
+            BundleAgent agent = mBundleAgent;
+            DtnBundle bundle;
+            synchronized (mDetachedBundles) {
+                bundle = mDetachedBundles.remove(FountainTransfers.transferId(payload));
+            }
+            if (agent == null || bundle == null) {
+                Log.w(TAG, "Dropping a bundle payload with no bundle to go with it");
+                return;
+            }
+            receiveBundle(agent, bundle.withPayload(payload));
+        }
+
+        private void receiveBundle(BundleAgent agent, DtnBundle bundle) {
+            BundleAgent.Result result;
+            try {
+                result = agent.onBundle(mmRemoteAddress, bundle);
+            } catch (IOException e) {
+                // A bad bundle or a full disk is no reason to drop the link
+                Log.e(TAG, "Couldn't take a bundle", e);
+                return;
+            }
+            Log.i(TAG, "bundle " + bundle.getIdString() + " from session " + mmSessionId
+                    + ": " + result);
+            if (bundle.isCustodyRequested() && result != BundleAgent.Result.DROPPED) {
+                mmFrameSink.send(agent.custodySignal(bundle));
+            }
+            if (result == BundleAgent.Result.DELIVERED) {
+                deliver(bundle);
+            } else if (result == BundleAgent.Result.STORED) {
+                // Pass it on to whoever else is connected
+                DatagramService.this.forwardBundles();
+            }
+        }
+
+        /**
+         * Send a bundle for us to the decoder if there is one, and to the
+         * listener otherwise.
+         */
+        private void deliver(DtnBundle bundle) {
+            DatagramDecoder decoder = mDatagramDecoder;
+            if (decoder == null) {
+                mListener.onBundle(mmSessionId, bundle);
+                return;
+            }
+            try {
+                decoder.decode(bundle, mmSessionId);
+            } catch (InterruptedException e) {
+                // We're being cancelled, with the bundle already marked seen
+                Log.w(TAG, "Dropped bundle " + bundle.getIdString() + " on cancel");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Take in the peer's bundle summary, so we know what to hand it.
+         */
+        private void onSummary(Frame frame) throws ProtocolException {
+            BundleAgent agent = mBundleAgent;
+            if (agent == null) {
+                return;
+            }
+            try {
+                agent.onSummary(mmRemoteAddress, frame);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't save delivery predictabilities", e);
+            }
+        }
+
+        /**
+         * The peer took custody of a bundle we sent it, so ours can go.
+         */
+        private void onCustody(Frame frame) throws ProtocolException {
+            BundleAgent agent = mBundleAgent;
+            if (agent == null) {
+                return;
+            }
+            try {
+                agent.onCustody(mmRemoteAddress, frame);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't release a bundle", e);
+            }
+        }
+
+        /**
+         * Queue the bundles the peer doesn't have yet, as many as the rest of
+         * the contact is likely to carry. Does nothing until the peer's summary
+         * has arrived. Called again as queued bundles are acknowledged, so what
+         * didn't fit goes out if the contact lasts.
+         */
+        void forwardBundles() {
+            BundleAgent agent = mBundleAgent;
+            if (agent == null) {
+                return;
+            }
+            long budget = mPlanner.budget(mmState.mLink, now() - mmConnectedAt)
+                    - mmBundleBytes.get();
+            if (budget <= 0) {
+                return;
+            }
+            List<DtnBundle> bundles;
+            try {
+                bundles = agent.bundlesFor(mmRemoteAddress, mPlanner, budget);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't pick bundles to forward", e);
+                return;
+            }
+            for (DtnBundle bundle : bundles) {
+                writeBundle(bundle);
+            }
+        }
+
+        /**
+         * Queue a bundle on the bulk lane. One that doesn't fit in a chunk,
+         * or finds the send window full, goes as a chunked transfer instead,
+         * which is always accepted. A large payload follows the rest of the
+         * bundle as a fountain transfer, unless it is too large for the peer
+         * to decode in memory; then the whole bundle is chunked.
+         */
+        private void writeBundle(DtnBundle bundle) {
+            int length = bundle.getPayload().length;
+            if (length > FOUNTAIN_THRESHOLD && length <= FountainTransfers.MAX_TRANSFER_LENGTH) {
+                final byte[] payload = bundle.getPayload();
+                byte[] reference = new byte[8];
+                ByteBuffer.wrap(reference).putLong(FountainTransfers.transferId(payload));
+                byte[] encoded = CompressionCodecs.encode(mmState.mCodec,
+                        bundle.withDetachedPayload(reference).toBytes());
+                final BundleWritten written = new BundleWritten(encoded.length + payload.length);
+                mmBundleBytes.addAndGet(encoded.length + payload.length);
+                // Symbols are only any use once the peer has the bundle they belong to
+                mTransfers.send(mmRemoteAddress, tagged(Frame.TYPE_BUNDLE, encoded),
+                        new ChunkedTransfers.Listener() {
+                            @Override
+                            public void onTransferComplete(String peer) {
+                                mFountains.send(peer, payload, written);
+                            }
+                        });
+                return;
+            }
+            byte[] encoded = CompressionCodecs.encode(mmState.mCodec, bundle.toBytes());
+            BundleWritten written = new BundleWritten(encoded.length);
+            mmBundleBytes.addAndGet(encoded.length);
+            if (encoded.length > CHUNK_SIZE || !mWindows[LANE_BULK].send(mmRemoteAddress,
+                    new Frame(Frame.TYPE_BUNDLE, encoded), written)) {
+                mTransfers.send(mmRemoteAddress, tagged(Frame.TYPE_BUNDLE, encoded), written);
+            }
+        }
+
+        /**
+         * Queue a blob for the connected OutStream, unless the peer already
+         * has it.
+         *
+         * @param hash The hash of a blob in the blob store
+         * @return false if the blob is missing or the write queue is full
+         */
+        public boolean writeBlob(String hash) {
+            if (mmPeerBlobs.contains(hash)) {
+                return true;
+            }
+            // Encoded once into a file next to the blob, and sent from there
+            // a chunk at a time, so a large blob is never in memory whole
+            BlobStore store = mBlobStore;
+            File encoded;
+            try {
+                encoded = store == null ? null : store.encoded(hash, mmState.mCodec);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't encode blob " + hash, e);
+                return false;
+            }
+            if (encoded == null) {
+                return false;
+            }
+            boolean accepted;
+            try {
+                if (encoded.length() > CHUNK_SIZE) {
+                    mTransfers.send(mmRemoteAddress,
+                            Payload.of(new byte[] {(byte) Frame.TYPE_BLOB}, encoded), null);
+                    accepted = true;
+                } else {
+                    accepted = mWindows[LANE_BULK].send(mmRemoteAddress, new Frame(
+                            Frame.TYPE_BLOB, Payload.of(new byte[0], encoded).toBytes()), null);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read blob " + hash, e);
+                return false;
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Blob " + hash + " too large to send", e);
+                return false;
+            }
+            if (accepted) {
+                mmPeerBlobs.add(hash);
+            }
+            return accepted;
+        }
+
+        /**
+         * Queue a datagram for the connected OutStream, compressed with the
+         * session's codec if that makes it smaller. Datagrams larger than a
+         * chunk become a chunked transfer, which is always accepted.
+         *
+         * @param buffer The datagram bytes to write
+         * @param lane   The lane to send it on
+         * @return false if the send window or the write queue is full, or the
+         *         datagram is too large to send
+         */
+        public boolean write(byte[] buffer, int lane) {
+            CompressionCodec codec = mmState.mCodec;
+            byte[] encoded = CompressionCodecs.encode(codec, buffer);
+            DatagramWritten written = new DatagramWritten(buffer);
+            if (encoded.length > CHUNK_SIZE) {
+                try {
+                    mTransfers.send(mmRemoteAddress, tagged(Frame.TYPE_DATAGRAM, encoded),
+                            written);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Datagram too large to send", e);
+                    return false;
+                }
+                return true;
+            }
+            Frame frame;
+            if (codec == CompressionCodecs.IDENTITY || encoded.length >= buffer.length) {
+                frame = new Frame(Frame.TYPE_DATAGRAM, buffer);
+            } else {
+                frame = new Frame(Frame.TYPE_DATAGRAM_ENCODED, encoded);
+            }
+            return mWindows[lane].send(mmRemoteAddress, frame, written);
+        }
+
+        /**
+         * Prefix an encoded payload with the frame type it stands in for, so
+         * the receiver of a chunked transfer knows what it got.
+         */
+        private byte[] tagged(int type, byte[] encoded) {
+            byte[] payload = new byte[1 + encoded.length];
+            payload[0] = (byte) type;
+            System.arraycopy(encoded, 0, payload, 1, encoded.length);
+            return payload;
+        }
+
+        // Chunks and symbols go on the bulk lane; acks and everything else unsequenced
+        // are control frames
+        private final FrameSink mmFrameSink = new FrameSink() {
+            @Override
+            public boolean send(Frame frame) {
+                int type = frame.getType();
+                int lane = type == Frame.TYPE_CHUNK || type == Frame.TYPE_SYMBOL
+                        ? LANE_BULK : LANE_CONTROL;
+                return mmFrameWriter.enqueue(frame, lane, mmWriteCallback);
+            }
+        };
+
+        // One per lane, for that lane's sliding window
+        private final FrameSink[] mmLaneSinks = laneSinks();
+
+        private FrameSink[] laneSinks() {
+            FrameSink[] sinks = new FrameSink[LANE_WEIGHTS.length];
+            for (int i = 0; i < sinks.length; i++) {
+                final int lane = i;
+                sinks[i] = new FrameSink() {
+                    @Override
+                    public boolean send(Frame frame) {
+                        return mmFrameWriter.enqueue(frame, lane, mmWriteCallback);
+                    }
+                };
+            }
+            return sinks;
+        }
+
+        private final AsyncFrameWriter.Callback mmWriteCallback = new AsyncFrameWriter.Callback() {
+            @Override
+            public void onFrameWritten(Frame frame) {
+                // Room in the queue again; resend and keep transfers moving
+                if (frame.getType() == Frame.TYPE_CHUNK) {
+                    mTransfers.pump(mmRemoteAddress);
+                } else if (frame.getType() == Frame.TYPE_SYMBOL) {
+                    mFountains.pump(mmRemoteAddress);
+                } else if (frame.getType() == Frame.TYPE_SEQUENCED) {
+                    for (SlidingWindow window : mWindows) {
+                        window.pump(mmRemoteAddress);
+                    }
+                }
+            }
+
+            @Override
+            public void onFrameFailed(Frame frame, IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            }
+        };
+
+        /**
+         * Shares a datagram back with the listener once the peer has
+         * acknowledged it, whether it went as a single frame or as a chunked
+         * transfer.
+         */
+        private class DatagramWritten implements SlidingWindow.Listener,
+                ChunkedTransfers.Listener {
+            private final byte[] mmDatagram;
+
+            DatagramWritten(byte[] datagram) {
+                mmDatagram = datagram;
+            }
+
+            @Override
+            public void onFrameAcked(String peer, Frame frame) {
+                notifyWritten();
+            }
+
+            @Override
+            public void onTransferComplete(String peer) {
+                notifyWritten();
+            }
+
+            private void notifyWritten() {
+                mListener.onDatagramWritten(mmSessionId, mmDatagram);
+            }
+        }
+
+        /**
+         * Frees a bundle's share of the contact's budget once the peer has it,
+         * and sends more if the planner held any back.
+         */
+        private class BundleWritten implements SlidingWindow.Listener,
+                ChunkedTransfers.Listener, FountainTransfers.Listener {
+            private final int mmLength;
+
+            BundleWritten(int length) {
+                mmLength = length;
+            }
+
+            @Override
+            public void onFrameAcked(String peer, Frame frame) {
+                done();
+            }
+
+            @Override
+            public void onTransferComplete(String peer) {
+                done();
+            }
+
+            private void done() {
+                mmBundleBytes.addAndGet(-mmLength);
+                forwardBundles();
+            }
+        }
+
+        /**
+         * Close the connection, and stop feeding it. The loss is not reported.
+         */
+        void cancel() {
+            if (mmClosed.getAndSet(true)) {
+                return;
+            }
+            ConnectionEngine.Task read = mmReadTask;
+            if (read != null) {
+                read.cancel();
+            }
+            mmFrameWriter.close();
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+            detach();
+        }
+
+        /**
+         * Close the connection because it failed, and report the loss.
+         */
+        private void lost() {
+            cancel();
+            connectionLost(this);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.example.android.common.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers per-peer session state across connections, so a peer that drops off and comes back
+ * soon after carries on where it left off instead of starting over.
+ *
+ * <p>A session is in use while a connection to its peer is up. Once released it is kept for the
+ * configured timeout; acquiring it again within that time resumes it, and after that
+ * {@link #expire()} removes it.</p>
+ *
+ * @param <S> The session state kept per peer
+ */
+public class SessionCache<S> {
+
+    private static class Entry<S> {
+        final S mSession;
+        boolean mInUse = true;
+        long mReleasedAt;
+
+        Entry(S session) {
+            mSession = session;
+        }
+    }
+
+    private final Map<String, Entry<S>> mEntries = new HashMap<String, Entry<S>>();
+    private long mTimeoutMillis;
+
+    /**
+     * @param timeoutMillis How long a released session may be resumed
+     */
+    public SessionCache(long timeoutMillis) {
+        setTimeout(timeoutMillis);
+    }
+
+    public synchronized void setTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Bad timeout " + timeoutMillis);
+        }
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public synchronized long getTimeout() {
+        return mTimeoutMillis;
+    }
+
+    /**
+     * Resumes the session with a peer, marking it in use.
+     *
+     * @return The session, or null if there is none or it has timed out
+     */
+    public synchronized S acquire(String peer) {
+        Entry<S> entry = mEntries.get(peer);
+        if (entry == null || isExpired(entry, now())) {
+            // An expired session is left for expire() to report
+            return null;
+        }
+        entry.mInUse = true;
+        return entry.mSession;
+    }
+
+    /**
+     * Starts a new session with a peer, in use, replacing any earlier one.
+     */
+    public synchronized void put(String peer, S session) {
+        mEntries.put(peer, new Entry<S>(session));
+    }
+
+    /**
+     * Marks a peer's session as no longer in use; it can be resumed until the timeout passes.
+     */
+    public synchronized void release(String peer) {
+        Entry<S> entry = mEntries.get(peer);
+        if (entry != null && entry.mInUse) {
+            entry.mInUse = false;
+            entry.mReleasedAt = now();
+        }
+    }
+
+    /**
+     * Removes sessions that have been released for longer than the timeout.
+     *
+     * @return The peers whose sessions were removed, so their other state can go too
+     */
+    public synchronized List<String> expire() {
+        List<String> expired = new ArrayList<String>();
+        long now = now();
+        Iterator<Map.Entry<String, Entry<S>>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry<S>> entry = it.next();
+            if (isExpired(entry.getValue(), now)) {
+                it.remove();
+                expired.add(entry.getKey());
+            }
+        }
+        return expired;
+    }
+
+    private boolean isExpired(Entry<S> entry, long now) {
+        return !entry.mInUse && now - entry.mReleasedAt > mTimeoutMillis;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,480 @@
+package com.example.android.common.transfer;
+
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends payloads too large for a single frame as a series of fixed-size chunks, and resumes them
+ * where they left off when the link to the same peer comes back.
+ *
+ * <p>Each {@link Frame#TYPE_CHUNK} carries the transfer id, the total length and the offset of
+ * its data. The receiver answers with {@link Frame#TYPE_CHUNK_ACK}s stating how many contiguous
+ * bytes it holds. The sender keeps at most {@code window} chunks unacknowledged, and progress
+ * on both sides is remembered per peer address, not per connection: after a reconnect the
+ * receiver re-announces what it has and the sender carries on from the last acknowledged
+ * offset instead of starting over.</p>
+ *
+ * <p>Every send gets a transfer id of its own, so a payload sent again once an earlier send of
+ * it has finished is delivered again. Handing a peer a payload that is still on its way to it
+ * picks up the pending send instead of starting another one; that is matched by the payload's
+ * content.</p>
+ *
+ * <p>A {@link Payload} may be backed by a file, and is then read a chunk at a time as it is sent.
+ * With a spool directory set, large incoming transfers are likewise written to a file as they
+ * arrive rather than gathered in memory.</p>
+ */
+public class ChunkedTransfers {
+
+    /**
+     * Told when the peer has acknowledged every byte of a transfer.
+     */
+    public interface Listener {
+        public void onTransferComplete(String peer);
+    }
+
+    // id + total length + offset
+    private static final int CHUNK_HEADER_LENGTH = 16;
+    // id + received length
+    private static final int ACK_LENGTH = 12;
+
+    // Largest payload we are willing to reassemble
+    public static final int MAX_TRANSFER_LENGTH = 16 * 1024 * 1024;
+
+    // Partial incoming transfers kept per peer, oldest dropped first
+    private static final int MAX_INCOMING_PER_PEER = 4;
+    // Completed transfer ids remembered per peer, to answer retransmissions after a lost ack
+    private static final int MAX_COMPLETED_PER_PEER = 32;
+    // Incoming transfers larger than this go to the spool directory, if there is one
+    private static final int SPOOL_THRESHOLD = 64 * 1024;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private static class Outgoing {
+        final long mId;
+        final long mDigest;
+        final Payload mPayload;
+        // Everyone who handed over the payload while this send was pending
+        final List<Listener> mListeners = new ArrayList<Listener>(1);
+        int mAcked;
+        int mSent;
+
+        Outgoing(long id, long digest, Payload payload) {
+            mId = id;
+            mDigest = digest;
+            mPayload = payload;
+        }
+    }
+
+    // In memory, or in a spool file if mFile is set
+    private static class Incoming {
+        final int mLength;
+        final byte[] mData;
+        final File mFile;
+        int mReceived;
+
+        Incoming(int length, File file) {
+            mLength = length;
+            mData = file == null ? new byte[length] : null;
+            mFile = file;
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (mFile == null) {
+                System.arraycopy(data, offset, mData, mReceived, length);
+            } else {
+                RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                try {
+                    file.seek(mReceived);
+                    file.write(data, offset, length);
+                } finally {
+                    file.close();
+                }
+            }
+            mReceived += length;
+        }
+
+        Payload toPayload() {
+            return mFile == null ? Payload.of(mData) : Payload.spooled(mFile, mLength);
+        }
+
+        void discard() {
+            if (mFile != null) {
+                mFile.delete();
+            }
+        }
+    }
+
+    private static class Peer {
+        FrameSink mSink;
+        final Map<Long, Outgoing> mOutgoing = new LinkedHashMap<Long, Outgoing>();
+        final Map<Long, Incoming> mIncoming = new LinkedHashMap<Long, Incoming>();
+        final Map<Long, Integer> mCompleted = new LinkedHashMap<Long, Integer>();
+    }
+
+    private final int mChunkSize;
+    private final int mWindow;
+    private final Map<String, Peer> mPeers = new HashMap<String, Peer>();
+    private File mSpoolDir;
+
+    /**
+     * @param chunkSize Payload bytes per chunk
+     * @param window    Chunks that may be in flight, unacknowledged, per peer
+     */
+    public ChunkedTransfers(int chunkSize, int window) {
+        if (chunkSize <= 0 || chunkSize + CHUNK_HEADER_LENGTH > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        mWindow = window;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Sets where large incoming transfers are written as they arrive, or null to keep them in
+     * memory. Anything already in the directory is from before and is deleted.
+     */
+    public synchronized void setSpoolDirectory(File dir) {
+        mSpoolDir = dir;
+        if (dir == null) {
+            return;
+        }
+        dir.mkdirs();
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Connects a peer. Tells it how far our incoming transfers from it got, so it can resume,
+     * and restarts our outgoing transfers to it from their last acknowledged offset.
+     */
+    public synchronized void attach(String peer, FrameSink sink) {
+        Peer p = peer(peer);
+        p.mSink = sink;
+        for (Map.Entry<Long, Incoming> entry : p.mIncoming.entrySet()) {
+            sink.send(ack(entry.getKey(), entry.getValue().mReceived));
+        }
+        for (Outgoing out : p.mOutgoing.values()) {
+            out.mSent = out.mAcked;
+        }
+        pump(p);
+    }
+
+    /**
+     * Disconnects a peer. Its transfer state is kept for when it comes back.
+     *
+     * @param sink The sink passed to {@link #attach}; ignored if the peer has since been
+     *             attached through another one
+     */
+    public synchronized void detach(String peer, FrameSink sink) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == sink) {
+            p.mSink = null;
+        }
+    }
+
+    /**
+     * Drops everything kept for a detached peer, including transfers to it that never finished.
+     */
+    public synchronized void forget(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == null) {
+            mPeers.remove(peer);
+            for (Incoming in : p.mIncoming.values()) {
+                in.discard();
+            }
+        }
+    }
+
+    /**
+     * Starts sending {@code data} to a peer, or joins a send of the same bytes that is still
+     * pending. Chunks go out whenever the peer is attached and the window allows.
+     *
+     * @param listener Told once the peer has it, or null
+     * @throws IllegalArgumentException If {@code data} is longer than
+     *                                  {@link #MAX_TRANSFER_LENGTH}
+     */
+    public void send(String peer, byte[] data, Listener listener) {
+        if (data.length > MAX_TRANSFER_LENGTH) {
+            throw new IllegalArgumentException("Transfer too large: " + data.length);
+        }
+        send(peer, Payload.of(data), transferId(data), listener);
+    }
+
+    /**
+     * Starts sending {@code payload} to a peer, or joins a send of the same content that is
+     * still pending. A file-backed payload is read through once here to tell, then a chunk at a
+     * time as chunks go out; if reading it fails, the transfer is dropped.
+     *
+     * @throws IllegalArgumentException If the payload is longer than
+     *                                  {@link #MAX_TRANSFER_LENGTH}
+     */
+    public void send(String peer, Payload payload, Listener listener) throws IOException {
+        if (payload.getLength() > MAX_TRANSFER_LENGTH) {
+            throw new IllegalArgumentException("Transfer too large: " + payload.getLength());
+        }
+        send(peer, payload, payload.digest(), listener);
+    }
+
+    private synchronized void send(String peer, Payload payload, long digest,
+            Listener listener) {
+        Peer p = peer(peer);
+        Outgoing out = null;
+        for (Outgoing pending : p.mOutgoing.values()) {
+            if (pending.mDigest == digest) {
+                out = pending;
+                break;
+            }
+        }
+        if (out == null) {
+            long id = newId(p);
+            out = new Outgoing(id, digest, payload);
+            p.mOutgoing.put(id, out);
+        }
+        if (listener != null) {
+            out.mListeners.add(listener);
+        }
+        pump(p);
+    }
+
+    /**
+     * Sends more chunks to a peer if the window and its sink allow. Call when the sink may have
+     * room again.
+     */
+    public synchronized void pump(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null) {
+            pump(p);
+        }
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_CHUNK} from a peer. The frame is not released.
+     *
+     * @return The whole payload if this chunk completed a transfer, otherwise null. The caller
+     *         releases it once done with it.
+     * @throws ProtocolException If the chunk is malformed
+     * @throws IOException       If a spooled transfer couldn't be written, which drops it
+     */
+    public synchronized Payload onChunk(String peer, Frame frame) throws IOException {
+        if (frame.getLength() < CHUNK_HEADER_LENGTH) {
+            throw new ProtocolException("Short chunk");
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame.getPayload(), 0, CHUNK_HEADER_LENGTH);
+        long id = header.getLong();
+        int total = header.getInt();
+        int offset = header.getInt();
+        int length = frame.getLength() - CHUNK_HEADER_LENGTH;
+        if (total < 0 || total > MAX_TRANSFER_LENGTH || offset < 0 || length > total - offset) {
+            throw new ProtocolException("Bad chunk bounds");
+        }
+
+        Peer p = peer(peer);
+        Integer completed = p.mCompleted.get(id);
+        if (completed != null) {
+            // We already have all of it; our final ack must have been lost
+            reply(p, ack(id, completed));
+            return null;
+        }
+
+        Incoming in = p.mIncoming.get(id);
+        if (in == null) {
+            if (offset != 0) {
+                // We have nothing of this transfer; ask for it from the start
+                reply(p, ack(id, 0));
+                return null;
+            }
+            in = new Incoming(total, spoolFile(peer, id, total));
+            p.mIncoming.put(id, in);
+            while (p.mIncoming.size() > MAX_INCOMING_PER_PEER) {
+                Iterator<Incoming> oldest = p.mIncoming.values().iterator();
+                oldest.next().discard();
+                oldest.remove();
+            }
+        } else if (in.mLength != total) {
+            throw new ProtocolException("Chunk length changed mid-transfer");
+        }
+
+        if (offset == in.mReceived) {
+            try {
+                in.write(frame.getPayload(), CHUNK_HEADER_LENGTH, length);
+            } catch (IOException e) {
+                p.mIncoming.remove(id);
+                in.discard();
+                throw e;
+            }
+        }
+        // Anything else is a duplicate or out of order; acking what we have sorts it out
+        reply(p, ack(id, in.mReceived));
+
+        if (in.mReceived < total) {
+            return null;
+        }
+        p.mIncoming.remove(id);
+        p.mCompleted.put(id, total);
+        trim(p.mCompleted, MAX_COMPLETED_PER_PEER);
+        return in.toPayload();
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_CHUNK_ACK} from a peer. The frame is not released.
+     */
+    public void onAck(String peer, Frame frame) throws ProtocolException {
+        if (frame.getLength() < ACK_LENGTH) {
+            throw new ProtocolException("Short chunk ack");
+        }
+        ByteBuffer ack = ByteBuffer.wrap(frame.getPayload(), 0, ACK_LENGTH);
+        long id = ack.getLong();
+        int received = ack.getInt();
+
+        Outgoing done = null;
+        synchronized (this) {
+            Peer p = mPeers.get(peer);
+            Outgoing out = p == null ? null : p.mOutgoing.get(id);
+            if (out == null) {
+                return;
+            }
+            if (received < out.mAcked) {
+                // The peer lost what it had; go back to where it is
+                out.mAcked = out.mSent = Math.max(received, 0);
+            } else {
+                out.mAcked = Math.min(received, out.mPayload.getLength());
+            }
+            if (out.mAcked == out.mPayload.getLength()) {
+                p.mOutgoing.remove(id);
+                done = out;
+            }
+            pump(p);
+        }
+        if (done != null) {
+            for (Listener listener : done.mListeners) {
+                listener.onTransferComplete(peer);
+            }
+        }
+    }
+
+    private void pump(Peer p) {
+        if (p.mSink == null) {
+            return;
+        }
+        int budget = mWindow * mChunkSize;
+        for (Outgoing out : p.mOutgoing.values()) {
+            budget -= out.mSent - out.mAcked;
+        }
+        Iterator<Outgoing> outgoing = p.mOutgoing.values().iterator();
+        while (outgoing.hasNext()) {
+            Outgoing out = outgoing.next();
+            int total = out.mPayload.getLength();
+            while (budget > 0 && out.mSent < total) {
+                int length = Math.min(mChunkSize, total - out.mSent);
+                Frame chunk;
+                try {
+                    chunk = chunk(out, out.mSent, length);
+                } catch (IOException e) {
+                    // The file went away under us; nothing more to send of it
+                    outgoing.remove();
+                    break;
+                }
+                if (!p.mSink.send(chunk)) {
+                    // The sink is full; we'll be pumped again once it drains
+                    return;
+                }
+                out.mSent += length;
+                budget -= length;
+            }
+        }
+    }
+
+    private void reply(Peer p, Frame frame) {
+        if (p.mSink != null) {
+            p.mSink.send(frame);
+        }
+    }
+
+    private Peer peer(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p == null) {
+            p = new Peer();
+            mPeers.put(peer, p);
+        }
+        return p;
+    }
+
+    /**
+     * Picks an id for a new send that is in use for no other send to the peer. It is random
+     * rather than counted, so that a peer still remembering our sends from before a restart
+     * doesn't take a new one for one it already has.
+     */
+    private static long newId(Peer p) {
+        long id;
+        do {
+            id = sRandom.nextLong();
+        } while (p.mOutgoing.containsKey(id));
+        return id;
+    }
+
+    private File spoolFile(String peer, long id, int total) {
+        if (mSpoolDir == null || total <= SPOOL_THRESHOLD) {
+            return null;
+        }
+        return new File(mSpoolDir, Integer.toHexString(peer.hashCode()) + "-"
+                + Long.toHexString(id) + ".part");
+    }
+
+    private static Frame chunk(Outgoing out, int offset, int length) throws IOException {
+        byte[] payload = new byte[CHUNK_HEADER_LENGTH + length];
+        ByteBuffer.wrap(payload)
+                .putLong(out.mId)
+                .putInt(out.mPayload.getLength())
+                .putInt(offset);
+        out.mPayload.read(offset, payload, CHUNK_HEADER_LENGTH, length);
+        return new Frame(Frame.TYPE_CHUNK, payload);
+    }
+
+    private static Frame ack(long id, int received) {
+        byte[] payload = new byte[ACK_LENGTH];
+        ByteBuffer.wrap(payload).putLong(id).putInt(received);
+        return new Frame(Frame.TYPE_CHUNK_ACK, payload);
+    }
+
+    private static <K, V> void trim(Map<K, V> map, int max) {
+        Iterator<K> oldest = map.keySet().iterator();
+        while (map.size() > max) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Returns the first eight bytes of the SHA-1 digest of a payload.
+     */
+    static long transferId(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
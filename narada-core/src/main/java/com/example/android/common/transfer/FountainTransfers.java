@@ -0,0 +1,328 @@
+package com.example.android.common.transfer;
+
+import com.example.android.common.fountain.LtCode;
+import com.example.android.common.fountain.LtDecoder;
+import com.example.android.common.fountain.LtEncoder;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameSink;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends large payloads as a stream of {@link LtCode} symbols, so the receiver can piece a payload
+ * together from whatever arrived over several short encounters, with several peers.
+ *
+ * <p>Unlike {@link ChunkedTransfers}, which needs every chunk and tracks progress per peer, the
+ * receiver here keeps one decoder per payload whoever the symbols come from: any K(1 + e) of them
+ * will do, so a response half-delivered by one courier is finished by the next one to carry it.
+ * Each sender starts at a random symbol id, so two senders hardly ever send the same symbol, and
+ * nothing is acknowledged until the payload is whole, when the receiver answers with a
+ * {@link Frame#TYPE_SYMBOL_DONE}. A sender stops by itself after about twice as many symbols as
+ * the payload has blocks, in case the receiver has lost track of the payload.</p>
+ *
+ * <p>Each {@link Frame#TYPE_SYMBOL} carries the transfer id, the payload length, the symbol size
+ * and the symbol id, then the symbol. Transfer ids are derived from the payload's content, so
+ * whoever sends the same payload sends symbols of the same code.</p>
+ *
+ * <p>Both ends hold a payload in the heap while it is in flight, so payloads are kept to
+ * {@link #MAX_TRANSFER_LENGTH}, and the decoders together to a few megabytes: past that, the
+ * payload heard from least recently is dropped.</p>
+ */
+public class FountainTransfers {
+
+    /**
+     * The largest payload that may be sent as symbols. A larger one goes as a chunked transfer,
+     * which the receiver can spool to disk.
+     */
+    public static final int MAX_TRANSFER_LENGTH = 1024 * 1024;
+
+    /**
+     * Told when a peer has confirmed it holds the whole payload.
+     */
+    public interface Listener {
+        public void onTransferComplete(String peer);
+    }
+
+    // id + payload length + symbol size + symbol id
+    private static final int SYMBOL_HEADER_LENGTH = 20;
+    // id
+    private static final int DONE_LENGTH = 8;
+
+    // Payloads being decoded, and the heap their decoders may hold between them; the oldest is
+    // dropped first
+    private static final int MAX_INCOMING = 4;
+    private static final long MAX_INCOMING_BYTES = 4 * 1024 * 1024;
+    // Completed transfer ids remembered, to answer symbols still on their way
+    private static final int MAX_COMPLETED = 32;
+
+    // Symbols sent per attach, as a multiple of the block count, plus a few for small payloads
+    private static final int MAX_OVERHEAD = 2;
+    private static final int EXTRA_SYMBOLS = 16;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private static class Outgoing {
+        final LtEncoder mEncoder;
+        final Listener mListener;
+        int mNextEsi = sRandom.nextInt();
+        int mSent;
+
+        Outgoing(LtEncoder encoder, Listener listener) {
+            mEncoder = encoder;
+            mListener = listener;
+        }
+
+        boolean isExhausted() {
+            int blocks = mEncoder.getCode().getBlockCount();
+            return mSent >= MAX_OVERHEAD * blocks + EXTRA_SYMBOLS;
+        }
+    }
+
+    private static class Peer {
+        FrameSink mSink;
+        final Map<Long, Outgoing> mOutgoing = new LinkedHashMap<Long, Outgoing>();
+    }
+
+    private final int mSymbolSize;
+    private final Map<String, Peer> mPeers = new HashMap<String, Peer>();
+    private final Map<Long, LtDecoder> mIncoming = new LinkedHashMap<Long, LtDecoder>();
+    private final Map<Long, Boolean> mCompleted = new LinkedHashMap<Long, Boolean>();
+
+    /**
+     * @param symbolSize Preferred payload bytes per symbol; larger payloads use larger symbols
+     *                   to stay within {@link LtCode#MAX_BLOCKS}
+     */
+    public FountainTransfers(int symbolSize) {
+        if (symbolSize <= 0 || symbolSize + SYMBOL_HEADER_LENGTH > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Bad symbol size " + symbolSize);
+        }
+        mSymbolSize = symbolSize;
+    }
+
+    /**
+     * Connects a peer, and starts sending it fresh symbols of whatever it still lacks.
+     */
+    public synchronized void attach(String peer, FrameSink sink) {
+        Peer p = peer(peer);
+        p.mSink = sink;
+        for (Outgoing out : p.mOutgoing.values()) {
+            out.mSent = 0;
+        }
+        pump(p);
+    }
+
+    /**
+     * Disconnects a peer. What it was being sent is kept for when it comes back.
+     *
+     * @param sink The sink passed to {@link #attach}; ignored if the peer has since been
+     *             attached through another one
+     */
+    public synchronized void detach(String peer, FrameSink sink) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == sink) {
+            p.mSink = null;
+        }
+    }
+
+    /**
+     * Drops what was being sent to a detached peer. Payloads half-received from it are kept,
+     * since other peers may finish them.
+     */
+    public synchronized void forget(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == null) {
+            mPeers.remove(peer);
+        }
+    }
+
+    /**
+     * Starts sending {@code data} to a peer, unless it is already being sent.
+     *
+     * @return The transfer id, which the peer will know the payload by
+     * @throws IllegalArgumentException If the payload is larger than
+     *                                  {@link #MAX_TRANSFER_LENGTH}
+     */
+    public synchronized long send(String peer, byte[] data, Listener listener) {
+        if (data.length > MAX_TRANSFER_LENGTH) {
+            throw new IllegalArgumentException("Transfer too large: " + data.length);
+        }
+        Peer p = peer(peer);
+        long id = transferId(data);
+        if (!p.mOutgoing.containsKey(id)) {
+            LtCode code = new LtCode(id, data.length,
+                    LtCode.symbolSizeFor(data.length, mSymbolSize));
+            p.mOutgoing.put(id, new Outgoing(new LtEncoder(code, data), listener));
+        }
+        pump(p);
+        return id;
+    }
+
+    /**
+     * Sends more symbols to a peer while its sink takes them. Call when the sink may have room
+     * again.
+     */
+    public synchronized void pump(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null) {
+            pump(p);
+        }
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_SYMBOL} from a peer. The frame is not released.
+     *
+     * @return The whole payload if this symbol completed it, otherwise null
+     */
+    public synchronized byte[] onSymbol(String peer, Frame frame) throws ProtocolException {
+        if (frame.getLength() < SYMBOL_HEADER_LENGTH) {
+            throw new ProtocolException("Short symbol");
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame.getPayload(), 0, SYMBOL_HEADER_LENGTH);
+        long id = header.getLong();
+        int length = header.getInt();
+        int symbolSize = header.getInt();
+        int esi = header.getInt();
+        if (length < 0 || length > MAX_TRANSFER_LENGTH || symbolSize <= 0
+                || symbolSize != frame.getLength() - SYMBOL_HEADER_LENGTH
+                || ((long) length + symbolSize - 1) / symbolSize > LtCode.MAX_BLOCKS) {
+            throw new ProtocolException("Bad symbol bounds");
+        }
+
+        Peer p = peer(peer);
+        if (mCompleted.containsKey(id)) {
+            // Still coming from before our done got there
+            reply(p, done(id));
+            return null;
+        }
+        LtDecoder decoder = mIncoming.get(id);
+        if (decoder == null) {
+            decoder = new LtDecoder(new LtCode(id, length, symbolSize));
+            mIncoming.put(id, decoder);
+            trim(mIncoming, MAX_INCOMING);
+        } else if (decoder.getCode().getLength() != length
+                || decoder.getCode().getSymbolSize() != symbolSize) {
+            throw new ProtocolException("Symbol shape changed mid-transfer");
+        }
+        if (!decoder.add(esi, frame.getPayload(), SYMBOL_HEADER_LENGTH)) {
+            trimIncoming(id);
+            return null;
+        }
+        mIncoming.remove(id);
+        byte[] data = decoder.getData();
+        if (transferId(data) != id) {
+            // Corrupt symbols, or a sender's bad code; nothing to do but start over
+            throw new ProtocolException("Fountain transfer " + Long.toHexString(id)
+                    + " decoded wrong");
+        }
+        mCompleted.put(id, Boolean.TRUE);
+        trim(mCompleted, MAX_COMPLETED);
+        reply(p, done(id));
+        return data;
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_SYMBOL_DONE} from a peer. The frame is not released.
+     */
+    public void onDone(String peer, Frame frame) throws ProtocolException {
+        if (frame.getLength() < DONE_LENGTH) {
+            throw new ProtocolException("Short symbol done");
+        }
+        long id = ByteBuffer.wrap(frame.getPayload(), 0, DONE_LENGTH).getLong();
+        Outgoing done;
+        synchronized (this) {
+            Peer p = mPeers.get(peer);
+            done = p == null ? null : p.mOutgoing.remove(id);
+        }
+        if (done != null && done.mListener != null) {
+            done.mListener.onTransferComplete(peer);
+        }
+    }
+
+    private void pump(Peer p) {
+        if (p.mSink == null) {
+            return;
+        }
+        for (Outgoing out : p.mOutgoing.values()) {
+            while (!out.isExhausted()) {
+                if (!p.mSink.send(symbol(out, out.mNextEsi))) {
+                    // The sink is full; we'll be pumped again once it drains
+                    return;
+                }
+                out.mNextEsi++;
+                out.mSent++;
+            }
+        }
+    }
+
+    private void reply(Peer p, Frame frame) {
+        if (p.mSink != null) {
+            p.mSink.send(frame);
+        }
+    }
+
+    private Peer peer(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p == null) {
+            p = new Peer();
+            mPeers.put(peer, p);
+        }
+        return p;
+    }
+
+    private static Frame symbol(Outgoing out, int esi) {
+        LtCode code = out.mEncoder.getCode();
+        byte[] payload = new byte[SYMBOL_HEADER_LENGTH + code.getSymbolSize()];
+        ByteBuffer.wrap(payload)
+                .putLong(code.getId())
+                .putInt(code.getLength())
+                .putInt(code.getSymbolSize())
+                .putInt(esi);
+        out.mEncoder.symbol(esi, payload, SYMBOL_HEADER_LENGTH);
+        return new Frame(Frame.TYPE_SYMBOL, payload);
+    }
+
+    private static Frame done(long id) {
+        byte[] payload = new byte[DONE_LENGTH];
+        ByteBuffer.wrap(payload).putLong(id);
+        return new Frame(Frame.TYPE_SYMBOL_DONE, payload);
+    }
+
+    /**
+     * Drops the payloads heard from least recently while the decoders hold too much, short of
+     * the one {@code current} is decoding.
+     */
+    private void trimIncoming(long current) {
+        // The one just fed goes last
+        mIncoming.put(current, mIncoming.remove(current));
+        long held = 0;
+        for (LtDecoder decoder : mIncoming.values()) {
+            held += decoder.getHeldBytes();
+        }
+        Iterator<LtDecoder> oldest = mIncoming.values().iterator();
+        while (held > MAX_INCOMING_BYTES && mIncoming.size() > 1) {
+            held -= oldest.next().getHeldBytes();
+            oldest.remove();
+        }
+    }
+
+    private static <K, V> void trim(Map<K, V> map, int max) {
+        Iterator<K> oldest = map.keySet().iterator();
+        while (map.size() > max) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Returns an id for a payload, the same one {@link ChunkedTransfers} would give it.
+     */
+    public static long transferId(byte[] data) {
+        return ChunkedTransfers.transferId(data);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.android.common.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The bytes of a chunked transfer, in memory or in a file. A file-backed payload is only ever
+ * read a chunk at a time, so sending or receiving a large one takes no more memory than a small
+ * one.
+ */
+public abstract class Payload {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Returns a payload of {@code data}.
+     */
+    public static Payload of(byte[] data) {
+        return new Bytes(data);
+    }
+
+    /**
+     * Returns a payload of {@code header} followed by the contents of {@code file}, which must
+     * not change while the payload is in use.
+     */
+    public static Payload of(byte[] header, File file) throws IOException {
+        long length = header.length + file.length();
+        if (length > ChunkedTransfers.MAX_TRANSFER_LENGTH) {
+            throw new IOException("Transfer too large: " + length);
+        }
+        return new FileBacked(header, file, (int) length, false);
+    }
+
+    /**
+     * Returns a payload of {@code length} bytes of {@code file}, which is deleted on
+     * {@link #release()}.
+     */
+    static Payload spooled(File file, int length) {
+        return new FileBacked(new byte[0], file, length, true);
+    }
+
+    public abstract int getLength();
+
+    /**
+     * Reads {@code length} bytes from {@code offset} into {@code into} at {@code start}.
+     */
+    public abstract void read(int offset, byte[] into, int start, int length) throws IOException;
+
+    /**
+     * Returns a stream of the whole payload. The caller closes it.
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * Returns the whole payload in memory.
+     */
+    public abstract byte[] toBytes() throws IOException;
+
+    /**
+     * Frees whatever the payload holds on to. Call once done with a received payload.
+     */
+    public void release() {
+    }
+
+    /**
+     * Returns the first eight bytes of the SHA-1 digest of the payload.
+     */
+    long digest() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        InputStream in = open();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static class Bytes extends Payload {
+        final byte[] mData;
+
+        Bytes(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int getLength() {
+            return mData.length;
+        }
+
+        @Override
+        public void read(int offset, byte[] into, int start, int length) {
+            System.arraycopy(mData, offset, into, start, length);
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(mData);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return mData;
+        }
+
+        @Override
+        long digest() {
+            return ChunkedTransfers.transferId(mData);
+        }
+    }
+
+    private static class FileBacked extends Payload {
+        final byte[] mHeader;
+        final File mFile;
+        final int mLength;
+        final boolean mTemporary;
+
+        FileBacked(byte[] header, File file, int length, boolean temporary) {
+            mHeader = header;
+            mFile = file;
+            mLength = length;
+            mTemporary = temporary;
+        }
+
+        @Override
+        public int getLength() {
+            return mLength;
+        }
+
+        @Override
+        public void read(int offset, byte[] into, int start, int length) throws IOException {
+            if (offset < mHeader.length) {
+                int n = Math.min(length, mHeader.length - offset);
+                System.arraycopy(mHeader, offset, into, start, n);
+                offset += n;
+                start += n;
+                length -= n;
+            }
+            if (length == 0) {
+                return;
+            }
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                file.seek(offset - mHeader.length);
+                file.readFully(into, start, length);
+            } finally {
+                file.close();
+            }
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream file = new FileInputStream(mFile);
+            if (mHeader.length == 0) {
+                return file;
+            }
+            return new SequenceInputStream(new ByteArrayInputStream(mHeader), file);
+        }
+
+        @Override
+        public byte[] toBytes() throws IOException {
+            byte[] data = new byte[mLength];
+            read(0, data, 0, mLength);
+            return data;
+        }
+
+        @Override
+        public void release() {
+            if (mTemporary) {
+                mFile.delete();
+            }
+        }
+    }
+}
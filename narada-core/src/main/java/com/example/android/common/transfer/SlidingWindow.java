@@ -0,0 +1,446 @@
+package com.example.android.common.transfer;
+
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameSink;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Delivers frames to a peer reliably and in order, across connection drops, with a bounded
+ * window of unacknowledged frames and selective acknowledgements.
+ *
+ * <p>A {@link Frame#TYPE_SEQUENCED} frame carries an inner frame's payload followed by a
+ * trailer:</p>
+ * <pre>
+ *   payload... | epoch (4) | seq (4) | ack epoch (4) | ack (4) | SACK bitmap (4) | type (1) | channel (1)
+ * </pre>
+ * <p>Putting the sequence data last keeps the inner payload at offset zero, so a received frame
+ * is handed on without copying. {@code ack} is the last sequence number the sender of the frame
+ * received in order from us, and bit {@code i} of the bitmap says it also holds
+ * {@code ack + 2 + i}. Every sequenced frame carries that state for the opposite direction;
+ * {@link Frame#TYPE_ACK} carries it alone when there is nothing to piggyback on.</p>
+ *
+ * <p>Several windows can share one connection as independent channels, each numbering its own
+ * stream, so a frame held up on one channel never delays delivery on another. Both frame types
+ * end with the channel number; {@link #channelOf(Frame)} tells the receiver which window a
+ * frame belongs to.</p>
+ *
+ * <p>State is kept per peer address, not per connection. After a reconnect the sender resends
+ * exactly the frames the peer has not acknowledged, and the receiver drops whatever it already
+ * had. Each side numbers its stream under a random epoch, so a peer that restarted and began
+ * counting from one again is not mistaken for a stream of duplicates.</p>
+ */
+public class SlidingWindow {
+
+    /**
+     * Told when the peer has received a frame, and every frame sent before it.
+     */
+    public interface Listener {
+        public void onFrameAcked(String peer, Frame frame);
+    }
+
+    // epoch + seq + ack epoch + ack + SACK bitmap + inner type + channel
+    private static final int TRAILER_LENGTH = 22;
+    // ack epoch + ack + SACK bitmap + channel
+    private static final int ACK_LENGTH = 13;
+
+    // One bit per frame past the first gap
+    public static final int MAX_WINDOW = 32;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private static class Sent {
+        final int mSeq;
+        final Frame mFrame;
+        final Listener mListener;
+        // The peer holds it, but not yet everything before it
+        boolean mSacked;
+        // Resent since the last reconnect, so a later SACK doesn't trigger it again
+        boolean mRetransmitted;
+        // Handed to the current sink; false if the sink refused it
+        boolean mQueued;
+
+        Sent(int seq, Frame frame, Listener listener) {
+            mSeq = seq;
+            mFrame = frame;
+            mListener = listener;
+        }
+    }
+
+    private static class Peer {
+        FrameSink mSink;
+
+        // Our stream to the peer
+        int mEpoch = nextEpoch();
+        int mNextSeq = 1;
+        final Map<Integer, Sent> mUnacked = new LinkedHashMap<Integer, Sent>();
+        boolean mNeedsPump;
+
+        // The peer's stream to us
+        int mPeerEpoch;
+        int mReceived;
+        final TreeMap<Integer, Frame> mOutOfOrder = new TreeMap<Integer, Frame>();
+        boolean mAckPending;
+    }
+
+    private final int mWindow;
+    private final int mChannel;
+    private final Map<String, Peer> mPeers = new HashMap<String, Peer>();
+
+    /**
+     * Creates a window on channel 0.
+     *
+     * @param window Frames that may be unacknowledged per peer, at most {@link #MAX_WINDOW}
+     */
+    public SlidingWindow(int window) {
+        this(window, 0);
+    }
+
+    /**
+     * @param window  Frames that may be unacknowledged per peer, at most {@link #MAX_WINDOW}
+     * @param channel The channel this window's frames are marked with, 0 to 255
+     */
+    public SlidingWindow(int window, int channel) {
+        if (window <= 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("Bad window " + window);
+        }
+        if (channel < 0 || channel > 0xFF) {
+            throw new IllegalArgumentException("Bad channel " + channel);
+        }
+        mWindow = window;
+        mChannel = channel;
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the channel of a {@link Frame#TYPE_SEQUENCED} or {@link Frame#TYPE_ACK} frame.
+     *
+     * @throws ProtocolException If the frame is too short to be either
+     */
+    public static int channelOf(Frame frame) throws ProtocolException {
+        int minLength = frame.getType() == Frame.TYPE_ACK ? ACK_LENGTH : TRAILER_LENGTH;
+        if (frame.getLength() < minLength) {
+            throw new ProtocolException("Short frame for a sliding window");
+        }
+        return frame.getPayload()[frame.getLength() - 1] & 0xFF;
+    }
+
+    /**
+     * Connects a peer. Tells it how far we got with its stream, and resends everything it
+     * hasn't acknowledged.
+     */
+    public synchronized void attach(String peer, FrameSink sink) {
+        Peer p = peer(peer);
+        p.mSink = sink;
+        if (sink.send(ack(p))) {
+            p.mAckPending = false;
+        }
+        for (Sent sent : p.mUnacked.values()) {
+            sent.mRetransmitted = false;
+            sent.mQueued = false;
+        }
+        p.mNeedsPump = true;
+        pump(p);
+    }
+
+    /**
+     * Disconnects a peer. Its unacknowledged frames are kept for when it comes back.
+     *
+     * @param sink The sink passed to {@link #attach}; ignored if the peer has since been
+     *             attached through another one
+     */
+    public synchronized void detach(String peer, FrameSink sink) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == sink) {
+            p.mSink = null;
+        }
+    }
+
+    /**
+     * Starts our stream to a peer over, for a peer that has lost what it knew of it. Frames it
+     * hasn't acknowledged are renumbered from one under a new epoch and resent, so the peer may
+     * see again the few it received without managing to acknowledge.
+     */
+    public synchronized void restart(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p == null) {
+            return;
+        }
+        p.mEpoch = nextEpoch();
+        p.mNextSeq = 1;
+        Map<Integer, Sent> unacked = new LinkedHashMap<Integer, Sent>();
+        for (Sent sent : p.mUnacked.values()) {
+            Sent renumbered = new Sent(p.mNextSeq++, sent.mFrame, sent.mListener);
+            unacked.put(renumbered.mSeq, renumbered);
+        }
+        p.mUnacked.clear();
+        p.mUnacked.putAll(unacked);
+        p.mNeedsPump = true;
+        pump(p);
+    }
+
+    /**
+     * Drops everything kept for a detached peer. Its unacknowledged frames are discarded
+     * without telling their listeners.
+     */
+    public synchronized void forget(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mSink == null) {
+            mPeers.remove(peer);
+        }
+    }
+
+    /**
+     * Sends a frame to a peer if the window has room and the sink takes it.
+     *
+     * @param listener Told once the peer has acknowledged the frame; may be null
+     * @return false if the window is full or the sink refused the frame; it was not sent
+     */
+    public synchronized boolean send(String peer, Frame frame, Listener listener) {
+        Peer p = peer(peer);
+        if (p.mUnacked.size() >= mWindow || p.mSink == null) {
+            return false;
+        }
+        // Older frames waiting to be resent go first
+        pump(p);
+        Sent sent = new Sent(p.mNextSeq, frame, listener);
+        if (!p.mSink.send(wrap(p, sent))) {
+            return false;
+        }
+        // The peer learns our ack state from this frame
+        p.mAckPending = false;
+        sent.mQueued = true;
+        p.mNextSeq++;
+        p.mUnacked.put(sent.mSeq, sent);
+        return true;
+    }
+
+    /**
+     * Resends frames the sink refused earlier. Call when the sink may have room again.
+     */
+    public synchronized void pump(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null) {
+            pump(p);
+        }
+    }
+
+    /**
+     * Sends a standalone acknowledgement if frames arrived since we last told the peer. Call
+     * when no more incoming frames are waiting, so a burst is acknowledged once.
+     */
+    public synchronized void flushAck(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p != null && p.mAckPending && p.mSink != null && p.mSink.send(ack(p))) {
+            p.mAckPending = false;
+        }
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_SEQUENCED} from a peer, taking over the frame.
+     *
+     * @return The inner frames now deliverable in order, possibly none. The caller owns them
+     *         and must release them.
+     */
+    public List<Frame> onSequenced(String peer, Frame frame) throws ProtocolException {
+        int length = frame.getLength() - TRAILER_LENGTH;
+        if (length < 0) {
+            frame.release();
+            throw new ProtocolException("Short sequenced frame");
+        }
+        ByteBuffer trailer = ByteBuffer.wrap(frame.getPayload(), length, TRAILER_LENGTH);
+        int epoch = trailer.getInt();
+        int seq = trailer.getInt();
+        int ackEpoch = trailer.getInt();
+        int ack = trailer.getInt();
+        int sack = trailer.getInt();
+        int type = trailer.get() & 0xFF;
+        if ((trailer.get() & 0xFF) != mChannel) {
+            frame.release();
+            throw new ProtocolException("Frame for another channel");
+        }
+
+        List<Frame> ready = new ArrayList<Frame>();
+        List<Sent> acked;
+        synchronized (this) {
+            Peer p = peer(peer);
+            acked = onAck(p, ackEpoch, ack, sack);
+
+            if (epoch != p.mPeerEpoch) {
+                // A new stream from this peer; whatever we held of the old one is moot
+                p.mPeerEpoch = epoch;
+                p.mReceived = 0;
+                p.mOutOfOrder.clear();
+            }
+            p.mAckPending = true;
+
+            if (seq == p.mReceived + 1) {
+                ready.add(frame.slice(type, length));
+                p.mReceived++;
+                Frame next;
+                while ((next = p.mOutOfOrder.remove(p.mReceived + 1)) != null) {
+                    ready.add(next);
+                    p.mReceived++;
+                }
+            } else {
+                if (seq > p.mReceived + 1 && seq <= p.mReceived + 1 + MAX_WINDOW
+                        && !p.mOutOfOrder.containsKey(seq)) {
+                    // Held until the gap is filled; copied so it doesn't pin a pooled buffer
+                    byte[] payload = new byte[length];
+                    System.arraycopy(frame.getPayload(), 0, payload, 0, length);
+                    p.mOutOfOrder.put(seq, new Frame(type, payload));
+                }
+                // Anything else we already have
+                frame.release();
+            }
+        }
+        notifyAcked(peer, acked);
+        return ready;
+    }
+
+    /**
+     * Handles a {@link Frame#TYPE_ACK} from a peer. The frame is not released.
+     */
+    public void onAck(String peer, Frame frame) throws ProtocolException {
+        if (frame.getLength() < ACK_LENGTH) {
+            throw new ProtocolException("Short ack");
+        }
+        ByteBuffer ack = ByteBuffer.wrap(frame.getPayload(), 0, ACK_LENGTH);
+        List<Sent> acked;
+        synchronized (this) {
+            Peer p = mPeers.get(peer);
+            if (p == null) {
+                return;
+            }
+            acked = onAck(p, ack.getInt(), ack.getInt(), ack.getInt());
+        }
+        notifyAcked(peer, acked);
+    }
+
+    /**
+     * Returns the number of frames sent to a peer and not yet acknowledged.
+     */
+    public synchronized int getUnackedCount(String peer) {
+        Peer p = mPeers.get(peer);
+        return p == null ? 0 : p.mUnacked.size();
+    }
+
+    private List<Sent> onAck(Peer p, int ackEpoch, int ack, int sack) {
+        List<Sent> acked = new ArrayList<Sent>();
+        if (ackEpoch != p.mEpoch) {
+            // About a stream we no longer have
+            return acked;
+        }
+        int highestSacked = 0;
+        Iterator<Sent> it = p.mUnacked.values().iterator();
+        while (it.hasNext()) {
+            Sent sent = it.next();
+            int bit = sent.mSeq - ack - 2;
+            if (sent.mSeq <= ack) {
+                it.remove();
+                acked.add(sent);
+            } else if (bit >= 0 && bit < MAX_WINDOW && (sack & (1 << bit)) != 0) {
+                sent.mSacked = true;
+                highestSacked = sent.mSeq;
+            }
+        }
+        // The peer has frames past these, so these were lost; resend just them, once
+        for (Sent sent : p.mUnacked.values()) {
+            if (sent.mSeq < highestSacked && !sent.mSacked && !sent.mRetransmitted) {
+                sent.mRetransmitted = true;
+                sent.mQueued = false;
+                p.mNeedsPump = true;
+            }
+        }
+        pump(p);
+        return acked;
+    }
+
+    private void notifyAcked(String peer, List<Sent> acked) {
+        for (Sent sent : acked) {
+            if (sent.mListener != null) {
+                sent.mListener.onFrameAcked(peer, sent.mFrame);
+            }
+        }
+    }
+
+    private void pump(Peer p) {
+        if (!p.mNeedsPump || p.mSink == null) {
+            return;
+        }
+        for (Sent sent : p.mUnacked.values()) {
+            if (!sent.mQueued && !sent.mSacked) {
+                if (!p.mSink.send(wrap(p, sent))) {
+                    // The sink is full; we'll be pumped again once it drains
+                    return;
+                }
+                p.mAckPending = false;
+                sent.mQueued = true;
+            }
+        }
+        p.mNeedsPump = false;
+    }
+
+    private Frame wrap(Peer p, Sent sent) {
+        Frame inner = sent.mFrame;
+        int length = inner.getLength();
+        byte[] payload = new byte[length + TRAILER_LENGTH];
+        ByteBuffer.wrap(payload)
+                .put(inner.getPayload(), 0, length)
+                .putInt(p.mEpoch)
+                .putInt(sent.mSeq)
+                .putInt(p.mPeerEpoch)
+                .putInt(p.mReceived)
+                .putInt(sack(p))
+                .put((byte) inner.getType())
+                .put((byte) mChannel);
+        return new Frame(Frame.TYPE_SEQUENCED, payload);
+    }
+
+    private Frame ack(Peer p) {
+        byte[] payload = new byte[ACK_LENGTH];
+        ByteBuffer.wrap(payload).putInt(p.mPeerEpoch).putInt(p.mReceived).putInt(sack(p))
+                .put((byte) mChannel);
+        return new Frame(Frame.TYPE_ACK, payload);
+    }
+
+    private static int sack(Peer p) {
+        int bits = 0;
+        for (int seq : p.mOutOfOrder.keySet()) {
+            int bit = seq - p.mReceived - 2;
+            if (bit >= 0 && bit < MAX_WINDOW) {
+                bits |= 1 << bit;
+            }
+        }
+        return bits;
+    }
+
+    private Peer peer(String peer) {
+        Peer p = mPeers.get(peer);
+        if (p == null) {
+            p = new Peer();
+            mPeers.put(peer, p);
+        }
+        return p;
+    }
+
+    private static int nextEpoch() {
+        int epoch;
+        do {
+            epoch = sRandom.nextInt();
+        } while (epoch == 0);
+        return epoch;
+    }
+}
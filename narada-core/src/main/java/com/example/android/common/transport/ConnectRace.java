@@ -0,0 +1,221 @@
+package com.example.android.common.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connects to a peer over whichever of several routes works first.
+ *
+ * <p>Routes are tried in order of preference, each started once the previous one has failed or
+ * has had {@code staggerMillis} to itself, so a slow preferred route doesn't hold up a working
+ * fallback for long while a fast one rarely opens a second connection. The first socket to
+ * connect wins and the others are closed. If nothing connects within {@code timeoutMillis} every
+ * attempt is aborted.</p>
+ */
+public class ConnectRace {
+
+    /**
+     * One way of reaching a peer: a socket type, and a channel if known.
+     */
+    public static class Route {
+        private final boolean mSecure;
+        private final int mChannel;
+
+        /**
+         * @param secure  Socket Security type - Secure (true) , Insecure (false)
+         * @param channel The channel to connect to directly, or -1 to look it up
+         */
+        public Route(boolean secure, int channel) {
+            mSecure = secure;
+            mChannel = channel;
+        }
+
+        public boolean isSecure() {
+            return mSecure;
+        }
+
+        public int getChannel() {
+            return mChannel;
+        }
+
+        @Override
+        public String toString() {
+            return (mSecure ? "Secure" : "Insecure")
+                    + (mChannel > 0 ? " channel " + mChannel : " lookup");
+        }
+    }
+
+    private final DatagramTransport mTransport;
+    private final String mAddress;
+    private final List<Route> mRoutes;
+    private final long mStaggerMillis;
+    private final long mTimeoutMillis;
+    private final Executor mExecutor;
+
+    // Guarded by this
+    private final List<TransportSocket> mSockets = new ArrayList<TransportSocket>();
+    private int mStarted;
+    private int mFailed;
+    private IOException mLastFailure;
+    private TransportSocket mWinner;
+    private Route mWinningRoute;
+    private boolean mFinished;
+
+    /**
+     * @param routes        The routes to try, most preferred first
+     * @param staggerMillis How long a route runs alone before the next one joins in
+     * @param timeoutMillis How long to wait for any route to connect
+     * @param executor      Runs the attempts; an attempt it refuses counts as failed
+     */
+    public ConnectRace(DatagramTransport transport, String address, List<Route> routes,
+            long staggerMillis, long timeoutMillis, Executor executor) {
+        if (routes.isEmpty()) {
+            throw new IllegalArgumentException("No routes to " + address);
+        }
+        mTransport = transport;
+        mAddress = address;
+        mRoutes = new ArrayList<Route>(routes);
+        mStaggerMillis = staggerMillis;
+        mTimeoutMillis = timeoutMillis;
+        mExecutor = executor;
+    }
+
+    /**
+     * Blocks until a route connects.
+     *
+     * @return The connected socket; {@link #getWinningRoute()} tells which route it took
+     * @throws IOException If every route failed, the timeout passed or the race was cancelled
+     */
+    public TransportSocket run() throws IOException {
+        long deadline = now() + mTimeoutMillis;
+        long nextStart = 0;
+        List<TransportSocket> losers;
+        TransportSocket winner;
+        IOException failure;
+        synchronized (this) {
+            try {
+                while (mWinner == null && !mFinished) {
+                    long now = now();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    // Nothing left running; don't wait for the stagger to start the next one
+                    boolean idle = mFailed == mStarted;
+                    if (mStarted < mRoutes.size() && (now >= nextStart || idle)) {
+                        start(mRoutes.get(mStarted++));
+                        nextStart = now + mStaggerMillis;
+                        continue;
+                    }
+                    if (idle) {
+                        break;
+                    }
+                    long wake = mStarted < mRoutes.size() ? Math.min(nextStart, deadline)
+                            : deadline;
+                    wait(wake - now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mFinished = true;
+            winner = mWinner;
+            losers = new ArrayList<TransportSocket>(mSockets);
+            losers.remove(winner);
+            if (winner != null) {
+                failure = null;
+            } else if (mFailed == mRoutes.size() && mLastFailure != null) {
+                failure = mLastFailure;
+            } else {
+                failure = new IOException("Couldn't connect to " + mAddress + " in time");
+            }
+        }
+        // Closing aborts the attempts still in progress
+        for (TransportSocket socket : losers) {
+            closeQuietly(socket);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return winner;
+    }
+
+    /**
+     * Returns the route the winning socket connected over, or null if none has.
+     */
+    public synchronized Route getWinningRoute() {
+        return mWinningRoute;
+    }
+
+    /**
+     * Aborts the race; {@link #run()} gives up and closes every socket it opened.
+     */
+    public synchronized void cancel() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    // Called with the lock held
+    private void start(final Route route) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(route);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mFailed++;
+            mLastFailure = new IOException("No thread to connect over " + route, e);
+        }
+    }
+
+    private void attempt(Route route) {
+        TransportSocket socket = null;
+        try {
+            socket = mTransport.createSocket(mAddress, route.isSecure(), route.getChannel());
+            synchronized (this) {
+                if (mFinished) {
+                    closeQuietly(socket);
+                    return;
+                }
+                mSockets.add(socket);
+            }
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            socket.connect();
+            synchronized (this) {
+                if (mWinner == null && !mFinished) {
+                    mWinner = socket;
+                    mWinningRoute = route;
+                    notifyAll();
+                    return;
+                }
+            }
+            // Another route got there first
+            closeQuietly(socket);
+        } catch (IOException e) {
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+            synchronized (this) {
+                mFailed++;
+                mLastFailure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.common.transport;
+
+import java.util.Arrays;
+
+/**
+ * Time from starting a connect to being connected, over the most recent attempts. Connects to
+ * peers we had a cached route for ("warm") are kept apart from first contacts ("cold"), since
+ * the cache is what should make the former fast.
+ */
+public class ConnectStats {
+
+    // Samples kept per kind, oldest overwritten first
+    private static final int MAX_SAMPLES = 32;
+
+    private final long[] mWarm = new long[MAX_SAMPLES];
+    private final long[] mCold = new long[MAX_SAMPLES];
+    private int mWarmCount;
+    private int mColdCount;
+    private int mFailures;
+
+    /**
+     * Records a successful connect.
+     *
+     * @param millis Time from starting the connect to being connected
+     * @param warm   Whether the peer was in the peer cache
+     */
+    public synchronized void onConnected(long millis, boolean warm) {
+        if (warm) {
+            mWarm[mWarmCount++ % MAX_SAMPLES] = millis;
+        } else {
+            mCold[mColdCount++ % MAX_SAMPLES] = millis;
+        }
+    }
+
+    /**
+     * Records a connect that failed or timed out.
+     */
+    public synchronized void onFailed() {
+        mFailures++;
+    }
+
+    /**
+     * Returns the median time to connect to a cached peer, or -1 with no samples.
+     */
+    public synchronized long getWarmMedian() {
+        return median(mWarm, mWarmCount);
+    }
+
+    /**
+     * Returns the median time to connect to a peer seen for the first time, or -1 with no
+     * samples.
+     */
+    public synchronized long getColdMedian() {
+        return median(mCold, mColdCount);
+    }
+
+    public synchronized int getConnectCount() {
+        return mWarmCount + mColdCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "connects " + getConnectCount() + ", failures " + mFailures
+                + ", median warm " + getWarmMedian() + " ms, cold " + getColdMedian() + " ms";
+    }
+
+    private static long median(long[] samples, int count) {
+        int n = Math.min(count, samples.length);
+        if (n == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        return sorted[n / 2];
+    }
+}
@@ -0,0 +1,423 @@
+package com.example.android.common.transport;
+
+import com.example.android.common.logger.Log;
+import com.example.android.common.protocol.AsyncFrameWriter;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.protocol.FrameReader;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking side of a connection-oriented service as tasks on a bounded pool of
+ * threads: accepting on a server socket, connecting to a peer and reading frames from a
+ * connection. Frames are written by {@link AsyncFrameWriter}s on the same pool, see
+ * {@link #getExecutor()}, other long-running work can be handed to {@link #run}, and periodic
+ * work such as heartbeats runs on a single timer thread.
+ *
+ * <p>Threads are reused from one connection to the next and end after a while idle, so a
+ * service that connects and disconnects all day doesn't keep creating them. The pool never
+ * grows past its limit: a task that would take it past is refused with an IOException, and the
+ * caller closes whatever the task was for.</p>
+ *
+ * <p>Each task comes back as a {@link Task}. Cancelling one closes what it is blocked on,
+ * which is the only way to wake a blocking accept, connect or read, and the task then ends
+ * without telling its listener anything more.</p>
+ */
+public class ConnectionEngine {
+
+    private static final String TAG = "ConnectionEngine";
+
+    // Idle threads are kept this long for the next connection
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    /**
+     * A task the engine is running.
+     */
+    public interface Task {
+        /**
+         * Stops the task, closing whatever it is blocked on. Its listener hears nothing more.
+         */
+        void cancel();
+    }
+
+    /**
+     * Told about connections a server socket accepts, on the accept task's thread.
+     */
+    public interface AcceptListener {
+        /**
+         * @param socket The connected socket, which the listener takes over
+         */
+        void onAccepted(TransportSocket socket);
+    }
+
+    /**
+     * Told how a connect ended, on the connect task's thread.
+     */
+    public interface ConnectListener {
+        /**
+         * @param socket The connected socket, which the listener takes over
+         * @param route  The route it connected over
+         */
+        void onConnected(TransportSocket socket, ConnectRace.Route route);
+
+        void onConnectFailed(IOException e);
+    }
+
+    /**
+     * Handed the frames read from a connection, on the read task's thread.
+     */
+    public interface ReadListener {
+        /**
+         * Acts on a frame, taking over the frame.
+         *
+         * @throws IOException To stop reading; the exception is passed to
+         *                     {@link #onReadFailed(IOException)}
+         */
+        void onFrame(Frame frame) throws IOException;
+
+        /**
+         * Called when every frame that has arrived so far has been handed over, so that a
+         * burst can be acknowledged once.
+         */
+        void onDrained();
+
+        /**
+         * The connection failed, or a frame couldn't be read or acted on. The read task has
+         * ended.
+         */
+        void onReadFailed(IOException e);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * @param name       Prefix for the names of the engine's threads
+     * @param maxThreads How many tasks may run at the same time
+     */
+    public ConnectionEngine(String name, int maxThreads) {
+        // No queue: a blocking task only ever starts on a thread of its own, or not at all
+        mExecutor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory(name));
+        mTimer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(name + "Timer"));
+        mTimer.setKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how many tasks may run at the same time. Tasks already running carry on.
+     */
+    public void setMaxThreads(int maxThreads) {
+        mExecutor.setMaximumPoolSize(maxThreads);
+    }
+
+    /**
+     * Returns the pool tasks run on, for writers and connect attempts to share.
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Returns how many of the engine's threads are running a task right now.
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Accepts connections on {@code server} until it fails or the task is cancelled.
+     *
+     * @throws IOException If there is no thread to run the task on; the server socket is
+     *                     closed
+     */
+    public Task accept(String name, TransportServerSocket server, AcceptListener listener)
+            throws IOException {
+        return submit(new AcceptTask(name, server, listener));
+    }
+
+    /**
+     * Runs a connect race, on the engine's threads, and reports how it ended.
+     *
+     * @throws IOException If there is no thread to run the task on
+     */
+    public Task connect(String name, ConnectRace race, ConnectListener listener)
+            throws IOException {
+        return submit(new ConnectTask(name, race, listener));
+    }
+
+    /**
+     * Reads frames from a connection until it fails or the task is cancelled.
+     *
+     * @param socket The connection, closed when the task is cancelled
+     * @param reader Reads from the socket's input stream
+     * @throws IOException If there is no thread to run the task on; the socket is closed
+     */
+    public Task read(String name, TransportSocket socket, FrameReader reader,
+            ReadListener listener) throws IOException {
+        return submit(new ReadTask(name, socket, reader, listener));
+    }
+
+    /**
+     * Runs {@code work} until it returns or the task is cancelled, which interrupts it. For
+     * work that waits on a queue rather than a socket, such as decoding what the reads hand
+     * over.
+     *
+     * @throws IOException If there is no thread to run the task on
+     */
+    public Task run(String name, Runnable work) throws IOException {
+        return submit(new WorkTask(name, work));
+    }
+
+    /**
+     * Runs {@code task} on the timer thread every {@code periodMillis}, first after one period.
+     * It should be quick, and must not block.
+     */
+    public Task schedule(Runnable task, long periodMillis) {
+        final ScheduledFuture<?> future = mTimer.scheduleWithFixedDelay(task, periodMillis,
+                periodMillis, TimeUnit.MILLISECONDS);
+        return new Task() {
+            @Override
+            public void cancel() {
+                future.cancel(false);
+            }
+        };
+    }
+
+    private Task submit(EngineTask task) throws IOException {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel();
+            throw new IOException("No thread for " + task.mmName, e);
+        }
+        return task;
+    }
+
+    /**
+     * Runs under its own name, and can be cancelled before it has even started.
+     */
+    private abstract static class EngineTask implements Task, Runnable {
+        final String mmName;
+        private volatile boolean mmCancelled;
+        // The thread running the task, so cancel() can interrupt a wait; guarded by this
+        private Thread mmThread;
+
+        EngineTask(String name) {
+            mmName = name;
+        }
+
+        @Override
+        public final void run() {
+            Thread thread = Thread.currentThread();
+            String idle = thread.getName();
+            thread.setName(mmName);
+            synchronized (this) {
+                mmThread = thread;
+            }
+            try {
+                if (!mmCancelled) {
+                    work();
+                }
+            } finally {
+                synchronized (this) {
+                    mmThread = null;
+                }
+                thread.setName(idle);
+            }
+        }
+
+        @Override
+        public final void cancel() {
+            mmCancelled = true;
+            abort();
+            // Wakes a task waiting on something other than its socket, such as a full queue
+            synchronized (this) {
+                if (mmThread != null && mmThread != Thread.currentThread()) {
+                    mmThread.interrupt();
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            return mmCancelled;
+        }
+
+        abstract void work();
+
+        /**
+         * Wakes {@link #work()} from whatever it is blocked on.
+         */
+        abstract void abort();
+    }
+
+    private static class AcceptTask extends EngineTask {
+        private final TransportServerSocket mmServer;
+        private final AcceptListener mmListener;
+
+        AcceptTask(String name, TransportServerSocket server, AcceptListener listener) {
+            super(name);
+            mmServer = server;
+            mmListener = listener;
+        }
+
+        @Override
+        void work() {
+            while (true) {
+                TransportSocket socket;
+                try {
+                    // Only returns on a connection or an exception
+                    socket = mmServer.accept();
+                } catch (IOException e) {
+                    if (!isCancelled()) {
+                        Log.e(TAG, mmName + " accept() failed", e);
+                    }
+                    return;
+                }
+                if (isCancelled()) {
+                    closeQuietly(socket);
+                    return;
+                }
+                mmListener.onAccepted(socket);
+            }
+        }
+
+        @Override
+        void abort() {
+            try {
+                mmServer.close();
+            } catch (IOException e) {
+                Log.e(TAG, mmName + " close() of server failed", e);
+            }
+        }
+    }
+
+    private static class ConnectTask extends EngineTask {
+        private final ConnectRace mmRace;
+        private final ConnectListener mmListener;
+
+        ConnectTask(String name, ConnectRace race, ConnectListener listener) {
+            super(name);
+            mmRace = race;
+            mmListener = listener;
+        }
+
+        @Override
+        void work() {
+            TransportSocket socket;
+            try {
+                // Blocks until one of the routes connects, or all of them failed
+                socket = mmRace.run();
+            } catch (IOException e) {
+                if (!isCancelled()) {
+                    mmListener.onConnectFailed(e);
+                }
+                return;
+            }
+            if (isCancelled()) {
+                closeQuietly(socket);
+                return;
+            }
+            mmListener.onConnected(socket, mmRace.getWinningRoute());
+        }
+
+        @Override
+        void abort() {
+            mmRace.cancel();
+        }
+    }
+
+    private static class ReadTask extends EngineTask {
+        private final TransportSocket mmSocket;
+        private final FrameReader mmReader;
+        private final ReadListener mmListener;
+
+        ReadTask(String name, TransportSocket socket, FrameReader reader,
+                ReadListener listener) {
+            super(name);
+            mmSocket = socket;
+            mmReader = reader;
+            mmListener = listener;
+        }
+
+        @Override
+        void work() {
+            try {
+                while (true) {
+                    // Blocks until a whole frame has been reassembled
+                    Frame frame = mmReader.readFrame();
+                    if (isCancelled()) {
+                        frame.release();
+                        return;
+                    }
+                    mmListener.onFrame(frame);
+                    if (mmReader.available() == 0) {
+                        mmListener.onDrained();
+                    }
+                }
+            } catch (IOException e) {
+                if (!isCancelled()) {
+                    mmListener.onReadFailed(e);
+                }
+            }
+        }
+
+        @Override
+        void abort() {
+            closeQuietly(mmSocket);
+        }
+    }
+
+    private static class WorkTask extends EngineTask {
+        private final Runnable mmWork;
+
+        WorkTask(String name, Runnable work) {
+            super(name);
+            mmWork = work;
+        }
+
+        @Override
+        void work() {
+            mmWork.run();
+        }
+
+        @Override
+        void abort() {
+            // The interrupt from cancel() is all it takes
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mmName;
+        private final AtomicInteger mmCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mmName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, mmName + "-" + mmCount.incrementAndGet());
+            // Idle threads end on their own; they shouldn't keep a JVM alive until then
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of socket failed", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.common.transport;
+
+import java.io.IOException;
+
+/**
+ * The link a {@link com.example.android.common.session.DatagramService} runs over.
+ * Implementations hide where the bytes actually go (RFCOMM, an in-process pipe or a TCP loopback
+ * socket) so the accept, connect and stream paths can be exercised without a Bluetooth radio.
+ *
+ * <p>The API deliberately mirrors {@code android.bluetooth.BluetoothServerSocket} and
+ * {@code android.bluetooth.BluetoothSocket}: sockets are created first and connected afterwards,
+ * so a blocked connect can be aborted by closing the socket from another thread.</p>
+ */
+public interface DatagramTransport {
+
+    /**
+     * Opens a listening endpoint for incoming connections.
+     *
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public TransportServerSocket listen(boolean secure) throws IOException;
+
+    /**
+     * Creates an unconnected socket to the peer at {@code address}. Call
+     * {@link TransportSocket#connect()} to establish the connection.
+     *
+     * @param address Transport specific peer address, e.g. a Bluetooth MAC address
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public TransportSocket createSocket(String address, boolean secure) throws IOException;
+
+    /**
+     * Creates an unconnected socket to a known channel on the peer at {@code address}, skipping
+     * the service lookup. Transports without channels ignore {@code channel}.
+     *
+     * @param channel A channel reported by {@link TransportSocket#getChannel()} on an earlier
+     *                connection, or -1 to look it up as usual
+     */
+    public TransportSocket createSocket(String address, boolean secure, int channel)
+            throws IOException;
+}
@@ -0,0 +1,235 @@
+package com.example.android.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * {@link DatagramTransport} between endpoints in the same process, for driving the datagram
+ * exchange on a plain JVM. All endpoints attached to the same {@link Network} can reach each
+ * other by address:
+ *
+ * <pre>
+ * InMemoryTransport.Network network = new InMemoryTransport.Network();
+ * DatagramTransport courier = new InMemoryTransport(network, "courier");
+ * DatagramTransport villager = new InMemoryTransport(network, "villager");
+ * </pre>
+ */
+public class InMemoryTransport implements DatagramTransport {
+
+    // Bytes buffered in each direction before a writer blocks
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private final Network mNetwork;
+    private final String mAddress;
+
+    public InMemoryTransport(Network network, String address) {
+        mNetwork = network;
+        mAddress = address;
+    }
+
+    /**
+     * Returns the address other endpoints on the network use to reach this one.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        MemoryServerSocket serverSocket = new MemoryServerSocket(key(mAddress, secure));
+        mNetwork.bind(serverSocket);
+        return serverSocket;
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure) {
+        return new MemorySocket(mNetwork, key(address, secure), mAddress);
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure, int channel) {
+        return createSocket(address, secure);
+    }
+
+    private static String key(String address, boolean secure) {
+        return address + (secure ? "/secure" : "/insecure");
+    }
+
+    /**
+     * The shared medium that in-memory endpoints connect through.
+     */
+    public static class Network {
+        private final Map<String, MemoryServerSocket> mListeners =
+                new HashMap<String, MemoryServerSocket>();
+
+        synchronized void bind(MemoryServerSocket serverSocket) throws IOException {
+            MemoryServerSocket existing = mListeners.get(serverSocket.mKey);
+            if (existing != null && !existing.isClosed()) {
+                throw new IOException("Address in use: " + serverSocket.mKey);
+            }
+            serverSocket.mNetwork = this;
+            mListeners.put(serverSocket.mKey, serverSocket);
+        }
+
+        synchronized void unbind(MemoryServerSocket serverSocket) {
+            if (mListeners.get(serverSocket.mKey) == serverSocket) {
+                mListeners.remove(serverSocket.mKey);
+            }
+        }
+
+        synchronized MemoryServerSocket lookup(String key) {
+            return mListeners.get(key);
+        }
+    }
+
+    private static class MemoryServerSocket implements TransportServerSocket {
+        private final String mKey;
+        private final LinkedList<MemorySocket> mPending = new LinkedList<MemorySocket>();
+        private Network mNetwork;
+        private boolean mClosed;
+
+        MemoryServerSocket(String key) {
+            mKey = key;
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        synchronized boolean offer(MemorySocket socket) {
+            if (mClosed) {
+                return false;
+            }
+            mPending.add(socket);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized TransportSocket accept() throws IOException {
+            try {
+                while (mPending.isEmpty()) {
+                    if (mClosed) {
+                        throw new IOException("Server socket closed");
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted in accept()");
+            }
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public void close() {
+            Network network;
+            synchronized (this) {
+                mClosed = true;
+                network = mNetwork;
+                for (MemorySocket socket : mPending) {
+                    socket.close();
+                }
+                mPending.clear();
+                notifyAll();
+            }
+            if (network != null) {
+                network.unbind(this);
+            }
+        }
+    }
+
+    private static class MemorySocket implements TransportSocket {
+        private final Network mNetwork;
+        private final String mRemoteKey;
+        private final String mLocalAddress;
+        private final String mRemoteAddress;
+        private MemoryPipe mIn;
+        private MemoryPipe mOut;
+        private boolean mClosed;
+
+        // Client side, not yet connected
+        MemorySocket(Network network, String remoteKey, String localAddress) {
+            mNetwork = network;
+            mRemoteKey = remoteKey;
+            mLocalAddress = localAddress;
+            mRemoteAddress = remoteKey.substring(0, remoteKey.lastIndexOf('/'));
+        }
+
+        // Server side, connected to the given pipes
+        MemorySocket(String remoteAddress, MemoryPipe in, MemoryPipe out) {
+            mNetwork = null;
+            mRemoteKey = null;
+            mLocalAddress = null;
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            MemoryServerSocket server = mNetwork.lookup(mRemoteKey);
+            if (server == null) {
+                throw new IOException("Connection refused: " + mRemoteKey);
+            }
+            MemoryPipe toServer = new MemoryPipe(PIPE_CAPACITY);
+            MemoryPipe toClient = new MemoryPipe(PIPE_CAPACITY);
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Socket closed");
+                }
+                mIn = toClient;
+                mOut = toServer;
+            }
+            if (!server.offer(new MemorySocket(mLocalAddress, toServer, toClient))) {
+                close();
+                throw new IOException("Connection refused: " + mRemoteKey);
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mIn == null) {
+                throw new IOException("Socket not connected");
+            }
+            return mIn.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                throw new IOException("Socket not connected");
+            }
+            return mOut.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public int getChannel() {
+            return -1;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            if (mIn != null) {
+                mIn.close();
+            }
+            if (mOut != null) {
+                mOut.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded, blocking, single-direction byte pipe between two threads. Unlike
+ * {@link java.io.PipedInputStream} it does not care which threads read or write, so it can be
+ * used from thread pools, or by a single thread that never writes more than it has room for.
+ */
+public class MemoryPipe {
+
+    private final byte[] mBuffer;
+    private int mReadPos;
+    private int mCount;
+    private boolean mClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MemoryPipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    public MemoryPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        int n = Math.min(len, mCount);
+        int first = Math.min(n, mBuffer.length - mReadPos);
+        System.arraycopy(mBuffer, mReadPos, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, n - first);
+        mReadPos = (mReadPos + n) % mBuffer.length;
+        mCount -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mCount == mBuffer.length) {
+                    wait();
+                    continue;
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, mBuffer.length - mCount);
+                int first = Math.min(n, mBuffer.length - writePos);
+                System.arraycopy(b, off, mBuffer, writePos, first);
+                System.arraycopy(b, off + first, mBuffer, 0, n - first);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
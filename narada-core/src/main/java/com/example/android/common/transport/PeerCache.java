@@ -0,0 +1,152 @@
+package com.example.android.common.transport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how each peer was last reached: which socket type worked and on which channel, so
+ * the next connection can go straight there instead of repeating the service lookup.
+ *
+ * <p>With a file the cache survives restarts. It is written as one line per peer, aside and
+ * renamed, so a crash mid-write leaves the previous version.</p>
+ */
+public class PeerCache {
+
+    // Peers remembered, least recently connected dropped first
+    private static final int MAX_PEERS = 64;
+
+    /**
+     * How a peer was last connected to.
+     */
+    public static class Peer {
+        private final boolean mSecure;
+        private final int mChannel;
+        private final long mLastConnected;
+
+        Peer(boolean secure, int channel, long lastConnected) {
+            mSecure = secure;
+            mChannel = channel;
+            mLastConnected = lastConnected;
+        }
+
+        public boolean isSecure() {
+            return mSecure;
+        }
+
+        /**
+         * Returns the channel the connection was on, or -1 if not known.
+         */
+        public int getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * Returns when the connection was made, in milliseconds since the epoch.
+         */
+        public long getLastConnected() {
+            return mLastConnected;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Peer> mPeers = new HashMap<String, Peer>();
+
+    /**
+     * @param file Where to keep the cache, or null to keep it in memory only
+     */
+    public PeerCache(File file) {
+        mFile = file;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Returns how a peer was last connected to, or null if it never was.
+     */
+    public synchronized Peer get(String address) {
+        return mPeers.get(address);
+    }
+
+    /**
+     * Records a working connection to a peer.
+     *
+     * @param channel The channel it was on, or -1 if not known
+     * @throws IOException If the cache couldn't be saved; it is still updated in memory
+     */
+    public synchronized void put(String address, boolean secure, int channel)
+            throws IOException {
+        mPeers.put(address, new Peer(secure, channel, System.currentTimeMillis()));
+        if (mPeers.size() > MAX_PEERS) {
+            mPeers.remove(oldest());
+        }
+        save();
+    }
+
+    private String oldest() {
+        List<Map.Entry<String, Peer>> entries = new ArrayList<Map.Entry<String, Peer>>(
+                mPeers.entrySet());
+        return Collections.min(entries, new Comparator<Map.Entry<String, Peer>>() {
+            @Override
+            public int compare(Map.Entry<String, Peer> a, Map.Entry<String, Peer> b) {
+                long x = a.getValue().mLastConnected;
+                long y = b.getValue().mLastConnected;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        }).getKey();
+    }
+
+    private void load() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(mFile));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // address secure channel lastConnected
+                    String[] fields = line.split(" ");
+                    if (fields.length == 4) {
+                        mPeers.put(fields[0], new Peer(Boolean.parseBoolean(fields[1]),
+                                Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // An unreadable cache only costs a slower first connect to each peer
+            mPeers.clear();
+        }
+    }
+
+    private void save() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        // Write aside and rename, so a crash leaves the previous version
+        File temp = new File(mFile.getPath() + ".tmp");
+        Writer out = new FileWriter(temp);
+        try {
+            for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+                Peer peer = entry.getValue();
+                out.write(entry.getKey() + " " + peer.mSecure + " " + peer.mChannel + " "
+                        + peer.mLastConnected + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Couldn't save " + mFile);
+        }
+    }
+}
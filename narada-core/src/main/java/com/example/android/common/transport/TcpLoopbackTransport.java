@@ -0,0 +1,165 @@
+package com.example.android.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link DatagramTransport} over TCP on the loopback interface, built on {@code java.nio}
+ * channels. Useful for load testing the datagram exchange at realistic message rates on a plain
+ * JVM, with real kernel socket buffers in between.
+ *
+ * <p>An endpoint owns two consecutive ports: {@code basePort} for secure and
+ * {@code basePort + 1} for insecure connections. Peers are addressed by their base port.</p>
+ */
+public class TcpLoopbackTransport implements DatagramTransport {
+
+    private final int mBasePort;
+
+    public TcpLoopbackTransport(int basePort) {
+        mBasePort = basePort;
+    }
+
+    @Override
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(InetAddress.getByName(null),
+                port(mBasePort, secure)));
+        return new TcpServerSocket(channel);
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        int port = port(Integer.parseInt(address), secure);
+        return new TcpSocket(SocketChannel.open(), address, port);
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, boolean secure, int channel)
+            throws IOException {
+        return createSocket(address, secure);
+    }
+
+    private static int port(int basePort, boolean secure) {
+        return secure ? basePort : basePort + 1;
+    }
+
+    private static class TcpServerSocket implements TransportServerSocket {
+        private final ServerSocketChannel mChannel;
+
+        TcpServerSocket(ServerSocketChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            SocketChannel channel = mChannel.accept();
+            // The peer's base port isn't visible from here, so accepted sockets report the
+            // ephemeral port they connected from
+            return new TcpSocket(channel, String.valueOf(channel.socket().getPort()), -1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private final SocketChannel mChannel;
+        private final String mRemoteAddress;
+        private final int mRemotePort;
+
+        // Stream wrappers that call the channel directly. The ones from
+        // java.nio.channels.Channels take the channel's blocking lock, which makes a blocked
+        // read stall every write on the same socket.
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return mChannel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                mChannel.close();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                mChannel.close();
+            }
+        };
+
+        TcpSocket(SocketChannel channel, String remoteAddress, int remotePort) throws IOException {
+            mChannel = channel;
+            mRemoteAddress = remoteAddress;
+            mRemotePort = remotePort;
+            mChannel.socket().setTcpNoDelay(true);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mChannel.connect(new InetSocketAddress(InetAddress.getByName(null), mRemotePort));
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "tcp:" + mRemoteAddress;
+        }
+
+        @Override
+        public int getChannel() {
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
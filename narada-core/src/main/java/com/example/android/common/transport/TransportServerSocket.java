@@ -0,0 +1,16 @@
+package com.example.android.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A listening endpoint created by {@link DatagramTransport#listen(boolean)}.
+ */
+public interface TransportServerSocket extends Closeable {
+
+    /**
+     * Blocks until a peer connects. Closing the server socket from another thread makes this
+     * throw an {@link IOException}.
+     */
+    public TransportSocket accept() throws IOException;
+}
@@ -0,0 +1,40 @@
+package com.example.android.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a single peer, created by a {@link DatagramTransport}.
+ */
+public interface TransportSocket extends Closeable {
+
+    /**
+     * Blocks until the connection is established. Only valid for sockets returned from
+     * {@link DatagramTransport#createSocket(String, boolean)}; accepted sockets are already
+     * connected. Closing the socket from another thread aborts the attempt.
+     */
+    public void connect() throws IOException;
+
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns the address of the peer, in the format accepted by
+     * {@link DatagramTransport#createSocket(String, boolean)}.
+     */
+    public String getRemoteAddress();
+
+    /**
+     * Returns a human readable name for the peer, for display only.
+     */
+    public String getRemoteName();
+
+    /**
+     * Returns the transport channel this socket is connected on, to connect straight to it next
+     * time, or -1 if the transport has no channels or it isn't known.
+     */
+    public int getChannel();
+}
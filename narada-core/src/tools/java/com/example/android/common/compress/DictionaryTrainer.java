@@ -0,0 +1,335 @@
+package com.example.android.common.compress;
+
+import com.example.android.common.datagram.DatagramCodec;
+import com.example.android.common.datagram.DatagramRequest;
+import com.example.android.common.datagram.DatagramRequestType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trains a preset dictionary for {@link DeflateCodec} on a corpus of sample payloads, and writes
+ * it out as a class for {@link CompressionCodecs} to register under a new codec id.
+ *
+ * <p>The corpus is the news pages ({@code *.html}) and e-mails ({@code *.txt}) under a
+ * directory. Each e-mail is also trained on as the SEND_EMAIL datagram that would carry it, and
+ * there is a request of every other type, all in the binary datagram format, since that is what
+ * the apps send.</p>
+ *
+ * <p>Segments are picked the way zstd's COVER trainer picks them. A segment scores by how many
+ * corpus files share each of its {@link #DMER_LENGTH}-byte substrings, counting only those at
+ * least {@link #MIN_SOURCES} files share, so that boilerplate wins over one story quoted in
+ * another. The best segment is taken, its substrings stop counting, and so on until the
+ * dictionary is full or nothing shared is left. DEFLATE codes a near match more cheaply than a
+ * far one, so the best segment goes last.</p>
+ *
+ * <p>Usage: {@code DictionaryTrainer <corpus directory> <codec id> <source directory>}. A class
+ * that is already there is never overwritten: peers that negotiated its codec id depend on
+ * every byte of it.</p>
+ */
+public class DictionaryTrainer {
+
+    private static final int DICTIONARY_SIZE = 8 * 1024;
+    private static final int SEGMENT_LENGTH = 64;
+    private static final int DMER_LENGTH = 8;
+    private static final int MIN_SOURCES = 3;
+
+    private static final String PACKAGE = "com.example.android.common.compress";
+    private static final String DEVICE_NAME = "Narada villager";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LINE_LENGTH = 76;
+
+    // The samples from each corpus file: an e-mail and its datagram share most of their bytes,
+    // but only what other files have too is worth a place in the dictionary
+    private final List<List<byte[]>> mSources = new ArrayList<List<byte[]>>();
+    private final List<byte[]> mSamples = new ArrayList<byte[]>();
+    // How many sources each substring occurs in, while it still counts
+    private final Map<Long, Integer> mFrequencies = new HashMap<Long, Integer>();
+    // The score of the segment bestSegment() found last
+    private long mScore;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: DictionaryTrainer <corpus directory> <codec id> "
+                    + "<source directory>");
+            System.exit(2);
+        }
+        File corpus = new File(args[0]);
+        int id = Integer.parseInt(args[1]);
+        String name = "TrainedDictionary" + id;
+        File out = new File(args[2], PACKAGE.replace('.', File.separatorChar)
+                + File.separator + name + ".java");
+        if (out.exists()) {
+            System.err.println(out + " exists; train under a new codec id instead");
+            System.exit(1);
+        }
+
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        trainer.addCorpus(corpus);
+        trainer.addRequests();
+        byte[] dictionary = trainer.train();
+        writeClass(out, name, id, corpus.getName(), dictionary);
+        System.out.println("Wrote " + dictionary.length + " bytes from "
+                + trainer.mSources.size() + " files and requests to " + out);
+    }
+
+    private void addCorpus(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("No corpus in " + directory);
+        }
+        // Sorted, so the same corpus always gives the same dictionary
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addCorpus(file);
+            } else if (file.getName().endsWith(".html")) {
+                addSource(read(file));
+            } else if (file.getName().endsWith(".txt")) {
+                byte[] email = read(file);
+                addSource(email, emailDatagram(new String(email, UTF_8)));
+            }
+        }
+    }
+
+    private void addRequests() {
+        for (DatagramRequestType type : DatagramRequestType.values()) {
+            if (type != DatagramRequestType.SEND_EMAIL) {
+                addSource(DatagramCodec.encode(new DatagramRequest(type, DEVICE_NAME),
+                        DatagramCodec.FORMAT_BINARY));
+            }
+        }
+    }
+
+    private void addSource(byte[]... samples) {
+        mSources.add(Arrays.asList(samples));
+        mSamples.addAll(Arrays.asList(samples));
+    }
+
+    /**
+     * Builds the SEND_EMAIL datagram for an e-mail written as headers, a blank line and a body.
+     */
+    private static byte[] emailDatagram(String email) {
+        String from = "";
+        String to = "";
+        int end = email.indexOf("\n\n");
+        String headers = end < 0 ? "" : email.substring(0, end);
+        for (String header : headers.split("\n")) {
+            if (header.startsWith("From: ")) {
+                from = header.substring(6);
+            } else if (header.startsWith("To: ")) {
+                to = header.substring(4);
+            }
+        }
+        String body = end < 0 ? email : email.substring(end + 2);
+        return DatagramCodec.encode(new DatagramRequest(DatagramRequestType.SEND_EMAIL,
+                DEVICE_NAME, from, to, body), DatagramCodec.FORMAT_BINARY);
+    }
+
+    private byte[] train() {
+        for (List<byte[]> source : mSources) {
+            Set<Long> seen = new HashSet<Long>();
+            for (byte[] sample : source) {
+                for (int i = 0; i + DMER_LENGTH <= sample.length; i++) {
+                    long dmer = dmer(sample, i);
+                    if (seen.add(dmer)) {
+                        Integer count = mFrequencies.get(dmer);
+                        mFrequencies.put(dmer, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        }
+
+        List<byte[]> segments = new ArrayList<byte[]>();
+        int size = 0;
+        while (size < DICTIONARY_SIZE) {
+            byte[] bestSample = null;
+            int bestStart = 0;
+            int bestEnd = 0;
+            long bestScore = 0;
+            for (byte[] sample : mSamples) {
+                int length = Math.min(SEGMENT_LENGTH, sample.length);
+                int start = bestSegment(sample, length);
+                if (start >= 0 && mScore > bestScore) {
+                    bestScore = mScore;
+                    bestSample = sample;
+                    bestStart = start;
+                    bestEnd = start + length;
+                }
+            }
+            if (bestSample == null) {
+                // Nothing shared is left
+                break;
+            }
+            // Bytes at either end that nobody else has are no use, as in COVER
+            while (worth(dmer(bestSample, bestStart)) == 0) {
+                bestStart++;
+            }
+            while (worth(dmer(bestSample, bestEnd - DMER_LENGTH)) == 0) {
+                bestEnd--;
+            }
+            byte[] best = Arrays.copyOfRange(bestSample, bestStart, bestEnd);
+            for (int i = 0; i + DMER_LENGTH <= best.length; i++) {
+                mFrequencies.put(dmer(best, i), 0);
+            }
+            segments.add(best);
+            size += best.length;
+        }
+
+        // Best last, and what doesn't fit is the least valuable
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            dictionary.write(segments.get(i), 0, segments.get(i).length);
+        }
+        byte[] all = dictionary.toByteArray();
+        return Arrays.copyOfRange(all, Math.max(0, all.length - DICTIONARY_SIZE), all.length);
+    }
+
+    /**
+     * Finds the segment of a sample whose distinct substrings the most sources share,
+     * sliding a window over it, and leaves its score in {@link #mScore}.
+     *
+     * @return Where the segment starts, or -1 if the sample is too short for one
+     */
+    private int bestSegment(byte[] sample, int length) {
+        int dmers = length - DMER_LENGTH + 1;
+        if (dmers <= 0) {
+            return -1;
+        }
+        // Substrings in the window, and how often each occurs in it
+        Map<Long, Integer> window = new HashMap<Long, Integer>();
+        long score = 0;
+        int best = 0;
+        mScore = 0;
+        for (int i = 0; i + DMER_LENGTH <= sample.length; i++) {
+            long in = dmer(sample, i);
+            Integer count = window.get(in);
+            window.put(in, count == null ? 1 : count + 1);
+            if (count == null) {
+                score += worth(in);
+            }
+            int start = i - dmers + 1;
+            if (start < 0) {
+                continue;
+            }
+            if (score > mScore) {
+                mScore = score;
+                best = start;
+            }
+            long out = dmer(sample, start);
+            count = window.get(out);
+            if (count == 1) {
+                window.remove(out);
+                score -= worth(out);
+            } else {
+                window.put(out, count - 1);
+            }
+        }
+        return best;
+    }
+
+    private int worth(long dmer) {
+        int sources = mFrequencies.get(dmer);
+        return sources < MIN_SOURCES ? 0 : sources;
+    }
+
+    private static long dmer(byte[] data, int offset) {
+        long dmer = 0;
+        for (int i = 0; i < DMER_LENGTH; i++) {
+            dmer = dmer << 8 | data[offset + i] & 0xFF;
+        }
+        return dmer;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeClass(File out, String name, int id, String corpus,
+            byte[] dictionary) throws IOException {
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(PACKAGE).append(";\n\n")
+                .append("import java.io.UnsupportedEncodingException;\n\n")
+                .append("/**\n")
+                .append(" * The preset dictionary for codec ").append(id)
+                .append(", trained by DictionaryTrainer on src/tools/").append(corpus)
+                .append(".\n")
+                .append(" *\n")
+                .append(" * <p>Generated; don't edit. Both peers must use byte-for-byte the same")
+                .append(" dictionary, so a\n")
+                .append(" * retrained one goes under a new codec id.</p>\n")
+                .append(" */\n")
+                .append("final class ").append(name).append(" {\n\n")
+                .append("    private static final String TEXT = \"\"\n");
+        List<String> lines = new ArrayList<String>();
+        StringBuilder line = new StringBuilder();
+        for (byte b : dictionary) {
+            int c = b & 0xFF;
+            if (c == '"' || c == '\\') {
+                line.append('\\').append((char) c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c >= 0x20 && c < 0x7F) {
+                line.append((char) c);
+            } else {
+                line.append(String.format("\\%03o", c));
+            }
+            if (line.length() >= LINE_LENGTH || c == '\n') {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+        }
+        if (line.length() > 0) {
+            lines.add(line.toString());
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            source.append("            + \"").append(lines.get(i))
+                    .append(i == lines.size() - 1 ? "\";\n\n" : "\"\n");
+        }
+        source.append("    private ").append(name).append("() {\n")
+                .append("    }\n\n")
+                .append("    static byte[] get() {\n")
+                .append("        try {\n")
+                .append("            return TEXT.getBytes(\"ISO-8859-1\");\n")
+                .append("        } catch (UnsupportedEncodingException e) {\n")
+                .append("            throw new IllegalStateException(e);\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+
+        out.getParentFile().mkdirs();
+        // Pure ASCII: everything else was escaped
+        Writer writer = new OutputStreamWriter(new FileOutputStream(out), ASCII);
+        try {
+            writer.write(source.toString());
+        } finally {
+            writer.close();
+        }
+    }
+}
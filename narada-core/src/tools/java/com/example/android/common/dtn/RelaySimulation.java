@@ -0,0 +1,218 @@
+package com.example.android.common.dtn;
+
+import com.example.android.common.link.TransferPlanner;
+import com.example.android.common.protocol.Frame;
+import com.example.android.common.session.DatagramService;
+import com.example.android.common.transport.InMemoryTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries bundles from a villager through a relay to a gateway: three {@link DatagramService}s,
+ * each with a {@link BundleAgent} of its own, over an {@link InMemoryTransport} network. The
+ * villager and the gateway only ever meet the relay.
+ *
+ * <p>Checks that a bundle for {@link BundleAgent#GATEWAY} is delivered across both hops, that
+ * the relay lets go of it once the gateway signals custody, that one with a hop limit of 1
+ * stops at the relay, and that one past its lifetime never leaves the villager. Exits with
+ * status 1 at the first check that fails.</p>
+ *
+ * <p>Run with {@code ./gradlew relaySimulation}; {@code ./gradlew check} runs it too.</p>
+ */
+public class RelaySimulation {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final long POLL_MS = 20;
+    private static final long SHORT_LIFETIME_MS = 100;
+
+    /**
+     * One device: a service, the store behind its bundle agent, and the bundles delivered to
+     * it.
+     */
+    private static class Node implements DatagramService.Listener {
+        final String mName;
+        final BundleStore mStore;
+        final BundleAgent mAgent;
+        final DatagramService mService;
+        final BlockingQueue<DtnBundle> mDelivered = new LinkedBlockingQueue<DtnBundle>();
+        volatile int mConnected;
+
+        Node(InMemoryTransport.Network network, String name, File dir, boolean gateway)
+                throws IOException {
+            mName = name;
+            mStore = new BundleStore(new File(dir, name));
+            mAgent = new BundleAgent(mStore, gateway);
+            mService = new DatagramService(new InMemoryTransport(network, name), this);
+            mService.setBundleAgent(mAgent);
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onConnected(int sessionId, String deviceName) {
+            mConnected++;
+        }
+
+        @Override
+        public void onConnectFailed() {
+            System.err.println(mName + ": connect failed");
+        }
+
+        @Override
+        public void onConnectionLost(int sessionId) {
+        }
+
+        @Override
+        public void onDatagram(int sessionId, Frame frame) {
+            frame.release();
+        }
+
+        @Override
+        public void onDatagramWritten(int sessionId, byte[] datagram) {
+        }
+
+        @Override
+        public void onBlob(int sessionId, String hash) {
+        }
+
+        @Override
+        public void onBundle(int sessionId, DtnBundle bundle) {
+            mDelivered.add(bundle);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("relay").toFile();
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        final Node villager = new Node(network, "villager", dir, false);
+        final Node relay = new Node(network, "relay", dir, false);
+        final Node gateway = new Node(network, "gateway", dir, true);
+        // The relay serves the villager and the gateway at once
+        relay.mService.setMaxSessions(2);
+        try {
+            run(villager, relay, gateway);
+            System.out.println("Relay simulation passed");
+        } catch (IllegalStateException e) {
+            System.err.println("Relay simulation failed: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            villager.mService.stop();
+            relay.mService.stop();
+            gateway.mService.stop();
+            delete(dir);
+        }
+        // The services' threads wind down on their own time
+        System.exit(0);
+    }
+
+    private static void run(final Node villager, final Node relay, final Node gateway)
+            throws Exception {
+        // Written before any contact, as a villager would
+        byte[] payload = "Money order for Sunita, Rs 2000".getBytes("UTF-8");
+        DtnBundle delivered = villager.mAgent.send(BundleAgent.GATEWAY, payload,
+                TransferPlanner.PRIORITY_NORMAL);
+        final DtnBundle oneHop = villager.mAgent.send(BundleAgent.GATEWAY,
+                "One hop only".getBytes("UTF-8"), TransferPlanner.PRIORITY_NORMAL,
+                BundleAgent.DEFAULT_LIFETIME_MS, 1);
+        final DtnBundle expired = villager.mAgent.send(BundleAgent.GATEWAY,
+                "Too late".getBytes("UTF-8"), TransferPlanner.PRIORITY_NORMAL,
+                SHORT_LIFETIME_MS, BundleAgent.DEFAULT_HOP_LIMIT);
+        Thread.sleep(2 * SHORT_LIFETIME_MS);
+
+        villager.mService.start();
+        relay.mService.start();
+        gateway.mService.start();
+        gateway.mService.connect(relay.mName, false);
+        await("the gateway to reach the relay", new Condition() {
+            @Override
+            public boolean holds() {
+                return gateway.mConnected > 0 && relay.mConnected > 0;
+            }
+        });
+        villager.mService.connect(relay.mName, false);
+
+        // Multi-hop delivery
+        DtnBundle arrived = gateway.mDelivered.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        check(arrived != null, "nothing reached the gateway");
+        check(arrived.getIdString().equals(delivered.getIdString()),
+                "the gateway got " + arrived.getIdString() + ", not " + delivered.getIdString());
+        check(Arrays.equals(arrived.getPayload(), payload), "the payload changed on the way");
+        check(arrived.getSource().equals(villager.mAgent.getEndpoint()),
+                "the bundle came from " + arrived.getSource());
+        check(arrived.getHopCount() == 2, "the bundle took " + arrived.getHopCount() + " hops");
+
+        // Release on custody
+        final String id = delivered.getIdString();
+        await("the relay to let go of the delivered bundle", new Condition() {
+            @Override
+            public boolean holds() {
+                return !relay.mStore.contains(id) && relay.mStore.hasSeen(id);
+            }
+        });
+
+        // Hop-limit refusal
+        await("the relay to take in both live bundles", new Condition() {
+            @Override
+            public boolean holds() {
+                return relay.mAgent.getStats().getReceivedCount() >= 2;
+            }
+        });
+        check(!relay.mStore.contains(oneHop.getIdString()),
+                "the relay stored a bundle out of hops");
+        check(villager.mStore.contains(oneHop.getIdString()),
+                "the villager gave up a bundle it may still hand on");
+
+        // Age-based expiry
+        check(!villager.mStore.contains(expired.getIdString()),
+                "the villager kept an expired bundle");
+        check(relay.mAgent.getStats().getReceivedCount() == 2,
+                "the relay received " + relay.mAgent.getStats().getReceivedCount()
+                + " bundles, not 2");
+        check(!relay.mStore.contains(expired.getIdString())
+                        && !relay.mStore.hasSeen(expired.getIdString()),
+                "an expired bundle reached the relay");
+
+        DtnBundle extra = gateway.mDelivered.poll(TIMEOUT_MS / 10, TimeUnit.MILLISECONDS);
+        check(extra == null, "the gateway also got " + (extra == null ? null
+                : extra.getIdString()));
+        System.out.println(relay.mAgent.getStats());
+    }
+
+    private static void await(String what, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("timed out waiting for " + what);
+            }
+            Thread.sleep(POLL_MS);
+        }
+    }
+
+    private static void check(boolean holds, String message) {
+        if (!holds) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}